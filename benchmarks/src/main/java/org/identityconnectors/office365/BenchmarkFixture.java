@@ -0,0 +1,128 @@
+/*
+ * DO NOT REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2013 Salford Software Ltd. All rights reserved.
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://opensource.org/licenses/cddl1.txt
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://opensource.org/licenses/cddl1.txt
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.office365;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+
+import org.identityconnectors.common.security.GuardedString;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A connector wired to a local HTTP server that answers the lookups made
+ * while building requests (token, tenant details and subscribed SKUs), so
+ * the benchmarks measure the connector rather than the network. The
+ * connection caches the answers, so after the first call no requests are
+ * made.
+ *
+ * @author Paul Heaney
+ */
+class BenchmarkFixture {
+
+    // Logging is off so the numbers are for the connector's own work
+    static final String QUIET_LOGGING = "-Dorg.identityconnectors.common.logging.class=org.identityconnectors.common.logging.impl.NoOpLogger";
+
+    static final String TENANCY = "contoso.onmicrosoft.com";
+    static final String SIGNING_KEY = "c2VjcmV0LXNpZ25pbmcta2V5LWZvci1iZW5jaG1hcmtzIQ==";
+
+    static final String TENANT_DETAILS = "{\"value\":[{\"objectType\":\"Company\",\"assignedPlans\":[{\"service\":\"exchange\",\"capabilityStatus\":\"Enabled\"}],"
+            + "\"verifiedDomains\":["
+            + "{\"name\":\"contoso.com\",\"type\":\"Managed\",\"capabilities\":\"Email,OfficeCommunicationsOnline\",\"default\":true,\"id\":\"000520000FC2E3A0\",\"initial\":false},"
+            + "{\"name\":\"contoso.onmicrosoft.com\",\"type\":\"Managed\",\"capabilities\":\"Email\",\"default\":false,\"id\":\"000520000FC2E3A1\",\"initial\":true},"
+            + "{\"name\":\"fed.contoso.com\",\"type\":\"Federated\",\"capabilities\":\"Email\",\"default\":false,\"id\":\"000520000FC2E3A2\",\"initial\":false}]}]}";
+
+    static final String SUBSCRIBED_SKUS = "{\"value\":[{\"objectId\":\"sku-1\",\"skuId\":\"6fd2c87f-b296-42f0-b197-1e91e994b900\",\"skuPartNumber\":\"ENTERPRISEPACK\","
+            + "\"consumedUnits\":120,\"prepaidUnits\":{\"enabled\":250,\"suspended\":0,\"warning\":0},\"servicePlans\":["
+            + "{\"servicePlanId\":\"efb87545-963c-4e0d-99df-69c6916d9eb0\",\"servicePlanName\":\"EXCHANGE_S_ENTERPRISE\"},"
+            + "{\"servicePlanId\":\"5dbe027f-2339-4123-9542-606e4d348a72\",\"servicePlanName\":\"SHAREPOINTENTERPRISE\"},"
+            + "{\"servicePlanId\":\"e95bec33-7c88-4a70-8e19-b10bd9d0c014\",\"servicePlanName\":\"SHAREPOINTWAC\"},"
+            + "{\"servicePlanId\":\"0feaeb32-d00e-4d66-bd5a-43b5b83db82c\",\"servicePlanName\":\"MCOSTANDARD\"},"
+            + "{\"servicePlanId\":\"43de0ff5-c92c-492b-9116-175376d08c38\",\"servicePlanName\":\"OFFICESUBSCRIPTION\"}]}]}";
+
+    static final String TOKEN = "{\"token_type\":\"Bearer\",\"access_token\":\"benchmark-token\",\"expires_in\":86400}";
+
+    private final HttpServer server;
+    final Office365Connector connector;
+    final Office365UserOps userOps;
+
+    BenchmarkFixture() throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        this.server.createContext("/tokens", new Answer(TOKEN));
+        this.server.createContext("/" + TENANCY + "/tenantDetails", new Answer(TENANT_DETAILS));
+        this.server.createContext("/" + TENANCY + "/subscribedSkus", new Answer(SUBSCRIBED_SKUS));
+        this.server.start();
+
+        this.connector = new Office365Connector();
+        this.connector.init(configuration("127.0.0.1:" + this.server.getAddress().getPort()));
+        this.userOps = new Office365UserOps(this.connector);
+    }
+
+    static Office365Configuration configuration(String endPoint) {
+        Office365Configuration configuration = new Office365Configuration() {
+            @Override
+            public String getProtocol() {
+                return "http://";
+            }
+        };
+        configuration.setApiEndPoint(endPoint);
+        configuration.setTenancy(TENANCY);
+        configuration.setAuthURL("http://" + endPoint + "/tokens");
+        configuration.setPrincipalID("aa8de79f-4c6a-4f81-bcc7-61262226256a");
+        configuration.setSymetricKey(new GuardedString(SIGNING_KEY.toCharArray()));
+        return configuration;
+    }
+
+    void close() {
+        this.connector.dispose();
+        this.server.stop(0);
+    }
+
+    private static class Answer implements HttpHandler {
+
+        private final byte[] body;
+
+        Answer(String body) {
+            this.body = body.getBytes(Charset.forName("UTF-8"));
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            InputStream in = exchange.getRequestBody();
+            while (in.read() != -1) {
+                // drain the request
+            }
+            exchange.getResponseHeaders().set("Content-Type", "application/json;odata=minimalmetadata;charset=utf-8");
+            exchange.sendResponseHeaders(200, this.body.length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(this.body);
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * DO NOT REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2013 Salford Software Ltd. All rights reserved.
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://opensource.org/licenses/cddl1.txt
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://opensource.org/licenses/cddl1.txt
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.office365;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.identityconnectors.common.security.GuardedString;
+import org.identityconnectors.framework.common.objects.Attribute;
+import org.identityconnectors.framework.common.objects.AttributeBuilder;
+import org.identityconnectors.framework.common.objects.ConnectorObject;
+import org.identityconnectors.framework.common.objects.Name;
+import org.identityconnectors.framework.common.objects.OperationalAttributes;
+import org.identityconnectors.framework.common.objects.Uid;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Converting users between JSON and connector objects, and building the
+ * request bodies for create, update and license assignment.
+ *
+ * @author Paul Heaney
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = BenchmarkFixture.QUIET_LOGGING)
+public class UserOpsBenchmark {
+
+    static final String USER = "{\"odata.type\":\"Microsoft.WindowsAzure.ActiveDirectory.User\",\"objectType\":\"User\","
+            + "\"objectId\":\"1f0a2b3c-4d5e-6f70-8192-a3b4c5d6e7f8\",\"deletionTimestamp\":null,\"accountEnabled\":true,"
+            + "\"assignedLicenses\":[{\"disabledPlans\":[],\"skuId\":\"6fd2c87f-b296-42f0-b197-1e91e994b900\"}],"
+            + "\"assignedPlans\":[{\"assignedTimestamp\":\"2014-01-01T00:00:00Z\",\"capabilityStatus\":\"Enabled\",\"service\":\"exchange\","
+            + "\"servicePlanId\":\"efb87545-963c-4e0d-99df-69c6916d9eb0\"}],\"city\":\"Salford\",\"country\":\"United Kingdom\","
+            + "\"department\":\"Engineering\",\"dirSyncEnabled\":null,\"displayName\":\"Bob Smith\",\"facsimileTelephoneNumber\":null,"
+            + "\"givenName\":\"Bob\",\"immutableId\":null,\"jobTitle\":\"Developer\",\"lastDirSyncTime\":null,\"mail\":\"bob.smith@contoso.com\","
+            + "\"mailNickname\":\"bob.smith\",\"mobile\":\"+44 7700 900000\",\"onPremisesSecurityIdentifier\":null,"
+            + "\"otherMails\":[\"bob@example.com\",\"robert@example.org\"],\"passwordPolicies\":\"None\",\"passwordProfile\":null,"
+            + "\"physicalDeliveryOfficeName\":\"Building 1\",\"postalCode\":\"M5 4WT\",\"preferredLanguage\":\"en-GB\","
+            + "\"provisionedPlans\":[],\"provisioningErrors\":[],\"proxyAddresses\":[\"SMTP:bob.smith@contoso.com\",\"smtp:bob@contoso.onmicrosoft.com\"],"
+            + "\"sipProxyAddress\":null,\"state\":\"Greater Manchester\",\"streetAddress\":\"The Crescent\",\"surname\":\"Smith\","
+            + "\"telephoneNumber\":\"+44 161 000 0000\",\"usageLocation\":\"GB\",\"userPrincipalName\":\"bob.smith@contoso.com\",\"userType\":\"Member\"}";
+
+    static final String LICENSE = "ENTERPRISEPACK:EXCHANGE_S_ENTERPRISE:SHAREPOINTENTERPRISE";
+
+    private BenchmarkFixture fixture;
+    private JSONObject user;
+    private Name name;
+    private Set<Attribute> createAttributes;
+    private Uid uid;
+    private Set<Attribute> updateAttributes;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, JSONException {
+        this.fixture = new BenchmarkFixture();
+        this.user = new JSONObject(USER);
+
+        this.name = new Name("bob.smith@contoso.com");
+        this.createAttributes = new HashSet<Attribute>();
+        this.createAttributes.add(this.name);
+        this.createAttributes.add(AttributeBuilder.build("accountEnabled", Boolean.TRUE));
+        this.createAttributes.add(AttributeBuilder.build("displayName", "Bob Smith"));
+        this.createAttributes.add(AttributeBuilder.build("givenName", "Bob"));
+        this.createAttributes.add(AttributeBuilder.build("surname", "Smith"));
+        this.createAttributes.add(AttributeBuilder.build("mailNickname", "bob.smith"));
+        this.createAttributes.add(AttributeBuilder.build("city", "Salford"));
+        this.createAttributes.add(AttributeBuilder.build("otherMails", "bob@example.com", "robert@example.org"));
+        this.createAttributes.add(AttributeBuilder.build(Office365Connector.USAGELOCATION_ATTR, "GB"));
+        this.createAttributes.add(AttributeBuilder.build(Office365Connector.LICENSE_ATTR, LICENSE));
+        this.createAttributes.add(AttributeBuilder.build(OperationalAttributes.PASSWORD_NAME, new GuardedString("Pa55w0rd!".toCharArray())));
+
+        this.uid = new Uid("1f0a2b3c-4d5e-6f70-8192-a3b4c5d6e7f8");
+        this.updateAttributes = new HashSet<Attribute>();
+        this.updateAttributes.add(AttributeBuilder.build("displayName", "Robert Smith"));
+        this.updateAttributes.add(AttributeBuilder.build("jobTitle", "Lead Developer"));
+        this.updateAttributes.add(AttributeBuilder.build("proxyAddresses", "SMTP:robert.smith@contoso.com", "smtp:bob.smith@contoso.com"));
+
+        // Fill the connection's domain and license caches
+        this.fixture.connector.getConnection().getDomain("contoso.com");
+        this.fixture.userOps.convertLicenseToJson(LICENSE);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        this.fixture.close();
+    }
+
+    @Benchmark
+    public ConnectorObject makeConnectorObject() {
+        return this.fixture.userOps.makeConnectorObject(this.user);
+    }
+
+    @Benchmark
+    public ConnectorObject decodeConnectorObject() throws JSONException {
+        return this.fixture.userOps.decodeConnectorObject(new JSONTokener(USER));
+    }
+
+    @Benchmark
+    public JSONObject convertLicenseToJson() throws JSONException {
+        return this.fixture.userOps.convertLicenseToJson(LICENSE);
+    }
+
+    @Benchmark
+    public String createRequestBody() {
+        return this.fixture.userOps.buildCreateRequest(this.name, this.createAttributes).json.toString();
+    }
+
+    @Benchmark
+    public String updateRequestBody() {
+        return this.fixture.userOps.buildUpdateRequest(this.uid, this.updateAttributes).json.toString();
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * DO NOT REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2013 Salford Software Ltd. All rights reserved.
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://opensource.org/licenses/cddl1.txt
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://opensource.org/licenses/cddl1.txt
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.office365;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.identityconnectors.framework.common.objects.AttributeBuilder;
+import org.identityconnectors.framework.common.objects.filter.Filter;
+import org.identityconnectors.framework.common.objects.filter.FilterBuilder;
+import org.identityconnectors.office365.jsontoken.JWTTokenHelper;
+import org.identityconnectors.office365.jsontoken.JsonWebToken;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The work done without a connection: immutableId encoding, signing the
+ * token assertion and translating a search filter to OData.
+ *
+ * @author Paul Heaney
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = BenchmarkFixture.QUIET_LOGGING)
+public class UtilsBenchmark {
+
+    static final String GUID = "1f0a2b3c-4d5e-6f70-8192-a3b4c5d6e7f8";
+
+    private Office365FilterTranslator translator;
+    private Filter filter;
+
+    @Setup
+    public void setUp() {
+        this.translator = new Office365FilterTranslator(BenchmarkFixture.configuration("127.0.0.1:1"));
+        this.filter = FilterBuilder.and(
+                FilterBuilder.equalTo(AttributeBuilder.build("displayName", "Bob O'Smith")),
+                FilterBuilder.or(
+                        FilterBuilder.startsWith(AttributeBuilder.build("givenName", "Bob")),
+                        FilterBuilder.equalTo(AttributeBuilder.build("proxyAddresses", "SMTP:bob.smith@contoso.com"))));
+    }
+
+    @Benchmark
+    public String encodeStraightBase64() {
+        return Office365Utils.encodeImmutableId(GUID, Office365Configuration.ENCODE_STRAIGHT_BASE64_STR);
+    }
+
+    @Benchmark
+    public String encodeMicrosoftBase64() {
+        return Office365Utils.encodeImmutableId(GUID, Office365Configuration.ENCODE_MS_BASE64_STR);
+    }
+
+    @Benchmark
+    public String encodeAdfsBase64() {
+        return Office365Utils.encodeImmutableId(GUID, Office365Configuration.ENCODE_MS_BASE64_OPENICF_ADFS_STR);
+    }
+
+    @Benchmark
+    public String generateAssertion() throws Exception {
+        JsonWebToken webToken = new JsonWebToken("aa8de79f-4c6a-4f81-bcc7-61262226256a", BenchmarkFixture.TENANCY,
+                "accounts.accesscontrol.windows.net", "00000001-0000-0000-c000-000000000000", JWTTokenHelper.getCurrentDateTime(), 60 * 60);
+        return JWTTokenHelper.generateAssertion(webToken, BenchmarkFixture.SIGNING_KEY);
+    }
+
+    @Benchmark
+    public String translateFilter() {
+        List<Office365Filter> filters = this.translator.translate(this.filter);
+        return filters.get(0).toODataFilter();
+    }
+}
@@ -0,0 +1,541 @@
+/*
+ * DO NOT REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2013 Salford Software Ltd. All rights reserved.
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://opensource.org/licenses/cddl1.txt
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://opensource.org/licenses/cddl1.txt
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.office365;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPatch;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.http.util.EntityUtils;
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.framework.common.objects.Uid;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Non-blocking counterpart to the request methods of
+ * {@link Office365Connection}, each returning a CompletableFuture.
+ *
+ * Requests are sent on a NIO client, so a handful of I/O threads keep many
+ * requests in flight. They share the connection's token manager, the
+ * tenancy's request scheduler and the retry policy with the blocking
+ * methods. A request that has to wait for a permit, a Retry-After or a
+ * backoff is parked on a timer rather than holding a thread, and an expired
+ * token is minted on the token manager's own thread, so neither the I/O
+ * threads nor the timer ever block.
+ *
+ * Futures are completed on the I/O threads, dependent stages that block
+ * should use the *Async variants with their own executor.
+ *
+ * @author Paul Heaney
+ */
+public class Office365AsyncClient {
+
+    private static final Log log = Log.getLog(Office365AsyncClient.class);
+
+    private final Office365Connection connection;
+    private final Office365Configuration configuration;
+    private final Office365TokenManager tokenManager;
+    private final Office365RequestScheduler scheduler;
+    private final Office365RetryPolicy retryPolicy;
+    private final Office365Metrics metrics;
+    private final Office365Tracer tracer;
+    private final PoolingNHttpClientConnectionManager connectionManager;
+    private final CloseableHttpAsyncClient httpClient;
+    private final Office365Connection.IdleConnectionMonitor idleConnectionMonitor;
+    private final ScheduledExecutorService timer;
+    private final Set<Exchange> exchanges = ConcurrentHashMap.newKeySet(); // not yet complete
+    private volatile boolean closed = false;
+
+    Office365AsyncClient(Office365Connection connection, Office365Configuration configuration, Office365TokenManager tokenManager,
+            Office365RequestScheduler scheduler, Office365RetryPolicy retryPolicy) {
+        this.connection = connection;
+        this.configuration = configuration;
+        this.tokenManager = tokenManager;
+        this.scheduler = scheduler;
+        this.retryPolicy = retryPolicy;
+        this.metrics = connection.getMetrics();
+        this.tracer = connection.getTracer();
+
+        try {
+            this.connectionManager = new PoolingNHttpClientConnectionManager(new DefaultConnectingIOReactor());
+        } catch (IOReactorException ire) {
+            throw new ConnectorException("Unable to start I/O reactor for tenancy " + configuration.getTenancy(), ire);
+        }
+        this.connectionManager.setMaxTotal(configuration.getMaxConnectionsTotal());
+        this.connectionManager.setDefaultMaxPerRoute(configuration.getMaxConnectionsPerRoute());
+
+        this.httpClient = HttpAsyncClients.custom()
+                .setConnectionManager(this.connectionManager)
+                .setKeepAliveStrategy(Office365Connection.createKeepAliveStrategy(configuration))
+                .build();
+        this.httpClient.start();
+
+        final PoolingNHttpClientConnectionManager pool = this.connectionManager;
+        this.idleConnectionMonitor = new Office365Connection.IdleConnectionMonitor("Office365-AsyncIdleConnectionMonitor", configuration.getConnectionIdleTimeout()) {
+            @Override
+            void evict(long idleTimeoutMillis) {
+                pool.closeExpiredConnections();
+                pool.closeIdleConnections(idleTimeoutMillis, TimeUnit.MILLISECONDS);
+            }
+        };
+        this.idleConnectionMonitor.start();
+
+        final String tenancy = configuration.getTenancy();
+        this.timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "Office365-AsyncDispatch-" + tenancy);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        log.ok("Started async client for tenancy {0}", tenancy);
+    }
+
+    /**
+     * Asynchronous {@link Office365Connection#getRequest(String)}.
+     */
+    public CompletableFuture<JSONObject> getRequest(final String path) {
+        log.info("getRequestAsync({0})", path);
+
+        HttpGet get = new HttpGet(this.connection.getAPIEndPoint(path));
+        get.addHeader("Content-Type", "application/json;odata=verbose");
+        get.addHeader("DataServiceVersion", "1.0;NetFx");
+        get.addHeader("MaxDataServiceVersion", "3.0;NetFx");
+        get.addHeader("Accept", "application/json");
+
+        final CompletableFuture<Response> sent = send(get, false);
+        return cancelling(sent, sent.thenApply(new Function<Response, JSONObject>() {
+            @Override
+            public JSONObject apply(Response response) {
+                if (response.status != HttpStatus.SC_OK) {
+                    throw new ConnectorException("Error on get to " + path + ". Error code: " + response.status + " Received the following response " + response.body);
+                }
+
+                try {
+                    return new JSONObject(response.body.trim());
+                } catch (JSONException je) {
+                    log.error(je, "Error parsing JSON from get request to path {0}", path);
+                    throw new ConnectorException("Exception which converting to JSON " + path, je);
+                }
+            }
+        }));
+    }
+
+    /**
+     * Asynchronous {@link Office365Connection#postRequest(String, JSONObject)}.
+     */
+    public CompletableFuture<Uid> postRequest(String path, JSONObject body) {
+        return postRequest(path, body, false);
+    }
+
+    /**
+     * Asynchronous {@link Office365Connection#postRequest(String, JSONObject, boolean)}.
+     */
+    public CompletableFuture<Uid> postRequest(final String path, final JSONObject body, boolean repeatable) {
+        log.info("postRequestAsync({0})", path);
+
+        HttpPost post = new HttpPost(this.connection.getAPIEndPoint(path));
+        post.addHeader("Content-Type", "application/json;charset=utf-8;odata=verbose");
+        post.addHeader("DataServiceVersion", "3.0;NetFx");
+        post.addHeader("MaxDataServiceVersion", "3.0;NetFx");
+        post.addHeader("Accept", "application/atom+xml");
+        post.setEntity(new StringEntity(body.toString(), "UTF-8"));
+
+        final boolean assignLicense = path.contains("/assignLicense?");
+        final CompletableFuture<Response> sent = send(post, repeatable);
+        return cancelling(sent, sent.thenApply(new Function<Response, Uid>() {
+            @Override
+            public Uid apply(Response response) {
+                // assignLicense returns 200
+                if ((response.status != HttpStatus.SC_CREATED && !assignLicense) || response.status == HttpStatus.SC_BAD_REQUEST) {
+                    log.error("Error on post to {0}. Error code: {1} Received the following response: {2}", path, response.status, response.body);
+                    throw new Office365Exception(response.status, response.body);
+                } else if (assignLicense && response.status == HttpStatus.SC_OK) {
+                    return Office365Connection.SUCCESS_UID;
+                }
+
+                if (response.uid == null) {
+                    log.error("No GUID found on path {0}", path);
+                    throw new ConnectorException("No GUID found for " + path + " and body of " + body.toString());
+                }
+                return response.uid;
+            }
+        }));
+    }
+
+    /**
+     * Asynchronous {@link Office365Connection#patchObject(String, JSONObject)}.
+     */
+    public CompletableFuture<Boolean> patchObject(final String path, final JSONObject body) {
+        log.info("patchRequestAsync({0})", path);
+
+        HttpPatch patch = new HttpPatch(this.connection.getAPIEndPoint(path));
+        patch.addHeader("Content-Type", "application/json;charset=utf-8;odata=verbose");
+        patch.addHeader("DataServiceVersion", "3.0;NetFx");
+        patch.addHeader("MaxDataServiceVersion", "3.0;NetFx");
+        patch.addHeader("Accept", "application/atom+xml");
+        patch.setEntity(new StringEntity(body.toString(), "UTF-8"));
+
+        final CompletableFuture<Response> sent = send(patch, false);
+        return cancelling(sent, sent.thenApply(new Function<Response, Boolean>() {
+            @Override
+            public Boolean apply(Response response) {
+                if (response.status != HttpStatus.SC_NO_CONTENT) {
+                    throw new ConnectorException("Modify Object failed to " + path + " and body of " + body.toString() + ". Error code was " + response.status + ". Received the following response " + response.body);
+                }
+                return Boolean.TRUE;
+            }
+        }));
+    }
+
+    /**
+     * Asynchronous {@link Office365Connection#deleteRequest(String)}.
+     */
+    public CompletableFuture<Boolean> deleteRequest(final String path) {
+        log.info("deleteRequestAsync({0})", path);
+
+        HttpDelete delete = new HttpDelete(this.connection.getAPIEndPoint(path));
+        delete.addHeader("Content-Type", "application/json");
+        delete.addHeader("DataServiceVersion", "3.0;NetFx");
+        delete.addHeader("MaxDataServiceVersion", "3.0;NetFx");
+
+        final CompletableFuture<Response> sent = send(delete, false);
+        return cancelling(sent, sent.thenApply(new Function<Response, Boolean>() {
+            @Override
+            public Boolean apply(Response response) {
+                if (response.status != HttpStatus.SC_NO_CONTENT) {
+                    throw new ConnectorException("Delete Object failed to " + path + ". Error code was " + response.status + ". Received the following response " + response.body);
+                }
+                return Boolean.TRUE;
+            }
+        }));
+    }
+
+    /**
+     * Cancelling a future derived with thenApply does not reach the one it
+     * came from, so pass the cancel back to abort the request itself.
+     */
+    private static <T> CompletableFuture<T> cancelling(final CompletableFuture<Response> sent, final CompletableFuture<T> result) {
+        result.whenComplete(new BiConsumer<T, Throwable>() {
+            @Override
+            public void accept(T value, Throwable t) {
+                if (result.isCancelled()) {
+                    sent.cancel(true);
+                }
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Send a request, completing with its final response once any throttling
+     * and retries are done. Failures to send complete the future with a
+     * ConnectorException caused by the IOException.
+     */
+    private CompletableFuture<Response> send(HttpRequestBase request, boolean repeatable) {
+        final Exchange exchange = new Exchange(request, repeatable || Office365RetryPolicy.isIdempotent(request.getMethod()));
+        exchange.span = this.tracer.start(request);
+        this.exchanges.add(exchange);
+        exchange.future.whenComplete(new BiConsumer<Response, Throwable>() {
+            @Override
+            public void accept(Response response, Throwable t) {
+                exchanges.remove(exchange);
+                if (exchange.future.isCompletedExceptionally()) {
+                    // Cancelled, or failed by close(), so stop it if it is on the wire
+                    exchange.request.abort();
+                }
+            }
+        });
+        if (this.closed) {
+            exchange.future.completeExceptionally(new ConnectorException("Async client for " + this.configuration.getTenancy() + " is closed"));
+            return exchange.future;
+        }
+        schedule(exchange, this.scheduler.reserveDelay());
+        return exchange.future;
+    }
+
+    private void schedule(final Exchange exchange, long delayMillis) {
+        if (delayMillis <= 0) {
+            dispatch(exchange);
+            return;
+        }
+
+        try {
+            this.timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    dispatch(exchange);
+                }
+            }, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ree) {
+            exchange.future.completeExceptionally(new ConnectorException("Async client for " + this.configuration.getTenancy() + " is closed", ree));
+        }
+    }
+
+    private void dispatch(final Exchange exchange) {
+        if (exchange.future.isDone()) {
+            return;
+        }
+
+        // A Retry-After may have arrived whilst this request was waiting
+        long pause = this.scheduler.getPauseRemaining();
+        if (pause > 0) {
+            schedule(exchange, pause);
+            return;
+        }
+
+        // Usually already complete, otherwise continued on the minting thread
+        this.tokenManager.getTokenAsync().whenComplete(new BiConsumer<String, Throwable>() {
+            @Override
+            public void accept(String token, Throwable t) {
+                if (t != null || token == null) {
+                    exchange.future.completeExceptionally(new ConnectorException("Unable to get an access token for " + configuration.getTenancy(), t));
+                    return;
+                }
+                execute(exchange, token);
+            }
+        });
+    }
+
+    private void execute(final Exchange exchange, String token) {
+        if (exchange.future.isDone()) {
+            return;
+        }
+
+        exchange.token = token;
+        exchange.request.setHeader("Authorization", exchange.token);
+        if (exchange.request instanceof HttpEntityEnclosingRequest) {
+            HttpEntity entity = ((HttpEntityEnclosingRequest) exchange.request).getEntity();
+            if (entity != null && entity.getContentLength() > 0) {
+                this.metrics.addBytesSent(entity.getContentLength());
+            }
+        }
+        exchange.started = System.nanoTime();
+        if (exchange.span != null) {
+            exchange.span.sent();
+        }
+
+        try {
+            this.httpClient.execute(exchange.request, new FutureCallback<HttpResponse>() {
+                @Override
+                public void completed(HttpResponse response) {
+                    handleResponse(exchange, response);
+                }
+
+                @Override
+                public void failed(Exception ex) {
+                    handleFailure(exchange, ex);
+                }
+
+                @Override
+                public void cancelled() {
+                    exchange.future.cancel(false);
+                }
+            });
+        } catch (RuntimeException re) {
+            // The client has been shut down
+            exchange.future.completeExceptionally(re);
+        }
+
+        if (exchange.future.isDone()) {
+            // Cancelled whilst being handed to the client, before it could be aborted
+            exchange.request.abort();
+        }
+    }
+
+    private void handleResponse(Exchange exchange, HttpResponse response) {
+        HttpRequestBase request = exchange.request;
+        int status = response.getStatusLine().getStatusCode();
+        this.metrics.recordRequest(request.getMethod(), request.getURI().getPath(), status, exchange.started);
+        exchange.started = 0;
+        if (exchange.span != null) {
+            exchange.span.responded(status);
+        }
+
+        if (status == 429 || status == HttpStatus.SC_SERVICE_UNAVAILABLE) {
+            long retryAfter = Office365Connection.getRetryAfter(response);
+            if (retryAfter < 0 && status == 429) {
+                retryAfter = Office365Connection.DEFAULT_RETRY_AFTER;
+            }
+
+            if (retryAfter >= 0) {
+                this.scheduler.pause(retryAfter);
+                if (exchange.throttleAttempts < this.configuration.getMaxThrottleRetries()) {
+                    EntityUtils.consumeQuietly(response.getEntity());
+                    exchange.throttleAttempts++;
+                    schedule(exchange, this.scheduler.reserveDelay());
+                    return;
+                }
+                log.error("Still throttled after {0} attempt(s), giving up", exchange.throttleAttempts + 1);
+            }
+        }
+
+        if (exchange.retryable && this.retryPolicy.isRetryableStatus(status) && this.retryPolicy.canRetry(exchange.retries)) {
+            log.warn("Received {0} from {1} {2}", status, request.getMethod(), request.getURI().getPath());
+            EntityUtils.consumeQuietly(response.getEntity());
+            retryLater(exchange);
+            return;
+        }
+
+        if (status == HttpStatus.SC_UNAUTHORIZED) {
+            this.tokenManager.invalidate(exchange.token);
+        }
+
+        HttpEntity entity = response.getEntity();
+        try {
+            String body = entity != null ? EntityUtils.toString(entity, "UTF-8") : "";
+            if (entity != null && entity.getContentLength() > 0) {
+                this.metrics.addBytesReceived(entity.getContentLength());
+            }
+            log.info("Response to async {0} {1} : {2}", request.getMethod(), request.getURI().getPath(), response.getStatusLine());
+            if (exchange.span != null) {
+                exchange.span.responseBody(body);
+                exchange.span.finish();
+            }
+            exchange.future.complete(new Response(status, body, status == HttpStatus.SC_CREATED ? this.connection.getCreatedUid(response) : null));
+        } catch (IOException ioe) {
+            handleFailure(exchange, ioe);
+        } finally {
+            EntityUtils.consumeQuietly(entity);
+        }
+    }
+
+    private void handleFailure(Exchange exchange, Exception ex) {
+        HttpRequestBase request = exchange.request;
+        if (exchange.started != 0) {
+            this.metrics.recordRequest(request.getMethod(), request.getURI().getPath(), -1, exchange.started);
+        }
+        if (exchange.retryable && ex instanceof IOException && this.retryPolicy.canRetry(exchange.retries)) {
+            log.warn(ex, "Error sending {0} to {1}", request.getMethod(), request.getURI().getPath());
+            retryLater(exchange);
+            return;
+        }
+
+        log.error(ex, "Error doing async {0} to path {1}", request.getMethod(), request.getURI().getPath());
+        if (exchange.span != null) {
+            exchange.span.failed(ex);
+            exchange.span.finish();
+        }
+        exchange.future.completeExceptionally(new ConnectorException("Exception whilst doing " + request.getMethod() + " to " + request.getURI().getPath(), ex));
+    }
+
+    private void retryLater(Exchange exchange) {
+        long delay = this.retryPolicy.nextDelay(exchange.retries++, exchange.request.getMethod() + " " + exchange.request.getURI().getPath());
+        // The request is rebuilt by the client on each execute, so it can be sent again as is
+        exchange.request.reset();
+        schedule(exchange, delay + this.scheduler.reserveDelay());
+    }
+
+    /**
+     * Shut down the client, requests still waiting to be sent or in flight
+     * are failed.
+     */
+    public void close() {
+        this.closed = true;
+        this.timer.shutdownNow();
+        for (Exchange exchange : new ArrayList<Exchange>(this.exchanges)) {
+            exchange.future.completeExceptionally(new ConnectorException("Async client for " + this.configuration.getTenancy() + " is closed"));
+        }
+        this.idleConnectionMonitor.shutdown();
+        try {
+            this.httpClient.close();
+        } catch (IOException ioe) {
+            log.warn(ioe, "Error closing async HTTP client for tenancy {0}", this.configuration.getTenancy());
+        }
+        log.ok("Closed async client for tenancy {0}", this.configuration.getTenancy());
+    }
+
+    /**
+     * @return the number of pooled connections leased to requests
+     */
+    int getLeasedConnections() {
+        return this.connectionManager.getTotalStats().getLeased();
+    }
+
+    /**
+     * A request in flight, with the state carried between attempts.
+     */
+    private static class Exchange {
+
+        final HttpRequestBase request;
+        final boolean retryable;
+        final CompletableFuture<Response> future = new CompletableFuture<Response>();
+        String token;
+        int throttleAttempts = 0;
+        int retries = 0;
+        long started = 0; // System.nanoTime() of the latest dispatch
+        Office365Tracer.Span span; // null if not traced
+
+        Exchange(HttpRequestBase request, boolean retryable) {
+            this.request = request;
+            this.retryable = retryable;
+        }
+    }
+
+    /**
+     * The parts of a final response the request methods need, read on the
+     * I/O thread so the connection is released straight away.
+     */
+    private static class Response {
+
+        final int status;
+        final String body;
+        final Uid uid;
+
+        Response(int status, String body, Uid uid) {
+            this.status = status;
+            this.body = body;
+            this.uid = uid;
+        }
+    }
+}
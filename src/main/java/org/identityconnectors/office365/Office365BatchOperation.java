@@ -0,0 +1,94 @@
+/*
+ * DO NOT REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2013 Salford Software Ltd. All rights reserved.
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://opensource.org/licenses/cddl1.txt
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://opensource.org/licenses/cddl1.txt
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.office365;
+
+import org.identityconnectors.framework.common.objects.Uid;
+import org.json.JSONObject;
+
+/**
+ * A single create, update or delete sent as part of a $batch request, see
+ * {@link Office365Connection#batchRequest(java.util.List)}.
+ *
+ * @author Paul Heaney
+ */
+public final class Office365BatchOperation {
+
+    private final String method;
+    private final String path;
+    private final JSONObject body;
+    private final Uid uid;
+
+    private Office365BatchOperation(String method, String path, JSONObject body, Uid uid) {
+        this.method = method;
+        this.path = path;
+        this.body = body;
+        this.uid = uid;
+    }
+
+    /**
+     * @param path the collection to create the object in, relative to the tenancy
+     */
+    public static Office365BatchOperation create(String path, JSONObject body) {
+        return new Office365BatchOperation("POST", path, body, null);
+    }
+
+    /**
+     * @param uid the object being updated, returned in its result
+     * @param path the object to update, relative to the tenancy
+     */
+    public static Office365BatchOperation update(Uid uid, String path, JSONObject body) {
+        return new Office365BatchOperation("PATCH", path, body, uid);
+    }
+
+    /**
+     * @param uid the object being deleted, returned in its result
+     * @param path the object to delete, relative to the tenancy
+     */
+    public static Office365BatchOperation delete(Uid uid, String path) {
+        return new Office365BatchOperation("DELETE", path, null, uid);
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public JSONObject getBody() {
+        return body;
+    }
+
+    public Uid getUid() {
+        return uid;
+    }
+
+    /**
+     * @return the status a successful response to this operation has
+     */
+    int getSuccessStatus() {
+        return "POST".equals(this.method) ? 201 : 204;
+    }
+}
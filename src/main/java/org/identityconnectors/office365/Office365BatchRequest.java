@@ -0,0 +1,255 @@
+/*
+ * DO NOT REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2013 Salford Software Ltd. All rights reserved.
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://opensource.org/licenses/cddl1.txt
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://opensource.org/licenses/cddl1.txt
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.office365;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.framework.common.objects.Uid;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Encodes operations as an OData $batch request and maps the parts of the
+ * multipart response back to them.
+ *
+ * Every operation is a change set of its own, so one failing does not roll
+ * back the others. The Graph API accepts at most {@link #MAX_OPERATIONS}
+ * change sets in a batch.
+ *
+ * @author Paul Heaney
+ */
+public class Office365BatchRequest {
+
+    private static final Log log = Log.getLog(Office365BatchRequest.class);
+
+    public static final int MAX_OPERATIONS = 5;
+    private static final String CRLF = "\r\n";
+    private static final Pattern boundaryPattern = Pattern.compile(".*boundary=\"?([^\";]+)\"?.*", Pattern.CASE_INSENSITIVE);
+
+    private final List<Office365BatchOperation> operations;
+    private final String boundary = "batch_" + UUID.randomUUID();
+
+    Office365BatchRequest(List<Office365BatchOperation> operations) {
+        if (operations.size() > MAX_OPERATIONS) {
+            throw new IllegalArgumentException("A batch can contain at most " + MAX_OPERATIONS + " operations");
+        }
+        this.operations = operations;
+    }
+
+    String getContentType() {
+        return "multipart/mixed; boundary=" + this.boundary;
+    }
+
+    /**
+     * @return true if the batch can safely be sent again, which it can't if
+     * it creates anything
+     */
+    boolean isRepeatable() {
+        for (Office365BatchOperation operation : this.operations) {
+            if (!Office365RetryPolicy.isIdempotent(operation.getMethod())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param baseUrl the URL the operation paths are relative to, the tenancy endpoint
+     * @return the multipart body of the batch
+     */
+    String encode(String baseUrl) {
+        StringBuilder sb = new StringBuilder();
+        for (Office365BatchOperation operation : this.operations) {
+            String changeset = "changeset_" + UUID.randomUUID();
+            sb.append("--").append(this.boundary).append(CRLF);
+            sb.append("Content-Type: multipart/mixed; boundary=").append(changeset).append(CRLF);
+            sb.append(CRLF);
+
+            sb.append("--").append(changeset).append(CRLF);
+            sb.append("Content-Type: application/http").append(CRLF);
+            sb.append("Content-Transfer-Encoding: binary").append(CRLF);
+            sb.append(CRLF);
+
+            sb.append(operation.getMethod()).append(' ').append(baseUrl).append(operation.getPath()).append(" HTTP/1.1").append(CRLF);
+            sb.append("Content-Type: application/json;charset=utf-8;odata=verbose").append(CRLF);
+            sb.append("Accept: application/json").append(CRLF);
+            sb.append(CRLF);
+            if (operation.getBody() != null) {
+                sb.append(operation.getBody().toString()).append(CRLF);
+            }
+
+            sb.append("--").append(changeset).append("--").append(CRLF);
+        }
+        sb.append("--").append(this.boundary).append("--").append(CRLF);
+
+        return sb.toString();
+    }
+
+    /**
+     * Map the parts of the batch response to the operations, in order.
+     *
+     * @param contentType the Content-Type of the batch response
+     * @param body the body of the batch response
+     */
+    List<Office365BatchResult> decode(String contentType, String body) {
+        List<Part> parts = new ArrayList<Part>();
+        readParts(contentType, body.replace(CRLF, "\n"), parts);
+
+        if (parts.size() != this.operations.size()) {
+            throw new ConnectorException("Batch response has " + parts.size() + " part(s) for " + this.operations.size() + " operation(s)");
+        }
+
+        List<Office365BatchResult> results = new ArrayList<Office365BatchResult>(parts.size());
+        for (int i = 0; i < parts.size(); i++) {
+            Office365BatchOperation operation = this.operations.get(i);
+            Part part = parts.get(i);
+
+            if (part.status != operation.getSuccessStatus()) {
+                log.error("Batch {0} to {1} failed with {2} : {3}", operation.getMethod(), operation.getPath(), part.status, part.body);
+                results.add(new Office365BatchResult(operation, null, new Office365Exception(part.status, part.body)));
+            } else if (operation.getUid() != null) {
+                results.add(new Office365BatchResult(operation, operation.getUid(), null));
+            } else {
+                Uid uid = getCreatedUid(part);
+                if (uid != null) {
+                    results.add(new Office365BatchResult(operation, uid, null));
+                } else {
+                    log.error("No GUID found in batch response for {0}", operation.getPath());
+                    results.add(new Office365BatchResult(operation, null, new Office365Exception(part.status, "No GUID found in response " + part.body)));
+                }
+            }
+        }
+
+        return results;
+    }
+
+    private static Uid getCreatedUid(Part part) {
+        Uid uid = Office365Connection.getUidFromLocation(part.headers.get("location"));
+        if (uid == null && part.body.length() > 0) {
+            try {
+                String objectId = new JSONObject(part.body).optString("objectId", null);
+                if (objectId != null) {
+                    uid = new Uid(objectId);
+                }
+            } catch (JSONException je) {
+                log.warn(je, "Unable to parse created object {0}", part.body);
+            }
+        }
+        return uid;
+    }
+
+    /**
+     * Collect the HTTP responses in a multipart body, descending into the
+     * change sets. Line endings have already been normalised to \n.
+     */
+    private static void readParts(String contentType, String body, List<Part> parts) {
+        Matcher m = boundaryPattern.matcher(contentType);
+        if (!m.matches()) {
+            throw new ConnectorException("No boundary in batch response content type " + contentType);
+        }
+        String delimiter = "--" + m.group(1);
+
+        int pos = body.indexOf(delimiter);
+        while (pos >= 0) {
+            int start = pos + delimiter.length();
+            if (body.startsWith("--", start)) {
+                break; // close delimiter
+            }
+            start = body.indexOf('\n', start) + 1;
+            int next = body.indexOf(delimiter, start);
+            if (start == 0 || next < 0) {
+                throw new ConnectorException("Unterminated part in batch response");
+            }
+
+            String part = body.substring(start, next);
+            int split = part.indexOf("\n\n");
+            Map<String, String> headers = readHeaders(split >= 0 ? part.substring(0, split) : part);
+            String content = split >= 0 ? part.substring(split + 2) : "";
+
+            String partType = headers.get("content-type");
+            if (partType != null && partType.toLowerCase().startsWith("multipart/")) {
+                readParts(partType, content, parts);
+            } else {
+                parts.add(readResponse(content));
+            }
+
+            pos = next;
+        }
+    }
+
+    /**
+     * Parse an application/http part, a status line, headers and a body.
+     */
+    private static Part readResponse(String content) {
+        int split = content.indexOf("\n\n");
+        String head = split >= 0 ? content.substring(0, split) : content;
+        String body = split >= 0 ? content.substring(split + 2).trim() : "";
+
+        int eol = head.indexOf('\n');
+        String statusLine = eol >= 0 ? head.substring(0, eol) : head;
+        String[] status = statusLine.trim().split(" ");
+        if (status.length < 2) {
+            throw new ConnectorException("Invalid status line in batch response " + statusLine);
+        }
+
+        Part part = new Part();
+        try {
+            part.status = Integer.parseInt(status[1]);
+        } catch (NumberFormatException nfe) {
+            throw new ConnectorException("Invalid status line in batch response " + statusLine, nfe);
+        }
+        part.headers = readHeaders(eol >= 0 ? head.substring(eol + 1) : "");
+        part.body = body;
+        return part;
+    }
+
+    private static Map<String, String> readHeaders(String block) {
+        Map<String, String> headers = new HashMap<String, String>();
+        for (String line : block.split("\n")) {
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+            }
+        }
+        return headers;
+    }
+
+    /**
+     * The response to one operation.
+     */
+    private static class Part {
+
+        int status;
+        Map<String, String> headers;
+        String body;
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * DO NOT REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2013 Salford Software Ltd. All rights reserved.
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://opensource.org/licenses/cddl1.txt
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://opensource.org/licenses/cddl1.txt
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.office365;
+
+import org.identityconnectors.framework.common.objects.Uid;
+
+/**
+ * The outcome of one {@link Office365BatchOperation}, either the Uid of the
+ * object created, updated or deleted, or the error it failed with.
+ *
+ * @author Paul Heaney
+ */
+public final class Office365BatchResult {
+
+    private final Office365BatchOperation operation;
+    private final Uid uid;
+    private final RuntimeException error;
+    private final RuntimeException licenseError;
+
+    Office365BatchResult(Office365BatchOperation operation, Uid uid, RuntimeException error) {
+        this(operation, uid, error, null);
+    }
+
+    private Office365BatchResult(Office365BatchOperation operation, Uid uid, RuntimeException error, RuntimeException licenseError) {
+        this.operation = operation;
+        this.uid = uid;
+        this.error = error;
+        this.licenseError = licenseError;
+    }
+
+    /**
+     * @return a copy of this result for an object whose license could not be
+     * assigned once it had been created or updated
+     */
+    Office365BatchResult withLicenseError(RuntimeException licenseError) {
+        return new Office365BatchResult(this.operation, this.uid, this.error, licenseError);
+    }
+
+    /**
+     * @return the operation, null if it could not be built so was never sent
+     */
+    public Office365BatchOperation getOperation() {
+        return operation;
+    }
+
+    /**
+     * @return the Uid of the object, null if the operation failed
+     */
+    public Uid getUid() {
+        return uid;
+    }
+
+    /**
+     * @return the error the Graph API returned for the operation, null if it
+     * succeeded or failed before being sent
+     */
+    public Office365Exception getException() {
+        return error instanceof Office365Exception ? (Office365Exception) error : null;
+    }
+
+    /**
+     * @return the error the operation failed with, null if it succeeded
+     */
+    public RuntimeException getError() {
+        return error;
+    }
+
+    /**
+     * @return the error assigning the object's license failed with, null if
+     * there was none to assign or it was assigned
+     */
+    public RuntimeException getLicenseError() {
+        return licenseError;
+    }
+
+    /**
+     * @return true if the operation, and the license assignment following
+     * it, succeeded
+     */
+    public boolean isSuccess() {
+        return error == null && licenseError == null;
+    }
+}
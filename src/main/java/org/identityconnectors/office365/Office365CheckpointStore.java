@@ -0,0 +1,204 @@
+/*
+ * DO NOT REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2013 Salford Software Ltd. All rights reserved.
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://opensource.org/licenses/cddl1.txt
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://opensource.org/licenses/cddl1.txt
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.office365;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+import org.identityconnectors.common.logging.Log;
+
+/**
+ * Records how far a long running read has got, such as the page a sync has
+ * reached, in a file per tenancy and operation. A run interrupted by the
+ * connector host restarting can then carry on from the last page it
+ * completed rather than starting again.
+ *
+ * A checkpoint is written to a temp file in the same directory, flushed to
+ * disk and renamed over the previous one, so a crash part way through a
+ * write leaves the previous checkpoint intact. Checkpoints are a best
+ * effort, a failure to read or write one is logged and the run carries on.
+ *
+ * @author Paul Heaney
+ */
+public class Office365CheckpointStore {
+
+    private static final Log log = Log.getLog(Office365CheckpointStore.class);
+
+    private static final String SUFFIX = ".checkpoint";
+    private static final String START = "start";
+    private static final String TOKEN = "token";
+    private static final String UPDATED = "updated";
+
+    private final File directory;
+    private final String tenancy;
+
+    public Office365CheckpointStore(File directory, String tenancy) {
+        this.directory = directory;
+        this.tenancy = tenancy != null ? tenancy.toLowerCase() : "";
+    }
+
+    /**
+     * How far a run has got.
+     */
+    public static class Checkpoint {
+
+        private final String start;
+        private final String token;
+        private final long updated;
+
+        Checkpoint(String start, String token, long updated) {
+            this.start = start;
+            this.token = token;
+            this.updated = updated;
+        }
+
+        /**
+         * @return the token the run started from
+         */
+        public String getStart() {
+            return start;
+        }
+
+        /**
+         * @return the token of the next page to read
+         */
+        public String getToken() {
+            return token;
+        }
+
+        /**
+         * @return when the checkpoint was written, in milliseconds since the epoch
+         */
+        public long getUpdated() {
+            return updated;
+        }
+    }
+
+    /**
+     * @return the last checkpoint of the operation, or null if there is none
+     */
+    public synchronized Checkpoint load(String operation) {
+        File file = getFile(operation);
+        if (!file.isFile()) {
+            return null;
+        }
+
+        Properties properties = new Properties();
+        try {
+            InputStream in = new FileInputStream(file);
+            try {
+                properties.load(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException ioe) {
+            log.warn(ioe, "Unable to read checkpoint {0}", file);
+            return null;
+        }
+
+        String start = properties.getProperty(START);
+        String token = properties.getProperty(TOKEN);
+        if (start == null || token == null) {
+            log.warn("Ignoring incomplete checkpoint {0}", file);
+            return null;
+        }
+
+        long updated = 0;
+        try {
+            updated = Long.parseLong(properties.getProperty(UPDATED, "0"));
+        } catch (NumberFormatException nfe) {
+            log.warn("Invalid update time in checkpoint {0}", file);
+        }
+        return new Checkpoint(start, token, updated);
+    }
+
+    /**
+     * Record that a run from the start token has read every page before the
+     * one with this token.
+     */
+    public synchronized void save(String operation, String start, String token) {
+        File file = getFile(operation);
+        if (!this.directory.isDirectory() && !this.directory.mkdirs()) {
+            log.warn("Unable to create checkpoint directory {0}", this.directory);
+            return;
+        }
+
+        Properties properties = new Properties();
+        properties.setProperty(START, start);
+        properties.setProperty(TOKEN, token);
+        properties.setProperty(UPDATED, String.valueOf(System.currentTimeMillis()));
+
+        File temp = null;
+        try {
+            temp = File.createTempFile(file.getName(), ".tmp", this.directory);
+            FileOutputStream out = new FileOutputStream(temp);
+            try {
+                properties.store(out, "Office 365 " + operation + " checkpoint for " + this.tenancy);
+                out.flush();
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+
+            try {
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException amnse) {
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            temp = null;
+            log.ok("Saved {0} checkpoint {1}", operation, token);
+        } catch (IOException ioe) {
+            log.warn(ioe, "Unable to write checkpoint {0}", file);
+        } finally {
+            if (temp != null && !temp.delete()) {
+                log.warn("Unable to delete {0}", temp);
+            }
+        }
+    }
+
+    /**
+     * Forget the checkpoint of the operation, once its run has completed.
+     */
+    public synchronized void clear(String operation) {
+        File file = getFile(operation);
+        if (file.exists() && !file.delete()) {
+            log.warn("Unable to delete checkpoint {0}", file);
+        }
+    }
+
+    File getFile(String operation) {
+        return new File(this.directory, safeName(this.tenancy) + "." + safeName(operation) + SUFFIX);
+    }
+
+    private static String safeName(String name) {
+        return name.replaceAll("[^A-Za-z0-9._-]", "_");
+    }
+}
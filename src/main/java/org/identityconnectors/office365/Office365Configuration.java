@@ -23,6 +23,8 @@
  */
 package org.identityconnectors.office365;
 
+import java.io.File;
+
 import org.identityconnectors.common.StringUtil;
 import org.identityconnectors.common.security.GuardedString;
 import org.identityconnectors.framework.spi.AbstractConfiguration;
@@ -43,6 +45,7 @@ public class Office365Configuration extends AbstractConfiguration {
     public static final String ENCODE_MS_BASE64_STR = "ms-base64"; // Switch the bits around as per MS UUID encode mechanism, no need to do this for AD connector feed UUID as the AD connector does this
     
     public static final int MAX_RECONNECT_ATTEMPTS = 3; 
+    public static final int MAX_PAGE_SIZE = 999; // Largest $top the Graph API accepts
 
     private final String protocol = "https://"; // Not configurable
     private String apiEndPoint = "graph.windows.net";
@@ -53,6 +56,29 @@ public class Office365Configuration extends AbstractConfiguration {
     private String resourceID = "00000002-0000-0000-c000-000000000000";
     private String acsPrincipalID = "00000001-0000-0000-c000-000000000000";
     private String immutableIDEncodeMechanism = ENCODE_STRAIGHT_BASE64_STR;
+    private int maxConnectionsPerRoute = 20;
+    private int maxConnectionsTotal = 40;
+    private int connectionIdleTimeout = 30; // seconds
+    private int keepAliveTimeout = 60; // seconds, used when the server does not send a Keep-Alive header
+    private int pageSize = 100;
+    private double requestsPerSecond = 20; // 0 for unlimited
+    private int requestBurst = 20;
+    private int maxThrottleRetries = 5;
+    private int maxRetries = 3;
+    private long retryInitialDelay = 500; // ms
+    private long retryMaxDelay = 30000; // ms
+    private boolean compressResponses = true;
+    private int prefetchDepth = 2; // pages, 0 to fetch only when the handler is ready
+    private int searchMemoryBudget = 0; // MB, 0 to never spill search results to disk
+    private int maxConcurrency = 8;
+    private double traceSampleRate = 0; // fraction of requests traced, 0 to disable
+    private int traceBufferSize = 100;
+    private String checkpointDirectory = null; // null to not checkpoint syncs
+    private int userCacheSize = 1000; // users, 0 to not cache
+    private int userCacheTtl = 60; // seconds
+    private int skuCatalogTtl = 3600; // seconds
+    private int skuCatalogFailureTtl = 60; // seconds
+    private String searchSpillDirectory = null; // null for the system temp directory
 
 
     /**
@@ -154,6 +180,259 @@ public class Office365Configuration extends AbstractConfiguration {
     public void setImmutableIDEncodeMechanism(String immutableIDEncodeMechanism) {
         this.immutableIDEncodeMechanism = immutableIDEncodeMechanism;
     }
+
+    @ConfigurationProperty(order = 9, displayMessageKey = "maxConnectionsPerRoute.display",
+            groupMessageKey ="connection.group", helpMessageKey = "maxConnectionsPerRoute.help",
+            confidential = false)
+    public int getMaxConnectionsPerRoute() {
+        return maxConnectionsPerRoute;
+    }
+
+    public void setMaxConnectionsPerRoute(int maxConnectionsPerRoute) {
+        this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+    }
+
+    @ConfigurationProperty(order = 10, displayMessageKey = "maxConnectionsTotal.display",
+            groupMessageKey ="connection.group", helpMessageKey = "maxConnectionsTotal.help",
+            confidential = false)
+    public int getMaxConnectionsTotal() {
+        return maxConnectionsTotal;
+    }
+
+    public void setMaxConnectionsTotal(int maxConnectionsTotal) {
+        this.maxConnectionsTotal = maxConnectionsTotal;
+    }
+
+    @ConfigurationProperty(order = 11, displayMessageKey = "connectionIdleTimeout.display",
+            groupMessageKey ="connection.group", helpMessageKey = "connectionIdleTimeout.help",
+            confidential = false)
+    public int getConnectionIdleTimeout() {
+        return connectionIdleTimeout;
+    }
+
+    public void setConnectionIdleTimeout(int connectionIdleTimeout) {
+        this.connectionIdleTimeout = connectionIdleTimeout;
+    }
+
+    @ConfigurationProperty(order = 12, displayMessageKey = "keepAliveTimeout.display",
+            groupMessageKey ="connection.group", helpMessageKey = "keepAliveTimeout.help",
+            confidential = false)
+    public int getKeepAliveTimeout() {
+        return keepAliveTimeout;
+    }
+
+    public void setKeepAliveTimeout(int keepAliveTimeout) {
+        this.keepAliveTimeout = keepAliveTimeout;
+    }
+
+    @ConfigurationProperty(order = 13, displayMessageKey = "pageSize.display",
+            groupMessageKey ="search.group", helpMessageKey = "pageSize.help",
+            confidential = false)
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    public void setPageSize(int pageSize) {
+        this.pageSize = pageSize;
+    }
+
+    @ConfigurationProperty(order = 14, displayMessageKey = "requestsPerSecond.display",
+            groupMessageKey ="connection.group", helpMessageKey = "requestsPerSecond.help",
+            confidential = false)
+    public double getRequestsPerSecond() {
+        return requestsPerSecond;
+    }
+
+    public void setRequestsPerSecond(double requestsPerSecond) {
+        this.requestsPerSecond = requestsPerSecond;
+    }
+
+    @ConfigurationProperty(order = 15, displayMessageKey = "requestBurst.display",
+            groupMessageKey ="connection.group", helpMessageKey = "requestBurst.help",
+            confidential = false)
+    public int getRequestBurst() {
+        return requestBurst;
+    }
+
+    public void setRequestBurst(int requestBurst) {
+        this.requestBurst = requestBurst;
+    }
+
+    @ConfigurationProperty(order = 16, displayMessageKey = "maxThrottleRetries.display",
+            groupMessageKey ="connection.group", helpMessageKey = "maxThrottleRetries.help",
+            confidential = false)
+    public int getMaxThrottleRetries() {
+        return maxThrottleRetries;
+    }
+
+    public void setMaxThrottleRetries(int maxThrottleRetries) {
+        this.maxThrottleRetries = maxThrottleRetries;
+    }
+
+    @ConfigurationProperty(order = 17, displayMessageKey = "maxRetries.display",
+            groupMessageKey ="connection.group", helpMessageKey = "maxRetries.help",
+            confidential = false)
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    public void setMaxRetries(int maxRetries) {
+        this.maxRetries = maxRetries;
+    }
+
+    @ConfigurationProperty(order = 18, displayMessageKey = "retryInitialDelay.display",
+            groupMessageKey ="connection.group", helpMessageKey = "retryInitialDelay.help",
+            confidential = false)
+    public long getRetryInitialDelay() {
+        return retryInitialDelay;
+    }
+
+    public void setRetryInitialDelay(long retryInitialDelay) {
+        this.retryInitialDelay = retryInitialDelay;
+    }
+
+    @ConfigurationProperty(order = 19, displayMessageKey = "retryMaxDelay.display",
+            groupMessageKey ="connection.group", helpMessageKey = "retryMaxDelay.help",
+            confidential = false)
+    public long getRetryMaxDelay() {
+        return retryMaxDelay;
+    }
+
+    public void setRetryMaxDelay(long retryMaxDelay) {
+        this.retryMaxDelay = retryMaxDelay;
+    }
+
+    @ConfigurationProperty(order = 20, displayMessageKey = "compressResponses.display",
+            groupMessageKey ="connection.group", helpMessageKey = "compressResponses.help",
+            confidential = false)
+    public boolean isCompressResponses() {
+        return compressResponses;
+    }
+
+    public void setCompressResponses(boolean compressResponses) {
+        this.compressResponses = compressResponses;
+    }
+
+    @ConfigurationProperty(order = 21, displayMessageKey = "prefetchDepth.display",
+            groupMessageKey ="search.group", helpMessageKey = "prefetchDepth.help",
+            confidential = false)
+    public int getPrefetchDepth() {
+        return prefetchDepth;
+    }
+
+    public void setPrefetchDepth(int prefetchDepth) {
+        this.prefetchDepth = prefetchDepth;
+    }
+
+    @ConfigurationProperty(order = 22, displayMessageKey = "searchMemoryBudget.display",
+            groupMessageKey ="search.group", helpMessageKey = "searchMemoryBudget.help",
+            confidential = false)
+    public int getSearchMemoryBudget() {
+        return searchMemoryBudget;
+    }
+
+    public void setSearchMemoryBudget(int searchMemoryBudget) {
+        this.searchMemoryBudget = searchMemoryBudget;
+    }
+
+    @ConfigurationProperty(order = 23, displayMessageKey = "maxConcurrency.display",
+            groupMessageKey ="connection.group", helpMessageKey = "maxConcurrency.help",
+            confidential = false)
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    public void setMaxConcurrency(int maxConcurrency) {
+        this.maxConcurrency = maxConcurrency;
+    }
+
+    @ConfigurationProperty(order = 24, displayMessageKey = "traceSampleRate.display",
+            groupMessageKey ="diagnostics.group", helpMessageKey = "traceSampleRate.help",
+            confidential = false)
+    public double getTraceSampleRate() {
+        return traceSampleRate;
+    }
+
+    public void setTraceSampleRate(double traceSampleRate) {
+        this.traceSampleRate = traceSampleRate;
+    }
+
+    @ConfigurationProperty(order = 25, displayMessageKey = "traceBufferSize.display",
+            groupMessageKey ="diagnostics.group", helpMessageKey = "traceBufferSize.help",
+            confidential = false)
+    public int getTraceBufferSize() {
+        return traceBufferSize;
+    }
+
+    public void setTraceBufferSize(int traceBufferSize) {
+        this.traceBufferSize = traceBufferSize;
+    }
+
+    @ConfigurationProperty(order = 26, displayMessageKey = "checkpointDirectory.display",
+            groupMessageKey ="sync.group", helpMessageKey = "checkpointDirectory.help",
+            confidential = false)
+    public String getCheckpointDirectory() {
+        return checkpointDirectory;
+    }
+
+    public void setCheckpointDirectory(String checkpointDirectory) {
+        this.checkpointDirectory = checkpointDirectory;
+    }
+
+    @ConfigurationProperty(order = 27, displayMessageKey = "userCacheSize.display",
+            groupMessageKey ="search.group", helpMessageKey = "userCacheSize.help",
+            confidential = false)
+    public int getUserCacheSize() {
+        return userCacheSize;
+    }
+
+    public void setUserCacheSize(int userCacheSize) {
+        this.userCacheSize = userCacheSize;
+    }
+
+    @ConfigurationProperty(order = 28, displayMessageKey = "userCacheTtl.display",
+            groupMessageKey ="search.group", helpMessageKey = "userCacheTtl.help",
+            confidential = false)
+    public int getUserCacheTtl() {
+        return userCacheTtl;
+    }
+
+    public void setUserCacheTtl(int userCacheTtl) {
+        this.userCacheTtl = userCacheTtl;
+    }
+
+    @ConfigurationProperty(order = 29, displayMessageKey = "skuCatalogTtl.display",
+            groupMessageKey ="license.group", helpMessageKey = "skuCatalogTtl.help",
+            confidential = false)
+    public int getSkuCatalogTtl() {
+        return skuCatalogTtl;
+    }
+
+    public void setSkuCatalogTtl(int skuCatalogTtl) {
+        this.skuCatalogTtl = skuCatalogTtl;
+    }
+
+    @ConfigurationProperty(order = 30, displayMessageKey = "skuCatalogFailureTtl.display",
+            groupMessageKey ="license.group", helpMessageKey = "skuCatalogFailureTtl.help",
+            confidential = false)
+    public int getSkuCatalogFailureTtl() {
+        return skuCatalogFailureTtl;
+    }
+
+    public void setSkuCatalogFailureTtl(int skuCatalogFailureTtl) {
+        this.skuCatalogFailureTtl = skuCatalogFailureTtl;
+    }
+
+    @ConfigurationProperty(order = 31, displayMessageKey = "searchSpillDirectory.display",
+            groupMessageKey ="search.group", helpMessageKey = "searchSpillDirectory.help",
+            confidential = false)
+    public String getSearchSpillDirectory() {
+        return searchSpillDirectory;
+    }
+
+    public void setSearchSpillDirectory(String searchSpillDirectory) {
+        this.searchSpillDirectory = searchSpillDirectory;
+    }
     
     /**
      * {@inheritDoc}
@@ -190,6 +469,94 @@ public class Office365Configuration extends AbstractConfiguration {
         if (StringUtil.isBlank(immutableIDEncodeMechanism)) {
             throw new IllegalArgumentException("ACS Principal ID cannot be null or empty.");
         }
+
+        if (maxConnectionsPerRoute < 1) {
+            throw new IllegalArgumentException("Max connections per route must be at least 1.");
+        }
+
+        if (maxConnectionsTotal < maxConnectionsPerRoute) {
+            throw new IllegalArgumentException("Max connections total cannot be less than max connections per route.");
+        }
+
+        if (connectionIdleTimeout < 1) {
+            throw new IllegalArgumentException("Connection idle timeout must be at least 1 second.");
+        }
+
+        if (keepAliveTimeout < 1) {
+            throw new IllegalArgumentException("Keep alive timeout must be at least 1 second.");
+        }
+
+        if (pageSize < 1 || pageSize > MAX_PAGE_SIZE) {
+            throw new IllegalArgumentException("Page size must be between 1 and " + MAX_PAGE_SIZE + ".");
+        }
+
+        if (requestsPerSecond < 0) {
+            throw new IllegalArgumentException("Requests per second cannot be negative.");
+        }
+
+        if (requestBurst < 1) {
+            throw new IllegalArgumentException("Request burst must be at least 1.");
+        }
+
+        if (maxThrottleRetries < 0) {
+            throw new IllegalArgumentException("Max throttle retries cannot be negative.");
+        }
+
+        if (maxRetries < 0) {
+            throw new IllegalArgumentException("Max retries cannot be negative.");
+        }
+
+        if (retryInitialDelay < 1) {
+            throw new IllegalArgumentException("Retry initial delay must be at least 1 millisecond.");
+        }
+
+        if (retryMaxDelay < retryInitialDelay) {
+            throw new IllegalArgumentException("Retry max delay cannot be less than the retry initial delay.");
+        }
+
+        if (prefetchDepth < 0) {
+            throw new IllegalArgumentException("Prefetch depth cannot be negative.");
+        }
+
+        if (searchMemoryBudget < 0) {
+            throw new IllegalArgumentException("Search memory budget cannot be negative.");
+        }
+
+        if (StringUtil.isNotBlank(searchSpillDirectory) && new File(searchSpillDirectory).isFile()) {
+            throw new IllegalArgumentException("Search spill directory cannot be a file.");
+        }
+
+        if (maxConcurrency < 1) {
+            throw new IllegalArgumentException("Max concurrency must be at least 1.");
+        }
+
+        if (traceSampleRate < 0 || traceSampleRate > 1) {
+            throw new IllegalArgumentException("Trace sample rate must be between 0 and 1.");
+        }
+
+        if (traceBufferSize < 1) {
+            throw new IllegalArgumentException("Trace buffer size must be at least 1.");
+        }
+
+        if (StringUtil.isNotBlank(checkpointDirectory) && new File(checkpointDirectory).isFile()) {
+            throw new IllegalArgumentException("Checkpoint directory cannot be a file.");
+        }
+
+        if (userCacheSize < 0) {
+            throw new IllegalArgumentException("User cache size cannot be negative.");
+        }
+
+        if (userCacheTtl < 0) {
+            throw new IllegalArgumentException("User cache TTL cannot be negative.");
+        }
+
+        if (skuCatalogTtl < 1) {
+            throw new IllegalArgumentException("SKU catalog TTL must be at least one second.");
+        }
+
+        if (skuCatalogFailureTtl < 1) {
+            throw new IllegalArgumentException("SKU catalog failure TTL must be at least one second.");
+        }
     }
 
 }
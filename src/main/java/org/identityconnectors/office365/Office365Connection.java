@@ -24,35 +24,46 @@
 package org.identityconnectors.office365;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.Reader;
 import java.io.UnsupportedEncodingException;
-import java.net.URI;
-import java.net.URISyntaxException;
+import java.net.URLEncoder;
+import java.nio.charset.UnsupportedCharsetException;
+import java.util.ArrayList;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
 import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
 import org.apache.http.client.ClientProtocolException;
-import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpDelete;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPatch;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
 import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.HttpClientBuilder;
-import org.identityconnectors.common.Base64;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
+import org.identityconnectors.common.StringUtil;
 import org.identityconnectors.common.logging.Log;
-import org.identityconnectors.common.security.GuardedString;
 import org.identityconnectors.framework.common.exceptions.ConnectorException;
 import org.identityconnectors.framework.common.objects.Uid;
 import org.identityconnectors.office365.domain.Office365Domain;
 import org.identityconnectors.office365.domain.Office365FederatedDomain;
 import org.identityconnectors.office365.domain.Office365ManagedDomain;
-import org.identityconnectors.office365.jsontoken.JWTTokenHelper;
-import org.identityconnectors.office365.jsontoken.JsonWebToken;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -67,112 +78,117 @@ public class Office365Connection {
 
     static Log log = Log.getLog(Office365Connection.class);
     private Office365Configuration configuration;
-    private String token = null; // TODO Handle expiring tokens
+    private final Office365TenantResources resources;
+    private final Office365TokenManager tokenManager;
     public static final String API_VERSION = "2013-11-08";
     public static final Uid SUCCESS_UID = new Uid("fffffff-ffff-ffff-ffff-ffffffffffff");
-    private Pattern directoryObjectGUIDPattern = Pattern.compile(".*directoryObjects/([0-9a-fA-F]{8}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{12})/.*");
-    private HashMap<String, String> servicePlanIDs = null; // Hashmap of servicePlanName, servicePlanId
-    private HashMap<String, Office365License> licenses = null; // partNumber, O365License Can you have more than one of the same plan? 
-    private HashMap<String, Office365Domain> verifiedDomains = null;
+    private static final Pattern skipTokenPattern = Pattern.compile(".*[?&]\\$skiptoken=([^&]+).*");
+    private static final Pattern deltaTokenPattern = Pattern.compile(".*[?&]deltaLink=([^&]+).*");
+    private static final Pattern directoryObjectGUIDPattern = Pattern.compile(".*directoryObjects/([0-9a-fA-F]{8}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{12})/.*");
+    private CloseableHttpClient httpClient;
+    private Office365RequestScheduler scheduler;
+    private Office365RetryPolicy retryPolicy;
+    private Office365AsyncClient asyncClient = null;
+    private Office365TaskExecutor taskExecutor = null;
+    private final Office365Metrics metrics;
+    private final Office365Tracer tracer;
+    private final Office365CheckpointStore checkpointStore;
+    private final Office365SkuCatalog.Source skuSource = new Office365SkuCatalog.Source() {
+        @Override
+        public JSONObject fetch() {
+            return getRequest("/subscribedSkus?api-version=" + Office365Connection.API_VERSION);
+        }
+    };
+    static final long DEFAULT_RETRY_AFTER = 5000; // ms, when a 429 has no Retry-After header
 
     public static Office365Connection createConnection(Office365Configuration configuration) {
-        String token = createToken(configuration);
-        return new Office365Connection(configuration, token);
+        Office365Connection connection = new Office365Connection(configuration);
+        try {
+            connection.getToken();
+        } catch (RuntimeException re) {
+            connection.dispose();
+            throw re;
+        }
+        return connection;
     }
 
-    private Office365Connection(Office365Configuration configuration, String token) {
+    private Office365Connection(Office365Configuration configuration) {
         this.configuration = configuration;
-        this.token = token;
+        this.metrics = Office365Metrics.forTenancy(configuration.getTenancy());
+        this.tracer = Office365Tracer.forTenancy(configuration);
+        this.resources = Office365TenantResources.acquire(configuration);
+        this.tokenManager = this.resources.getTokenManager();
+        this.httpClient = this.resources.getHttpClient();
+        this.scheduler = this.resources.getScheduler();
+        this.retryPolicy = new Office365RetryPolicy(configuration);
+        if (StringUtil.isNotBlank(configuration.getCheckpointDirectory())) {
+            this.checkpointStore = new Office365CheckpointStore(new File(configuration.getCheckpointDirectory()), configuration.getTenancy());
+        } else {
+            this.checkpointStore = null;
+        }
         log.ok("New Office365Connection for tenancy {0}", configuration.getTenancy());
     }
 
-    public static String createToken(Office365Configuration configuration) {
-        log.info("createConnection");
-        JsonWebToken webToken;
-
-        try {
-            webToken = new JsonWebToken(configuration.getPrincipalID(),
-                    configuration.getTenancy(),
-                    (new URI(configuration.getAuthURL())).getHost(),
-                    configuration.getAcsPrincipalID(),
-                    JWTTokenHelper.getCurrentDateTime(),
-                    60 * 60);
-
-            final String[] clearText = new String[1];
-            GuardedString.Accessor accessor = new GuardedString.Accessor() {
-                @Override
-                public void access(char[] clearChars) {
-                    clearText[0] = new String(clearChars);
-
+    /**
+     * Keep connections alive for as long as the server allows, up to the
+     * configured keep alive timeout.
+     */
+    static ConnectionKeepAliveStrategy createKeepAliveStrategy(Office365Configuration configuration) {
+        final long keepAliveMillis = TimeUnit.SECONDS.toMillis(configuration.getKeepAliveTimeout());
+        return new ConnectionKeepAliveStrategy() {
+            @Override
+            public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+                long duration = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+                if (duration > 0) {
+                    return Math.min(duration, keepAliveMillis);
                 }
-            };
-            configuration.getSymetricKey().access(accessor);
-
-            try {
-                String assertion = JWTTokenHelper.generateAssertion(webToken, clearText[0]);
-                String resource = String.format("%s/%s@%s", configuration.getResourceID(), configuration.getApiEndPoint(), configuration.getTenancy());
-                String token = JWTTokenHelper.getOAuthAccessTokenFromACS(configuration.getAuthURL(), assertion, resource);
-                return token;
-            } catch (Exception e) {
-                log.error("Error creating token, error {0}", e);
+                return keepAliveMillis;
             }
-        } catch (URISyntaxException use) {
-            log.error("Error connecting to authetication server {0} error is {1}", configuration.getAuthURL(), use);
-        }
+        };
+    }
 
-        return null;
+    public static String createToken(Office365Configuration configuration) {
+        log.info("createConnection");
+        Office365TokenManager.AccessToken token = Office365TokenManager.requestToken(configuration);
+        return token != null ? token.getValue() : null;
     }
 
     private String getToken() {
         log.info("getToken called");
-        if (this.token == null) {
-            log.info("No currently valid token attempting to retrieve");
-            int count = 0;
-            while (count < Office365Configuration.MAX_RECONNECT_ATTEMPTS) {
-                this.token = createToken(this.configuration);
-                if (this.token != null) {
-                    break;
-                } else {
-                    log.info("Failed to get token, attempting againt, request {0} of {1}", count, Office365Configuration.MAX_RECONNECT_ATTEMPTS);
-                }
-                count++;
-            }
-        }
-
-        return this.token;
+        return this.tokenManager.getToken();
     }
 
-    private void invalidateToken() {
-        log.info("Token invalidated");
-        this.token = null;
+    /**
+     * Only called on a 401, other errors say nothing about the token.
+     */
+    private void invalidateToken(String token) {
+        this.tokenManager.invalidate(token);
     }
 
     public JSONObject getRequest(String path) {
-        log.info("getRequest(" + path + ")");
+        log.info("getRequest({0})", path);
 
         HttpGet get = new HttpGet(getAPIEndPoint(path));
 
-        get.addHeader("Authorization", this.getToken());
-        get.addHeader("Content-Type", "application/json;odata=verbose");
-        get.addHeader("DataServiceVersion", "1.0;NetFx");
-        get.addHeader("MaxDataServiceVersion", "3.0;NetFx");
-        get.addHeader("Accept", "application/json");
-
-        HttpClient httpClient = HttpClientBuilder.create().build();
+        String token = this.getToken();
+        addGetHeaders(get, token);
 
+        HttpEntity entity = null;
         try {
-            HttpResponse response = httpClient.execute(get);
-            HttpEntity entity = response.getEntity();
+            HttpResponse response = this.execute(get, false);
+            entity = response.getEntity();
 
             if (response.getStatusLine().getStatusCode() != 200) {
                 log.error("An error occured running a get operation");
-                this.invalidateToken();
+                if (response.getStatusLine().getStatusCode() == HttpStatus.SC_UNAUTHORIZED) {
+                    this.invalidateToken(token);
+                }
                 StringBuffer sb = new StringBuffer();
                 if (entity != null && entity.getContent() != null) {
                     BufferedReader in = new BufferedReader(new InputStreamReader(entity.getContent()));
                     String s = null;
 
-                    log.info("Response :{0}", response.getStatusLine().toString());
+                    log.info("Response :{0}", response.getStatusLine());
 
                     while ((s = in.readLine()) != null) {
                         sb.append(s);
@@ -185,15 +201,13 @@ public class Office365Connection {
                     BufferedReader in = new BufferedReader(new InputStreamReader(entity.getContent()));
                     String s = null;
 
-                    log.info("Response :{0}", response.getStatusLine().toString());
+                    log.info("Response :{0}", response.getStatusLine());
 
                     while ((s = in.readLine()) != null) {
                         sb.append(s);
                     }
                 }
 
-                log.info("Received in response to getRequest ({0}) : {1}", path, sb.toString().trim());
-
                 return new JSONObject(sb.toString().trim());
             }
         } catch (ClientProtocolException cpe) {
@@ -201,19 +215,367 @@ public class Office365Connection {
             throw new ConnectorException("Exception whilst doing GET to " + path);
         } catch (IOException ioe) {
             log.error(ioe, "IOE Error doing getRequest to path {0}", path);
-            throw new ConnectorException("Exception whilst doing GET to " + path);
+            throw new ConnectorException("Exception whilst doing GET to " + path, ioe);
         } catch (JSONException je) {
             log.error(je, "Error parsing JSON from get request to path {0}", path);
             throw new ConnectorException("Exception which converting to JSON " + path);
+        } finally {
+            EntityUtils.consumeQuietly(entity);
         }
     }
 
+    /**
+     * GET a single object, sending the ETag of a copy already held so an
+     * unchanged object comes back as a 304 without its body.
+     *
+     * @param held the copy already held, or null if there is none
+     * @return the object as it is now, a new entry for the copy held if it
+     * has not changed, or null if there is no such object
+     */
+    public Office365UserCache.Entry getConditionalRequest(String path, Office365UserCache.Entry held) {
+        log.info("getConditionalRequest({0})", path);
+
+        HttpGet get = new HttpGet(getAPIEndPoint(path));
+
+        String token = this.getToken();
+        addGetHeaders(get, token);
+        if (held != null && held.getETag() != null) {
+            get.addHeader("If-None-Match", held.getETag());
+        }
+
+        HttpEntity entity = null;
+        try {
+            HttpResponse response = this.execute(get, false);
+            entity = response.getEntity();
+            int status = response.getStatusLine().getStatusCode();
+
+            if (status == HttpStatus.SC_NOT_MODIFIED && held != null) {
+                log.info("{0} has not changed", path);
+                return new Office365UserCache.Entry(held.getObject(), held.getETag());
+            } else if (status == HttpStatus.SC_NOT_FOUND) {
+                log.info("{0} does not exist", path);
+                return null;
+            } else if (status != 200) {
+                log.error("An error occured running a conditional get operation");
+                if (status == HttpStatus.SC_UNAUTHORIZED) {
+                    this.invalidateToken(token);
+                }
+                String body = entity != null ? EntityUtils.toString(entity) : "";
+                throw new ConnectorException("Error on get to " + path + ". Error code: " + status + " Received the following response " + body);
+            } else if (entity == null) {
+                throw new ConnectorException("Empty response on get to " + path);
+            }
+
+            Header etag = response.getFirstHeader("ETag");
+            JSONObject object = new JSONObject(EntityUtils.toString(entity, "UTF-8").trim());
+            return new Office365UserCache.Entry(object, etag != null ? etag.getValue() : null);
+        } catch (ClientProtocolException cpe) {
+            log.error(cpe, "Error doing getConditionalRequest to path {0}", path);
+            throw new ConnectorException("Exception whilst doing GET to " + path);
+        } catch (IOException ioe) {
+            log.error(ioe, "IOE Error doing getConditionalRequest to path {0}", path);
+            throw new ConnectorException("Exception whilst doing GET to " + path, ioe);
+        } catch (JSONException je) {
+            log.error(je, "Error parsing JSON from conditional get request to path {0}", path);
+            throw new ConnectorException("Exception which converting to JSON " + path);
+        } finally {
+            EntityUtils.consumeQuietly(entity);
+        }
+    }
+
+    /**
+     * GET a collection and stream the elements of its value array to the
+     * handler as they are read from the response, without buffering the page.
+     *
+     * @param headers any headers to send as well as the usual ones
+     * @return the other top level properties of the page, such as the next link
+     */
+    public <T> Office365PageReader.Page getPagedRequest(String path, Office365PageReader.ItemDecoder<T> decoder, Office365PageReader.ItemHandler<T> handler,
+            Header... headers) {
+        log.info("getPagedRequest({0})", path);
+
+        HttpGet get = new HttpGet(getAPIEndPoint(path));
+
+        String token = this.getToken();
+        addGetHeaders(get, token);
+        for (Header header : headers) {
+            get.addHeader(header);
+        }
+
+        HttpEntity entity = null;
+        try {
+            HttpResponse response = this.execute(get, false);
+            entity = response.getEntity();
+
+            if (response.getStatusLine().getStatusCode() != 200) {
+                log.error("An error occured running a paged get operation");
+                if (response.getStatusLine().getStatusCode() == HttpStatus.SC_UNAUTHORIZED) {
+                    this.invalidateToken(token);
+                }
+                String body = entity != null ? EntityUtils.toString(entity) : "";
+                throw new ConnectorException("Error on get to " + path + ". Error code: " + response.getStatusLine().getStatusCode() + " Received the following response " + body);
+            } else if (entity == null) {
+                throw new ConnectorException("Empty response on get to " + path);
+            }
+
+            Reader reader = new InputStreamReader(entity.getContent(), "UTF-8");
+            Office365PageReader.Page page = Office365PageReader.read(reader, decoder, handler);
+            if (page.isStopped()) {
+                // Don't drain the rest of the page, the connection is discarded instead
+                get.abort();
+                entity = null;
+            }
+            log.info("Read {0} item(s) in response to getPagedRequest ({1})", page.getItemCount(), path);
+
+            return page;
+        } catch (ClientProtocolException cpe) {
+            log.error(cpe, "Error doing getPagedRequest to path {0}", path);
+            throw new ConnectorException("Exception whilst doing GET to " + path);
+        } catch (IOException ioe) {
+            log.error(ioe, "IOE Error doing getPagedRequest to path {0}", path);
+            throw new ConnectorException("Exception whilst doing GET to " + path, ioe);
+        } catch (JSONException je) {
+            log.error(je, "Error parsing JSON from paged get request to path {0}", path);
+            throw new ConnectorException("Exception which converting to JSON " + path);
+        } finally {
+            EntityUtils.consumeQuietly(entity);
+        }
+    }
+
+    /**
+     * Send a request through the tenancy's scheduler. A 429, or a 503 with a
+     * Retry-After, pauses all dispatch to the tenancy for the requested time
+     * and the request is then sent again.
+     *
+     * Connection errors and other 5xx responses are retried with backoff if
+     * the request is idempotent, or the caller has said it is safe to repeat.
+     */
+    private HttpResponse execute(HttpRequestBase request, boolean repeatable) throws IOException {
+        Office365Tracer.Span span = this.tracer.start(request);
+        if (span == null) {
+            return send(request, repeatable, null);
+        }
+
+        try {
+            HttpResponse response = send(request, repeatable, span);
+            span.response(response);
+            return response;
+        } catch (IOException ioe) {
+            span.failed(ioe);
+            throw ioe;
+        } catch (RuntimeException re) {
+            span.failed(re);
+            throw re;
+        } finally {
+            span.finish();
+        }
+    }
+
+    private HttpResponse send(HttpRequestBase request, boolean repeatable, Office365Tracer.Span span) throws IOException {
+        boolean retryable = repeatable || Office365RetryPolicy.isIdempotent(request.getMethod());
+        int throttleAttempts = 0;
+        int retries = 0;
+        while (true) {
+            HttpResponse response;
+            try {
+                this.scheduler.acquire();
+                countBytesSent(request);
+                if (span != null) {
+                    span.sent();
+                }
+                long started = System.nanoTime();
+                try {
+                    response = this.httpClient.execute(request);
+                } catch (IOException ioe) {
+                    this.metrics.recordRequest(request.getMethod(), request.getURI().getPath(), -1, started);
+                    if (retryable && this.retryPolicy.canRetry(retries)) {
+                        log.warn(ioe, "Error sending {0} to {1}", request.getMethod(), request.getURI().getPath());
+                        this.retryPolicy.backoff(retries++, request.getMethod() + " " + request.getURI().getPath());
+                        continue;
+                    }
+                    throw ioe;
+                }
+
+                int status = response.getStatusLine().getStatusCode();
+                this.metrics.recordRequest(request.getMethod(), request.getURI().getPath(), status, started);
+                if (span != null) {
+                    span.responded(status);
+                }
+                if (status == 429 || status == HttpStatus.SC_SERVICE_UNAVAILABLE) {
+                    long retryAfter = getRetryAfter(response);
+                    if (retryAfter < 0 && status == 429) {
+                        retryAfter = DEFAULT_RETRY_AFTER;
+                    }
+
+                    if (retryAfter >= 0) {
+                        this.scheduler.pause(retryAfter);
+                        if (throttleAttempts >= this.configuration.getMaxThrottleRetries()) {
+                            log.error("Still throttled after {0} attempt(s), giving up", throttleAttempts + 1);
+                            return response;
+                        }
+
+                        EntityUtils.consumeQuietly(response.getEntity());
+                        throttleAttempts++;
+                        continue;
+                    }
+                    // Unavailable but not throttling us, treat as any other server error
+                }
+
+                if (retryable && this.retryPolicy.isRetryableStatus(status) && this.retryPolicy.canRetry(retries)) {
+                    log.warn("Received {0} from {1} {2}", status, request.getMethod(), request.getURI().getPath());
+                    EntityUtils.consumeQuietly(response.getEntity());
+                    this.retryPolicy.backoff(retries++, request.getMethod() + " " + request.getURI().getPath());
+                    continue;
+                }
+
+                return response;
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new ConnectorException("Interrupted sending request to " + request.getURI().getPath(), ie);
+            }
+        }
+    }
+
+    private void countBytesSent(HttpRequestBase request) {
+        if (request instanceof HttpEntityEnclosingRequest) {
+            HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+            if (entity != null && entity.getContentLength() > 0) {
+                this.metrics.addBytesSent(entity.getContentLength());
+            }
+        }
+    }
+
+    /**
+     * @return the Retry-After of the response in milliseconds, or -1 if there is none
+     */
+    static long getRetryAfter(HttpResponse response) {
+        Header header = response.getFirstHeader("Retry-After");
+        if (header == null || header.getValue() == null) {
+            return -1;
+        }
+
+        String value = header.getValue().trim();
+        try {
+            return Math.max(0, TimeUnit.SECONDS.toMillis(Long.parseLong(value)));
+        } catch (NumberFormatException nfe) {
+            Date date = DateUtils.parseDate(value);
+            if (date != null) {
+                return Math.max(0, date.getTime() - System.currentTimeMillis());
+            }
+        }
+
+        log.warn("Unable to parse Retry-After of {0}", value);
+        return -1;
+    }
+
+    /**
+     * @return the non-blocking client for this connection, sharing its token,
+     * scheduler and retry policy, started on first use
+     */
+    public synchronized Office365AsyncClient getAsyncClient() {
+        if (this.asyncClient == null) {
+            this.asyncClient = new Office365AsyncClient(this, this.configuration, this.tokenManager, this.scheduler, this.retryPolicy);
+        }
+        return this.asyncClient;
+    }
+
+    /**
+     * @return the executor for running independent requests concurrently,
+     * created on first use
+     */
+    public synchronized Office365TaskExecutor getTaskExecutor() {
+        if (this.taskExecutor == null) {
+            this.taskExecutor = new Office365TaskExecutor(this.scheduler, this.configuration.getTenancy());
+        }
+        return this.taskExecutor;
+    }
+
+    /**
+     * @return the number of response body bytes received, before decompression
+     */
+    public long getReceivedBytes() {
+        return this.resources.getContentEncoding().getReceivedBytes();
+    }
+
+    /**
+     * @return the number of response body bytes read, after decompression
+     */
+    public long getDecodedBytes() {
+        return this.resources.getContentEncoding().getDecodedBytes();
+    }
+
+    /**
+     * @return the operational metrics of the tenancy
+     */
+    public Office365Metrics getMetrics() {
+        return this.metrics;
+    }
+
+    /**
+     * @return the tenancy requests are sent to
+     */
+    public String getTenancy() {
+        return this.configuration.getTenancy();
+    }
+
+    /**
+     * @return the sampled trace of requests to the tenancy
+     */
+    public Office365Tracer getTracer() {
+        return this.tracer;
+    }
+
+    /**
+     * @return the retry policy used for transient failures
+     */
+    public Office365RetryPolicy getRetryPolicy() {
+        return this.retryPolicy;
+    }
+
+    /**
+     * @return the cache of users fetched one at a time, or null if they are not cached
+     */
+    public Office365UserCache getUserCache() {
+        return this.resources.getUserCache();
+    }
+
+    /**
+     * @return the store recording the progress of syncs, or null if progress is not recorded
+     */
+    public Office365CheckpointStore getCheckpointStore() {
+        return this.checkpointStore;
+    }
+
+    /**
+     * @return the scheduler rate limiting requests to this tenancy
+     */
+    public Office365RequestScheduler getScheduler() {
+        return this.scheduler;
+    }
+
+    private void addGetHeaders(HttpGet get, String token) {
+        get.addHeader("Authorization", token);
+        get.addHeader("Content-Type", "application/json;odata=verbose");
+        get.addHeader("DataServiceVersion", "1.0;NetFx");
+        get.addHeader("MaxDataServiceVersion", "3.0;NetFx");
+        get.addHeader("Accept", "application/json");
+    }
+
     public Uid postRequest(String path, JSONObject body) {
+        return postRequest(path, body, false);
+    }
+
+    /**
+     * @param repeatable true if sending the request twice has the same effect
+     * as sending it once, so it can be retried automatically
+     */
+    public Uid postRequest(String path, JSONObject body, boolean repeatable) {
 
-        log.info("postRequest(" + path + ")");
+        log.info("postRequest({0})", path);
 
         HttpPost post = new HttpPost(getAPIEndPoint(path));
-        post.addHeader("Authorization", this.getToken());
+        String token = this.getToken();
+        post.addHeader("Authorization", token);
         // patch.addHeader("Content-Type", "application/json;odata=verbose");
         post.addHeader("Content-Type", "application/json;charset=utf-8;odata=verbose");
         post.addHeader("DataServiceVersion", "3.0;NetFx");
@@ -223,16 +585,16 @@ public class Office365Connection {
         StringEntity postEntity = null;
         try {
             postEntity = new StringEntity(body.toString(), "UTF-8");
-        } catch (UnsupportedEncodingException ex) {
+        } catch (UnsupportedCharsetException ex) {
             log.error("Unsupported Encoding when creating object in Office 365, path was {0}. Error: {1}", path, ex);
         }
 
         post.setEntity(postEntity);
-        HttpClient httpClient = HttpClientBuilder.create().build();
 
+        HttpEntity entity = null;
         try {
-            HttpResponse response = httpClient.execute(post);
-            HttpEntity entity = response.getEntity();
+            HttpResponse response = this.execute(post, repeatable);
+            entity = response.getEntity();
 
             log.info("Status code from postRequest is {0}", response.getStatusLine().getStatusCode());
 
@@ -240,17 +602,19 @@ public class Office365Connection {
 
             if ((response.getStatusLine().getStatusCode() != 201 && !path.contains("/assignLicense?")) || response.getStatusLine().getStatusCode() == 400) {
                 log.error("An error occured when creating object in Office 365, path was {0}", path);
-                this.invalidateToken();
+                if (response.getStatusLine().getStatusCode() == HttpStatus.SC_UNAUTHORIZED) {
+                    this.invalidateToken(token);
+                }
                 StringBuffer sb = new StringBuffer();
                 if (entity != null && entity.getContent() != null) {
                     BufferedReader in = new BufferedReader(new InputStreamReader(entity.getContent()));
                     String s = null;
 
-                    log.info("Response :{0}", response.getStatusLine().toString());
+                    log.info("Response :{0}", response.getStatusLine());
 
                     while ((s = in.readLine()) != null) {
                         sb.append(s);
-                        log.info(s);
+                        log.info("{0}", s);
                     }
                 }
                 log.error("Error on post to {0}  and body of {1}. Error code: {2} Received the following response: {3}", path, body.toString(), response.getStatusLine().getStatusCode(), sb.toString());
@@ -260,14 +624,9 @@ public class Office365Connection {
             } else if (path.contains("/assignLicense?") && response.getStatusLine().getStatusCode() == 200) {
                 return SUCCESS_UID;
             } else {
-                Header[] location = response.getHeaders("Location");
-                // Location: https://directory.windows.net/contoso.onmicrosoft.com/directoryObjects/4e971521-101a-4311-94f4-0917d7218b4e/Microsoft.WindowsAzure.ActiveDirectory.User
-                Matcher m = directoryObjectGUIDPattern.matcher(location[0].getValue());
-                boolean b = m.matches();
-                if (b) {
-                    String guid = m.group(1);
-                    log.info("Object has GUID of {0}", guid);
-                    return new Uid(guid);
+                Uid uid = getCreatedUid(response);
+                if (uid != null) {
+                    return uid;
                 } else {
                     log.error("No GUID found on path {0}", path);
                     throw new ConnectorException("No GUID found for " + path + " and body of " + body.toString());
@@ -278,16 +637,112 @@ public class Office365Connection {
             throw new ConnectorException("Exception whilst doing POST to " + path);
         } catch (IOException ioe) {
             log.error(ioe, "IOE Error doing postRequest to path {0}", path);
-            throw new ConnectorException("Exception whilst doing POST to " + path);
+            throw new ConnectorException("Exception whilst doing POST to " + path, ioe);
+        } finally {
+            EntityUtils.consumeQuietly(entity);
         }
     }
 
+    /**
+     * Send the operations as $batch requests, as many operations to a request
+     * as the Graph API allows.
+     *
+     * If a $batch request fails as a whole, each of its operations has that
+     * failure as its result, and the requests after it are still sent.
+     *
+     * @return the result of each operation, in the same order
+     */
+    public List<Office365BatchResult> batchRequest(List<Office365BatchOperation> operations) {
+        List<Office365BatchResult> results = new ArrayList<Office365BatchResult>(operations.size());
+        for (int i = 0; i < operations.size(); i += Office365BatchRequest.MAX_OPERATIONS) {
+            List<Office365BatchOperation> chunk = operations.subList(i, Math.min(i + Office365BatchRequest.MAX_OPERATIONS, operations.size()));
+            try {
+                results.addAll(sendBatch(new Office365BatchRequest(chunk)));
+            } catch (RuntimeException re) {
+                log.error(re, "Batch of {0} operation(s) failed", chunk.size());
+                for (Office365BatchOperation operation : chunk) {
+                    results.add(new Office365BatchResult(operation, null, re));
+                }
+            }
+        }
+        return results;
+    }
+
+    private List<Office365BatchResult> sendBatch(Office365BatchRequest batch) {
+        String path = "/$batch?api-version=" + API_VERSION;
+        log.info("batchRequest({0})", path);
+
+        HttpPost post = new HttpPost(getAPIEndPoint(path));
+        String token = this.getToken();
+        post.addHeader("Authorization", token);
+        post.addHeader("Content-Type", batch.getContentType());
+        post.addHeader("DataServiceVersion", "3.0;NetFx");
+        post.addHeader("MaxDataServiceVersion", "3.0;NetFx");
+        post.addHeader("Accept", "multipart/mixed");
+        post.setEntity(new StringEntity(batch.encode(getAPIEndPoint("")), "UTF-8"));
+
+        HttpEntity entity = null;
+        try {
+            HttpResponse response = this.execute(post, batch.isRepeatable());
+            entity = response.getEntity();
+            int status = response.getStatusLine().getStatusCode();
+            String body = entity != null ? EntityUtils.toString(entity, "UTF-8") : "";
+
+            if (status != HttpStatus.SC_OK && status != HttpStatus.SC_ACCEPTED) {
+                log.error("An error occured sending a batch to Office 365");
+                if (status == HttpStatus.SC_UNAUTHORIZED) {
+                    this.invalidateToken(token);
+                }
+                throw new Office365Exception(status, body);
+            }
+
+            Header contentType = entity != null ? entity.getContentType() : null;
+            if (contentType == null) {
+                throw new ConnectorException("No content type on batch response from " + path);
+            }
+            return batch.decode(contentType.getValue(), body);
+        } catch (IOException ioe) {
+            log.error(ioe, "IOE Error doing batchRequest to path {0}", path);
+            throw new ConnectorException("Exception whilst doing POST to " + path, ioe);
+        } finally {
+            EntityUtils.consumeQuietly(entity);
+        }
+    }
+
+    /**
+     * @return the Uid of the object created, from the Location of a 201 response,
+     * or null if there is none
+     */
+    Uid getCreatedUid(HttpResponse response) {
+        Header location = response.getFirstHeader("Location");
+        return location != null ? getUidFromLocation(location.getValue()) : null;
+    }
+
+    /**
+     * @return the Uid from the Location of a created object, or null if there is none
+     */
+    static Uid getUidFromLocation(String location) {
+        if (location == null) {
+            return null;
+        }
+
+        // Location: https://directory.windows.net/contoso.onmicrosoft.com/directoryObjects/4e971521-101a-4311-94f4-0917d7218b4e/Microsoft.WindowsAzure.ActiveDirectory.User
+        Matcher m = directoryObjectGUIDPattern.matcher(location);
+        if (m.matches()) {
+            String guid = m.group(1);
+            log.info("Object has GUID of {0}", guid);
+            return new Uid(guid);
+        }
+        return null;
+    }
+
     public boolean patchObject(String path, JSONObject body) {
-        log.info("patchRequest(" + path + ")");
+        log.info("patchRequest({0})", path);
 
         // http://msdn.microsoft.com/en-us/library/windowsazure/dn151671.aspx
         HttpPatch httpPatch = new HttpPatch(getAPIEndPoint(path));
-        httpPatch.addHeader("Authorization", this.getToken());
+        String token = this.getToken();
+        httpPatch.addHeader("Authorization", token);
         // patch.addHeader("Content-Type", "application/json;odata=verbose");
         httpPatch.addHeader("Content-Type", "application/json;charset=utf-8;odata=verbose");
         httpPatch.addHeader("DataServiceVersion", "3.0;NetFx");
@@ -297,30 +752,32 @@ public class Office365Connection {
         StringEntity postEntity = null;
         try {
             postEntity = new StringEntity(body.toString(), "UTF-8");
-        } catch (UnsupportedEncodingException ex) {
+        } catch (UnsupportedCharsetException ex) {
             log.error("Unsupported Encoding when updating object in Office 365, path was {0}. Error: {1}", path, ex);
         }
 
         httpPatch.setEntity(postEntity);
-        HttpClient httpClient = HttpClientBuilder.create().build();
 
+        HttpEntity entity = null;
         try {
-            HttpResponse response = httpClient.execute(httpPatch);
-            HttpEntity entity = response.getEntity();
+            HttpResponse response = this.execute(httpPatch, false);
+            entity = response.getEntity();
 
             if (response.getStatusLine().getStatusCode() != 204) {
                 log.error("An error occured when modify an object in Office 365");
-                this.invalidateToken();
+                if (response.getStatusLine().getStatusCode() == HttpStatus.SC_UNAUTHORIZED) {
+                    this.invalidateToken(token);
+                }
                 StringBuffer sb = new StringBuffer();
                 if (entity != null && entity.getContent() != null) {
                     BufferedReader in = new BufferedReader(new InputStreamReader(entity.getContent()));
                     String s = null;
 
-                    log.info("Response :{0}", response.getStatusLine().toString());
+                    log.info("Response :{0}", response.getStatusLine());
 
                     while ((s = in.readLine()) != null) {
                         sb.append(s);
-                        log.info(s);
+                        log.info("{0}", s);
                     }
                 }
                 throw new ConnectorException("Modify Object failed to " + path + " and body of " + body.toString() + ". Error code was " + response.getStatusLine().getStatusCode() + ". Received the following response " + sb.toString());
@@ -332,38 +789,42 @@ public class Office365Connection {
             throw new ConnectorException("Exception whilst doing PATCH to " + path);
         } catch (IOException ioe) {
             log.error(ioe, "IOE Error doing patchRequest to path {0}", path);
-            throw new ConnectorException("Exception whilst doing PATCH to " + path);
+            throw new ConnectorException("Exception whilst doing PATCH to " + path, ioe);
+        } finally {
+            EntityUtils.consumeQuietly(entity);
         }
     }
 
     public boolean deleteRequest(String path) {
-        log.info("deleteRequest(" + path + ")");
+        log.info("deleteRequest({0})", path);
         // http://msdn.microsoft.com/en-us/library/windowsazure/dn151676.aspx
         HttpDelete httpDelete = new HttpDelete(getAPIEndPoint(path));
-        httpDelete.addHeader("Authorization", this.getToken());
+        String token = this.getToken();
+        httpDelete.addHeader("Authorization", token);
         httpDelete.addHeader("Content-Type", "application/json");
         httpDelete.addHeader("DataServiceVersion", "3.0;NetFx");
         httpDelete.addHeader("MaxDataServiceVersion", "3.0;NetFx");
 
-        HttpClient httpClient = HttpClientBuilder.create().build();
-
+        HttpEntity entity = null;
         try {
-            HttpResponse response = httpClient.execute(httpDelete);
-            HttpEntity entity = response.getEntity();
+            HttpResponse response = this.execute(httpDelete, false);
+            entity = response.getEntity();
 
             if (response.getStatusLine().getStatusCode() != 204) {
                 log.error("An error occured when deleting an object in Office 365");
-                this.invalidateToken();
+                if (response.getStatusLine().getStatusCode() == HttpStatus.SC_UNAUTHORIZED) {
+                    this.invalidateToken(token);
+                }
                 StringBuffer sb = new StringBuffer();
                 if (entity != null && entity.getContent() != null) {
                     BufferedReader in = new BufferedReader(new InputStreamReader(entity.getContent()));
                     String s = null;
 
-                    log.info("Response :{0}", response.getStatusLine().toString());
+                    log.info("Response :{0}", response.getStatusLine());
 
                     while ((s = in.readLine()) != null) {
                         sb.append(s);
-                        log.info(s);
+                        log.info("{0}", s);
                     }
                 }
                 throw new ConnectorException("Delete Object failed to " + path + ". Error code was " + response.getStatusLine().getStatusCode() + ". Received the following response " + sb.toString());
@@ -375,93 +836,51 @@ public class Office365Connection {
             throw new ConnectorException("Exception whilst doing DELETE to " + path);
         } catch (IOException ioe) {
             log.error(ioe, "IOE Error doing deleteRequest to path {0}", path);
-            throw new ConnectorException("Exception whilst doing DELETE to " + path);
+            throw new ConnectorException("Exception whilst doing DELETE to " + path, ioe);
+        } finally {
+            EntityUtils.consumeQuietly(entity);
         }
     }
 
-    public String getServicePlanId(String planName) {
-        if ((this.servicePlanIDs == null) || (this.servicePlanIDs.size() == 0)) {
-            populateSKUs();
-        }
+    /**
+     * @return the subscribed SKUs, which are reloaded in the background once
+     * past their TTL
+     */
+    public Office365SkuCatalog.Snapshot getSkus() {
+        return this.resources.getSkuCatalog().getSnapshot(this.skuSource);
+    }
 
-        if (this.servicePlanIDs != null) {
-            return this.servicePlanIDs.get(planName);
-        } else {
-            return null;
-        }
+    public String getServicePlanId(String planName) {
+        return getSkus().getServicePlanId(planName);
     }
 
     public String getLicensePlanId(String licenseName) {
-        Office365License lic = getLicensePlan(licenseName);
-
-        if (lic != null) {
-            return lic.getSkuID();
-        } else {
-            return null;
-        }
+        return getSkus().getSkuId(licenseName);
     }
 
     public Office365License getLicensePlan(String licenseName) {
-        if (this.licenses == null || this.licenses.size() == 0) {
-            populateSKUs();
-        }
-
-        return this.licenses.get(licenseName);
+        return getSkus().getLicense(licenseName);
     }
 
-    private void populateSKUs() {
-        log.info("populateSKUs");
-        this.licenses = new HashMap<String, Office365License>();
-        this.servicePlanIDs = new HashMap<String, String>();
-
-        JSONObject obj = getRequest("/subscribedSkus?api-version=" + Office365Connection.API_VERSION);
-        try {
-            JSONArray skus = obj.getJSONArray("value");
-            for (int i = 0; i < skus.length(); i++) {
-                JSONObject sku = skus.getJSONObject(i);
-
-                String skuID = sku.getString("skuId");
-                String skuPartNumber = sku.getString("skuPartNumber");
-
-                Office365License license = new Office365License(skuID);
-                license.setSkuPartNumber(skuPartNumber);
-                license.setObjectID(sku.getString("objectId"));
-                license.setConsumedUnits(sku.getInt("consumedUnits"));
-                JSONObject prepaidUnits = sku.getJSONObject("prepaidUnits");
-                license.setPrepaidUnitsEnabled(prepaidUnits.getInt("enabled"));
-                license.setPrepaidUnitsSuspended(prepaidUnits.getInt("suspended"));
-                license.setPrepaidUnitsWarning(prepaidUnits.getInt("warning"));
-
-                JSONArray servicePlans = sku.getJSONArray("servicePlans");
-
-                for (int j = 0; j < servicePlans.length(); j++) {
-                    JSONObject planObj = servicePlans.getJSONObject(j);
-                    String planID = planObj.getString("servicePlanId");
-                    String planName = planObj.getString("servicePlanName");
-                    Office365ServicePlan plan = new Office365ServicePlan(planID, planName);
-                    license.addServicePlan(plan);
-
-                    this.servicePlanIDs.put(planName, planID);
+    public Office365Domain getDomain(String name) {
+        Map<String, Office365Domain> domains = this.resources.getVerifiedDomains();
+        if (domains == null || domains.size() == 0) {
+            // Read once for all the connections sharing the resources
+            synchronized (this.resources) {
+                domains = this.resources.getVerifiedDomains();
+                if (domains == null || domains.size() == 0) {
+                    domains = populateVerifiedDomains();
+                    this.resources.setVerifiedDomains(domains);
                 }
-
-                this.licenses.put(skuPartNumber, license);
             }
-        } catch (JSONException je) {
-            log.error(je, "Error populating skus");
-        }
-    }
-
-    public Office365Domain getDomain(String name) {
-        if (this.verifiedDomains == null || this.verifiedDomains.size() == 0) {
-            populateVerifiedDomains();
         }
 
-        return this.verifiedDomains.get(name.toLowerCase());
+        return domains.get(name.toLowerCase());
     }
 
-    private void populateVerifiedDomains() {
+    private Map<String, Office365Domain> populateVerifiedDomains() {
         log.info("populateVerifiedDomains");
-        this.verifiedDomains = new HashMap<String, Office365Domain>();
+        Map<String, Office365Domain> domains = new HashMap<String, Office365Domain>();
 
 
         JSONObject obj = getRequest("/tenantDetails?api-version=" + Office365Connection.API_VERSION);
@@ -477,11 +896,11 @@ public class Office365Connection {
                 if (type.equals("Federated")) {
                     log.info("Got a Federated domain named {0}", name);
                     domain = new Office365FederatedDomain(name);
-                    this.verifiedDomains.put(name, domain);
+                    domains.put(name, domain);
                 } else if (type.equals("Managed")) {
                     log.info("Got a Managed domain named {0}", name);
                     domain = new Office365ManagedDomain(name);
-                    this.verifiedDomains.put(name, domain);
+                    domains.put(name, domain);
                 } else if (type.equals("None")) {
                     log.info("Received a None domain for {0},  skipping", name);
                 } else {
@@ -501,6 +920,7 @@ public class Office365Connection {
         } catch (JSONException je) {
             log.error(je, "Error populating verified domains");
         }
+        return domains;
     }
 
     public boolean isUserInAFederatedDomain(String userPrinciaplName) {
@@ -521,37 +941,109 @@ public class Office365Connection {
         }
     }
 
-    private String getAPIEndPoint(String path) {
+    /**
+     * Extract the skip token from a server-driven paging link such as the
+     * odata.nextLink of a collection response.
+     *
+     * @param nextLink the link, may be null
+     * @return the skip token or null if there are no more pages
+     */
+    static String getSkipToken(String nextLink) {
+        if (nextLink == null || nextLink.length() == 0) {
+            return null;
+        }
+
+        Matcher m = skipTokenPattern.matcher(nextLink);
+        if (m.matches()) {
+            return m.group(1);
+        } else {
+            log.warn("No skip token found in next link {0}", nextLink);
+            return null;
+        }
+    }
+
+    /**
+     * Extract the token from a differential query link, the aad.nextLink or
+     * aad.deltaLink of a differential query response. The token is left
+     * encoded, ready to be sent back.
+     *
+     * @param deltaLink the link, may be null
+     * @return the delta token or null if there is none
+     */
+    static String getDeltaToken(String deltaLink) {
+        if (deltaLink == null || deltaLink.length() == 0) {
+            return null;
+        }
+
+        Matcher m = deltaTokenPattern.matcher(deltaLink);
+        if (m.matches()) {
+            return m.group(1);
+        } else {
+            log.warn("No delta token found in link {0}", deltaLink);
+            return null;
+        }
+    }
+
+    /**
+     * URL encode a query parameter value, spaces are encoded as %20 rather
+     * than + as OData does not treat + as a space.
+     */
+    static String urlEncode(String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8").replace("+", "%20");
+        } catch (UnsupportedEncodingException uee) {
+            throw new ConnectorException("Unable to encode " + value, uee);
+        }
+    }
+
+    String getAPIEndPoint(String path) {
         log.info("API path is: {0}", path);
         return this.configuration.getProtocol() + this.configuration.getApiEndPoint() + "/" + this.configuration.getTenancy() + path;
     }
 
     String encodedUUID(String uuid) {
-        log.info("Encoding uuid {0} with mechanism '{1}'", uuid, this.configuration.getImmutableIDEncodeMechanism());
-        if (this.configuration.getImmutableIDEncodeMechanism().equals(Office365Configuration.ENCODE_MS_BASE64_STR)) {
-            log.info("Encoding UUID with Microsoft format");
-            return Office365Utils.encodeUUIDInMicrosoftFormat(uuid);
-        } else if (this.configuration.getImmutableIDEncodeMechanism().equals(Office365Configuration.ENCODE_MS_BASE64_OPENICF_ADFS_STR)) {
-            log.info("Doing base64 encode in ADFS compatible format");
-            return Office365Utils.encodeUUIDInMicrosoftADFSFormat(uuid);
-        } else if (this.configuration.getImmutableIDEncodeMechanism().equals(Office365Configuration.ENCODE_STRAIGHT_BASE64_STR)) {
-            log.info("Encoding UUID with standard base64");
-            try {
-                return Base64.encode(uuid.getBytes("ISO-8859-1"));
-            } catch (UnsupportedEncodingException uee) {
-                throw new ConnectorException("unable to convert uuid " + uuid + "to MS format", uee);
-            }
-        } else {
-            log.info("No encoding of UUID, returning unaltered");
-            return uuid;
-        }
+        return Office365Utils.encodeImmutableId(uuid, this.configuration.getImmutableIDEncodeMechanism());
     }
 
     /**
      * Release internal resources
      */
     public void dispose() {
-        //implementation
+        synchronized (this) {
+            if (this.asyncClient != null) {
+                this.asyncClient.close();
+                this.asyncClient = null;
+            }
+            if (this.taskExecutor != null) {
+                this.taskExecutor.shutdown();
+                this.taskExecutor = null;
+            }
+            if (this.httpClient != null) {
+                // The token, pool and caches are closed once no connection holds them
+                this.httpClient = null;
+                this.resources.release();
+            }
+        }
+
+        log.ok("Disposed Office365Connection for tenancy {0}, received {1} bytes, {2} after decompression",
+                this.configuration.getTenancy(), getReceivedBytes(), getDecodedBytes());
+    }
+
+    /**
+     * Check the connection can still be used. No request is made whilst a
+     * valid token is held and the shared HTTP pool is open, otherwise only
+     * the token is requested.
+     *
+     * @throws ConnectorException if the connection has been disposed
+     */
+    public void checkAlive() {
+        if (this.httpClient == null || !this.resources.isOpen()) {
+            throw new ConnectorException("Connection to tenancy " + this.configuration.getTenancy() + " has been disposed");
+        }
+
+        if (!this.tokenManager.hasValidToken()) {
+            getToken();
+        }
     }
 
     /**
@@ -570,4 +1062,47 @@ public class Office365Connection {
             throw new IllegalStateException("Error during test, JSONException thrown");
         }
     }
+
+    /**
+     * Periodically evicts expired and idle connections from a pool, as
+     * HttpClient 4.3 does not do this itself.
+     */
+    abstract static class IdleConnectionMonitor extends Thread {
+
+        private final long idleTimeoutMillis;
+        private volatile boolean shutdown = false;
+
+        IdleConnectionMonitor(String name, int idleTimeoutSeconds) {
+            super(name);
+            setDaemon(true);
+            this.idleTimeoutMillis = TimeUnit.SECONDS.toMillis(idleTimeoutSeconds);
+        }
+
+        /**
+         * Close expired connections and those idle for longer than the timeout.
+         */
+        abstract void evict(long idleTimeoutMillis);
+
+        @Override
+        public void run() {
+            long interval = Math.max(1000L, this.idleTimeoutMillis / 2);
+            try {
+                while (!this.shutdown) {
+                    synchronized (this) {
+                        wait(interval);
+                    }
+                    evict(this.idleTimeoutMillis);
+                }
+            } catch (InterruptedException ie) {
+                // terminate
+            }
+        }
+
+        void shutdown() {
+            this.shutdown = true;
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+    }
 }
@@ -42,15 +42,18 @@ import org.identityconnectors.framework.common.objects.OperationalAttributes;
 import org.identityconnectors.framework.common.objects.ResultsHandler;
 import org.identityconnectors.framework.common.objects.Schema;
 import org.identityconnectors.framework.common.objects.SchemaBuilder;
+import org.identityconnectors.framework.common.objects.SyncResultsHandler;
+import org.identityconnectors.framework.common.objects.SyncToken;
 import org.identityconnectors.framework.common.objects.Uid;
 import org.identityconnectors.framework.common.objects.filter.FilterTranslator;
 import org.identityconnectors.framework.spi.Configuration;
-import org.identityconnectors.framework.spi.Connector;
 import org.identityconnectors.framework.spi.ConnectorClass;
+import org.identityconnectors.framework.spi.PoolableConnector;
 import org.identityconnectors.framework.spi.operations.CreateOp;
 import org.identityconnectors.framework.spi.operations.DeleteOp;
 import org.identityconnectors.framework.spi.operations.SchemaOp;
 import org.identityconnectors.framework.spi.operations.SearchOp;
+import org.identityconnectors.framework.spi.operations.SyncOp;
 import org.identityconnectors.framework.spi.operations.TestOp;
 import org.identityconnectors.framework.spi.operations.UpdateOp;
 
@@ -62,10 +65,11 @@ import org.identityconnectors.framework.spi.operations.UpdateOp;
  */
 @ConnectorClass(displayNameKey = "Office365.connector.display", configurationClass = Office365Configuration.class)
 public class Office365Connector implements 
-        Connector,
+        PoolableConnector,
         CreateOp,
         DeleteOp,
-        SearchOp<String>,
+        SearchOp<Office365Filter>,
+        SyncOp,
         TestOp,
         UpdateOp,
         SchemaOp
@@ -95,11 +99,13 @@ public class Office365Connector implements
     private Schema schema = null;
 
     private Office365UserOps userOps;
+
+    private Office365Metrics metrics;
     
     /**
      * Gets the Configuration context for this connector.
      */
-    public Configuration getConfiguration() {
+    public Office365Configuration getConfiguration() {
         return this.configuration;
     }
 
@@ -111,6 +117,7 @@ public class Office365Connector implements
     public void init(Configuration configuration) {
         this.configuration = (Office365Configuration) configuration;
         this.userOps = new Office365UserOps(this);
+        this.metrics = Office365Metrics.forTenancy(this.configuration.getTenancy());
     }
 
     /**
@@ -126,6 +133,22 @@ public class Office365Connector implements
         }
     }
 
+    /**
+     * Called by the framework before a pooled instance is reused. The
+     * connection is created on first use, so until then there is nothing to
+     * check.
+     *
+     * @see org.identityconnectors.framework.spi.PoolableConnector#checkAlive()
+     */
+    public void checkAlive() {
+        if (this.configuration == null) {
+            throw new IllegalStateException("Connector has been disposed");
+        }
+        if (this.connection != null) {
+            this.connection.checkAlive();
+        }
+    }
+
     /******************
      * SPI Operations
      * 
@@ -137,6 +160,18 @@ public class Office365Connector implements
      * {@inheritDoc}
      */
     public Uid create(final ObjectClass objectClass, final Set<Attribute> createAttributes, final OperationOptions options) {
+        long started = System.nanoTime();
+        boolean success = false;
+        try {
+            Uid uid = createObject(objectClass, createAttributes);
+            success = true;
+            return uid;
+        } finally {
+            this.metrics.recordOperation("create", started, success);
+        }
+    }
+
+    private Uid createObject(final ObjectClass objectClass, final Set<Attribute> createAttributes) {
 
         log.info("Entered create for objectClass {0}", objectClass);
 
@@ -160,6 +195,17 @@ public class Office365Connector implements
      * {@inheritDoc}
      */
     public void delete(final ObjectClass objectClass, final Uid uid, final OperationOptions options) {
+        long started = System.nanoTime();
+        boolean success = false;
+        try {
+            deleteObject(objectClass, uid);
+            success = true;
+        } finally {
+            this.metrics.recordOperation("delete", started, success);
+        }
+    }
+
+    private void deleteObject(final ObjectClass objectClass, final Uid uid) {
 
         log.info ("In delete");
 
@@ -182,14 +228,25 @@ public class Office365Connector implements
     /**
      * {@inheritDoc}
      */
-    public FilterTranslator<String> createFilterTranslator(ObjectClass objectClass, OperationOptions options) {
-        return new Office365FilterTranslator();
+    public FilterTranslator<Office365Filter> createFilterTranslator(ObjectClass objectClass, OperationOptions options) {
+        return new Office365FilterTranslator(this.configuration);
     }
 
     /**
      * {@inheritDoc}
      */
-    public void executeQuery(ObjectClass objectClass, String query, ResultsHandler handler, OperationOptions options) {
+    public void executeQuery(ObjectClass objectClass, Office365Filter query, ResultsHandler handler, OperationOptions options) {
+        long started = System.nanoTime();
+        boolean success = false;
+        try {
+            queryObjects(objectClass, query, handler, options);
+            success = true;
+        } finally {
+            this.metrics.recordOperation("search", started, success);
+        }
+    }
+
+    private void queryObjects(ObjectClass objectClass, Office365Filter query, ResultsHandler handler, OperationOptions options) {
         // http://msdn.microsoft.com/en-us/library/windowsazure/jj126255.aspx
         log.info("Execute query for {0}", objectClass);
 
@@ -207,13 +264,68 @@ public class Office365Connector implements
         }
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    public void sync(ObjectClass objectClass, SyncToken token, SyncResultsHandler handler, OperationOptions options) {
+        long started = System.nanoTime();
+        boolean success = false;
+        try {
+            syncObjects(objectClass, token, handler);
+            success = true;
+        } finally {
+            this.metrics.recordOperation("sync", started, success);
+        }
+    }
+
+    private void syncObjects(ObjectClass objectClass, SyncToken token, SyncResultsHandler handler) {
+        log.info("Sync for {0} from {1}", objectClass, token);
+
+        if (handler == null) {
+            throw new IllegalArgumentException("Null Sync Results Handler");
+        }
+
+        // Users are the only class, so a sync of all classes is a sync of users
+        if (objectClass.equals(ObjectClass.ACCOUNT) || objectClass.equals(ObjectClass.ALL)) {
+            this.userOps.syncUsers(token, handler);
+        } else {
+            log.info("Unsupported objectClass {0} passed to sync", objectClass.getObjectClassValue());
+            throw new IllegalArgumentException("Unsupported object class " + objectClass.getObjectClassValue());
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public SyncToken getLatestSyncToken(ObjectClass objectClass) {
+        long started = System.nanoTime();
+        boolean success = false;
+        try {
+            if (!objectClass.equals(ObjectClass.ACCOUNT) && !objectClass.equals(ObjectClass.ALL)) {
+                log.info("Unsupported objectClass {0} passed to getLatestSyncToken", objectClass.getObjectClassValue());
+                throw new IllegalArgumentException("Unsupported object class " + objectClass.getObjectClassValue());
+            }
+            SyncToken token = this.userOps.getLatestSyncToken();
+            success = true;
+            return token;
+        } finally {
+            this.metrics.recordOperation("getLatestSyncToken", started, success);
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
     public void test() {
 //        log.info("test");
-
-        this.getConnection().test();
+        long started = System.nanoTime();
+        boolean success = false;
+        try {
+            this.getConnection().test();
+            success = true;
+        } finally {
+            this.metrics.recordOperation("test", started, success);
+        }
 
         log.info("test ok");
 
@@ -224,6 +336,18 @@ public class Office365Connector implements
      * {@inheritDoc}
      */
     public Uid update(ObjectClass objectClass, Uid uid, Set<Attribute> replaceAttributes, OperationOptions options) {
+        long started = System.nanoTime();
+        boolean success = false;
+        try {
+            Uid updated = updateObject(objectClass, uid, replaceAttributes, options);
+            success = true;
+            return updated;
+        } finally {
+            this.metrics.recordOperation("update", started, success);
+        }
+    }
+
+    private Uid updateObject(ObjectClass objectClass, Uid uid, Set<Attribute> replaceAttributes, OperationOptions options) {
 
         log.info("Update for objectClass {0}", objectClass);
 
@@ -0,0 +1,179 @@
+/*
+ * DO NOT REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2013 Salford Software Ltd. All rights reserved.
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://opensource.org/licenses/cddl1.txt
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://opensource.org/licenses/cddl1.txt
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.office365;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.client.entity.DeflateDecompressingEntity;
+import org.apache.http.client.entity.GzipDecompressingEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * Asks for gzip or deflate compressed responses and decompresses them as
+ * they are read, so the streaming page reader sees plain JSON without the
+ * body ever being buffered.
+ *
+ * Counts the bytes received on the wire and the bytes after decompression,
+ * to show how much bandwidth compression saves. The response side is
+ * installed even when compression is off, so received bytes are always
+ * counted in the tenancy's {@link Office365Metrics}.
+ *
+ * @author Paul Heaney
+ */
+public class Office365ContentEncoding implements HttpRequestInterceptor, HttpResponseInterceptor {
+
+    static final String ACCEPT_ENCODING = "gzip,deflate";
+
+    private final AtomicLong receivedBytes = new AtomicLong();
+    private final AtomicLong decodedBytes = new AtomicLong();
+    private final Office365Metrics metrics;
+
+    public Office365ContentEncoding(Office365Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void process(HttpRequest request, HttpContext context) {
+        if (!request.containsHeader("Accept-Encoding")) {
+            request.addHeader("Accept-Encoding", ACCEPT_ENCODING);
+        }
+    }
+
+    @Override
+    public void process(HttpResponse response, HttpContext context) throws HttpException {
+        HttpEntity entity = response.getEntity();
+        if (entity == null || entity.getContentLength() == 0) {
+            return;
+        }
+
+        Header contentEncoding = entity.getContentEncoding();
+        String coding = contentEncoding != null ? contentEncoding.getValue().trim().toLowerCase() : "identity";
+
+        if (coding.equals("identity")) {
+            response.setEntity(new CountingEntity(entity, this.metrics, this.receivedBytes, this.decodedBytes));
+            return;
+        }
+
+        HttpEntity wire = new CountingEntity(entity, this.metrics, this.receivedBytes);
+        if (coding.equals("gzip") || coding.equals("x-gzip")) {
+            response.setEntity(new CountingEntity(new GzipDecompressingEntity(wire), null, this.decodedBytes));
+        } else if (coding.equals("deflate")) {
+            response.setEntity(new CountingEntity(new DeflateDecompressingEntity(wire), null, this.decodedBytes));
+        } else {
+            throw new HttpException("Unsupported Content-Coding: " + coding);
+        }
+
+        // The headers describe the compressed body, which is no longer what is read
+        response.removeHeaders("Content-Length");
+        response.removeHeaders("Content-Encoding");
+        response.removeHeaders("Content-MD5");
+    }
+
+    /**
+     * @return the number of response body bytes received, before decompression
+     */
+    public long getReceivedBytes() {
+        return receivedBytes.get();
+    }
+
+    /**
+     * @return the number of response body bytes read, after decompression
+     */
+    public long getDecodedBytes() {
+        return decodedBytes.get();
+    }
+
+    /**
+     * Counts the bytes read from the wrapped entity's content.
+     */
+    private static class CountingEntity extends HttpEntityWrapper {
+
+        private final Office365Metrics metrics; // counts wire bytes, null if these are decoded
+        private final AtomicLong[] counters;
+
+        CountingEntity(HttpEntity entity, Office365Metrics metrics, AtomicLong... counters) {
+            super(entity);
+            this.metrics = metrics;
+            this.counters = counters;
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            return new FilterInputStream(super.getContent()) {
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    if (b >= 0) {
+                        count(1);
+                    }
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] buffer, int offset, int length) throws IOException {
+                    int n = super.read(buffer, offset, length);
+                    if (n > 0) {
+                        count(n);
+                    }
+                    return n;
+                }
+            };
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            InputStream in = getContent();
+            try {
+                byte[] buffer = new byte[4096];
+                int n;
+                while ((n = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, n);
+                }
+            } finally {
+                in.close();
+            }
+        }
+
+        private void count(int n) {
+            for (AtomicLong counter : this.counters) {
+                counter.addAndGet(n);
+            }
+            if (this.metrics != null) {
+                this.metrics.addBytesReceived(n);
+            }
+        }
+    }
+}
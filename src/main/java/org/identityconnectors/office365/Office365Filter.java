@@ -0,0 +1,179 @@
+/*
+ * DO NOT REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2013 Salford Software Ltd. All rights reserved.
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://opensource.org/licenses/cddl1.txt
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://opensource.org/licenses/cddl1.txt
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.office365;
+
+/**
+ * Native query produced by {@link Office365FilterTranslator}, an expression
+ * tree over Graph API property names that renders as an OData $filter.
+ *
+ * A filter that is just an equality on objectId is a lookup of a single
+ * object, see {@link #getObjectId()}.
+ *
+ * @author Paul Heaney
+ */
+public final class Office365Filter {
+
+    static final String OBJECT_ID = "objectId";
+
+    enum Operator {
+        EQUALS, STARTS_WITH, AND, OR
+    }
+
+    private final Operator operator;
+    private final String property;
+    private final Object value;
+    private final boolean multiValued;
+    private final Office365Filter left;
+    private final Office365Filter right;
+
+    private Office365Filter(Operator operator, String property, Object value, boolean multiValued, Office365Filter left, Office365Filter right) {
+        this.operator = operator;
+        this.property = property;
+        this.value = value;
+        this.multiValued = multiValued;
+        this.left = left;
+        this.right = right;
+    }
+
+    /**
+     * @param property the Graph API property name
+     * @param value a String or Boolean
+     * @param multiValued true if the property is a collection, matched with any()
+     */
+    public static Office365Filter equalTo(String property, Object value, boolean multiValued) {
+        return new Office365Filter(Operator.EQUALS, property, value, multiValued, null, null);
+    }
+
+    public static Office365Filter startsWith(String property, String value, boolean multiValued) {
+        return new Office365Filter(Operator.STARTS_WITH, property, value, multiValued, null, null);
+    }
+
+    public static Office365Filter and(Office365Filter left, Office365Filter right) {
+        return new Office365Filter(Operator.AND, null, null, false, left, right);
+    }
+
+    public static Office365Filter or(Office365Filter left, Office365Filter right) {
+        return new Office365Filter(Operator.OR, null, null, false, left, right);
+    }
+
+    Operator getOperator() {
+        return operator;
+    }
+
+    String getProperty() {
+        return property;
+    }
+
+    Object getValue() {
+        return value;
+    }
+
+    /**
+     * @return the objectId if this filter looks up a single object by its
+     * Uid, otherwise null
+     */
+    public String getObjectId() {
+        if (this.operator == Operator.EQUALS && OBJECT_ID.equals(this.property)) {
+            return this.value.toString();
+        }
+        return null;
+    }
+
+    /**
+     * @return the value if this filter is an exact match on a single valued
+     * string property, otherwise null
+     */
+    String getEqualsValue(String property) {
+        if (this.operator == Operator.EQUALS && !this.multiValued && property.equals(this.property) && this.value instanceof String) {
+            return (String) this.value;
+        }
+        return null;
+    }
+
+    /**
+     * @return true if the expression can be sent as a $filter, objectId can
+     * only be used as a lookup
+     */
+    boolean isFilterable() {
+        switch (this.operator) {
+            case AND:
+            case OR:
+                return this.left.isFilterable() && this.right.isFilterable();
+            default:
+                return !OBJECT_ID.equals(this.property);
+        }
+    }
+
+    /**
+     * @return the expression as an OData $filter value, not URL encoded
+     */
+    public String toODataFilter() {
+        StringBuilder sb = new StringBuilder();
+        appendTo(sb);
+        return sb.toString();
+    }
+
+    private void appendTo(StringBuilder sb) {
+        switch (this.operator) {
+            case AND:
+            case OR:
+                sb.append('(');
+                this.left.appendTo(sb);
+                sb.append(this.operator == Operator.AND ? " and " : " or ");
+                this.right.appendTo(sb);
+                sb.append(')');
+                break;
+            case EQUALS:
+                if (this.multiValued) {
+                    sb.append(this.property).append("/any(c:c eq ").append(literal(this.value)).append(')');
+                } else {
+                    sb.append(this.property).append(" eq ").append(literal(this.value));
+                }
+                break;
+            case STARTS_WITH:
+                if (this.multiValued) {
+                    sb.append(this.property).append("/any(c:startswith(c,").append(literal(this.value)).append("))");
+                } else {
+                    sb.append("startswith(").append(this.property).append(',').append(literal(this.value)).append(')');
+                }
+                break;
+        }
+    }
+
+    /**
+     * Format a value as an OData literal, strings are quoted with embedded
+     * quotes doubled.
+     */
+    static String literal(Object value) {
+        if (value instanceof Boolean) {
+            return value.toString();
+        }
+        return "'" + value.toString().replace("'", "''") + "'";
+    }
+
+    @Override
+    public String toString() {
+        return toODataFilter();
+    }
+}
@@ -23,6 +23,10 @@
  */
 package org.identityconnectors.office365;
 
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
 import org.identityconnectors.common.StringUtil;
 import org.identityconnectors.framework.common.objects.Attribute;
 import org.identityconnectors.framework.common.objects.AttributeUtil;
@@ -47,16 +51,35 @@ import org.identityconnectors.framework.common.objects.filter.StartsWithFilter;
  * which will (strictly) reapply all filters specified after the connector does the initial
  * filtering.<p><p>Note: The generic query type is most commonly a String, but does not have to be.
  *
+ * Equals, starts with, and and or are translated into an {@link Office365Filter}
+ * which is sent to the Graph API as a $filter. An equality on the Uid becomes a
+ * direct lookup of the object.
+ *
  * @author Paul Heaney
  * @version $Revision$ $Date$
  */
-public class Office365FilterTranslator extends AbstractFilterTranslator<String> {
+public class Office365FilterTranslator extends AbstractFilterTranslator<Office365Filter> {
+
+    // User properties the Graph API accepts in a $filter
+    private static final Set<String> FILTERABLE_ATTRIBUTES = new HashSet<String>(Arrays.asList(
+            "accountEnabled", "city", "country", "department", "displayName", "givenName", "jobTitle", "mail",
+            "mailNickname", "otherMails", "proxyAddresses", "state", "surname", "usageLocation",
+            Office365Connector.IMMUTABLEID_ATTR));
+
+    private static final Set<String> MULTIVALUED_ATTRIBUTES = new HashSet<String>(Arrays.asList(
+            "otherMails", "proxyAddresses"));
+
+    private final Office365Configuration configuration;
+
+    public Office365FilterTranslator(Office365Configuration configuration) {
+        this.configuration = configuration;
+    }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    protected String createContainsExpression(ContainsFilter filter, boolean not) {
+    protected Office365Filter createContainsExpression(ContainsFilter filter, boolean not) {
         return null;
     }
 
@@ -64,7 +87,7 @@ public class Office365FilterTranslator extends AbstractFilterTranslator<String>
      * {@inheritDoc}
      */
     @Override
-    protected String createEndsWithExpression(EndsWithFilter filter, boolean not) {
+    protected Office365Filter createEndsWithExpression(EndsWithFilter filter, boolean not) {
         return null;
     }
 
@@ -72,43 +95,84 @@ public class Office365FilterTranslator extends AbstractFilterTranslator<String>
      * {@inheritDoc}
      */
     @Override
-    protected String createStartsWithExpression(StartsWithFilter filter, boolean not) {
-        return null;
+    protected Office365Filter createStartsWithExpression(StartsWithFilter filter, boolean not) {
+        if (not) {
+            // The Graph API has no not operator
+            return null;
+        }
+
+        Attribute attr = filter.getAttribute();
+        if (attr.getValue() == null || attr.getValue().size() != 1) {
+            return null;
+        }
+
+        String property = getProperty(attr);
+        if (property == null || attr.is(Uid.NAME) || "accountEnabled".equals(property)) {
+            return null;
+        }
+
+        String value = validateSearchValue(AttributeUtil.getAsStringValue(attr));
+        if (value == null) {
+            return null;
+        }
+
+        return Office365Filter.startsWith(property, encodeValue(attr, value), MULTIVALUED_ATTRIBUTES.contains(property));
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    protected String createEqualsExpression(EqualsFilter filter, boolean not) {
-        // TODO we should probably check this is either a UPN of Uid
+    protected Office365Filter createEqualsExpression(EqualsFilter filter, boolean not) {
         if (not) {
             // We can't search for NotEquals against o365
             return null;
         }
 
         Attribute attr = filter.getAttribute();
+        if (attr.getValue() == null || attr.getValue().size() != 1) {
+            return null;
+        }
 
-        if (!attr.is(Name.NAME) && !attr.is(Uid.NAME)) {
-            // Currently only support searching on UID TODO
+        String property = getProperty(attr);
+        if (property == null) {
             return null;
         }
 
-        String name = attr.getName();
-        String value = AttributeUtil.getAsStringValue(attr);
+        Object single = AttributeUtil.getSingleValue(attr);
+        if (single instanceof Boolean) {
+            return Office365Filter.equalTo(property, single, false);
+        }
 
-        if (validateSearchValue(value) == null) {
+        String value = validateSearchValue(AttributeUtil.getAsStringValue(attr));
+        if (value == null) {
             return null;
-        } else {
-            return value;
         }
+
+        return Office365Filter.equalTo(property, encodeValue(attr, value), MULTIVALUED_ATTRIBUTES.contains(property));
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    protected String createAndExpression(String leftExpression, String rightExpression) {
+    protected Office365Filter createAndExpression(Office365Filter leftExpression, Office365Filter rightExpression) {
+        // A lookup by objectId is the most selective, the framework reapplies the other side
+        if (leftExpression.getObjectId() != null) {
+            return leftExpression;
+        }
+        if (rightExpression.getObjectId() != null) {
+            return rightExpression;
+        }
+
+        if (leftExpression.isFilterable() && rightExpression.isFilterable()) {
+            return Office365Filter.and(leftExpression, rightExpression);
+        } else if (leftExpression.isFilterable()) {
+            return leftExpression;
+        } else if (rightExpression.isFilterable()) {
+            return rightExpression;
+        }
+
         return null;
     }
 
@@ -116,7 +180,11 @@ public class Office365FilterTranslator extends AbstractFilterTranslator<String>
      * {@inheritDoc}
      */
     @Override
-    protected String createOrExpression(String leftExpression, String rightExpression) {
+    protected Office365Filter createOrExpression(Office365Filter leftExpression, Office365Filter rightExpression) {
+        if (leftExpression.isFilterable() && rightExpression.isFilterable()) {
+            return Office365Filter.or(leftExpression, rightExpression);
+        }
+
         return null;
     }
 
@@ -124,7 +192,7 @@ public class Office365FilterTranslator extends AbstractFilterTranslator<String>
      * {@inheritDoc}
      */
     @Override
-    protected String createGreaterThanExpression(GreaterThanFilter filter, boolean not) {
+    protected Office365Filter createGreaterThanExpression(GreaterThanFilter filter, boolean not) {
         return null;
     }
 
@@ -132,7 +200,7 @@ public class Office365FilterTranslator extends AbstractFilterTranslator<String>
      * {@inheritDoc}
      */
     @Override
-    protected String createGreaterThanOrEqualExpression(GreaterThanOrEqualFilter filter,
+    protected Office365Filter createGreaterThanOrEqualExpression(GreaterThanOrEqualFilter filter,
             boolean not) {
         return null;
     }
@@ -141,7 +209,7 @@ public class Office365FilterTranslator extends AbstractFilterTranslator<String>
      * {@inheritDoc}
      */
     @Override
-    protected String createLessThanExpression(LessThanFilter filter, boolean not) {
+    protected Office365Filter createLessThanExpression(LessThanFilter filter, boolean not) {
         return null;
     }
 
@@ -149,19 +217,42 @@ public class Office365FilterTranslator extends AbstractFilterTranslator<String>
      * {@inheritDoc}
      */
     @Override
-    protected String createLessThanOrEqualExpression(LessThanOrEqualFilter filter, boolean not) {
+    protected Office365Filter createLessThanOrEqualExpression(LessThanOrEqualFilter filter, boolean not) {
+        return null;
+    }
+
+    /**
+     * Map a connector attribute to the Graph API property it is stored in.
+     *
+     * @return the property name or null if it can't be searched on
+     */
+    private String getProperty(Attribute attr) {
+        if (attr.is(Uid.NAME)) {
+            return Office365Filter.OBJECT_ID;
+        } else if (attr.is(Name.NAME)) {
+            return "userPrincipalName";
+        } else if (FILTERABLE_ATTRIBUTES.contains(attr.getName())) {
+            return attr.getName();
+        }
+
         return null;
     }
 
+    /**
+     * The immutableId is stored encoded, so the search value has to be too.
+     */
+    private String encodeValue(Attribute attr, String value) {
+        if (attr.is(Office365Connector.IMMUTABLEID_ATTR)) {
+            return Office365Utils.encodeImmutableId(value, this.configuration.getImmutableIDEncodeMechanism());
+        }
+        return value;
+    }
+
     private String validateSearchValue(String value) {
         if (StringUtil.isEmpty(value)) {
             return null;
         }
 
-        if (value.contains("*") || value.contains("&")) {
-            throw new IllegalArgumentException("Search value contains illegal character(s)");
-        }
-
         return value;
     }
 }
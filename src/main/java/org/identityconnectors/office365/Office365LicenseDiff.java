@@ -0,0 +1,115 @@
+/*
+ * DO NOT REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2013 Salford Software Ltd. All rights reserved.
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://opensource.org/licenses/cddl1.txt
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://opensource.org/licenses/cddl1.txt
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.office365;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * The single assignLicense request that takes a user from the licenses it
+ * has to the one it should have.
+ *
+ * A SKU cannot be both added and removed in one request, so a SKU the user
+ * already has is added again with the wanted disabled plans, which replaces
+ * them, and only when they differ. Every other SKU the user has is removed.
+ *
+ * @author Paul Heaney
+ */
+public class Office365LicenseDiff {
+
+    private final List<JSONObject> addLicenses = new ArrayList<JSONObject>();
+    private final List<String> removeLicenses = new ArrayList<String>();
+
+    /**
+     * @param assignedLicenses the user's assignedLicenses
+     * @param desired the license the user should have, its skuId and
+     * disabledPlans, or null for none
+     */
+    public Office365LicenseDiff(JSONArray assignedLicenses, JSONObject desired) throws JSONException {
+        String desiredSku = desired != null ? desired.getString("skuId") : null;
+        boolean held = false;
+
+        for (int i = 0; assignedLicenses != null && i < assignedLicenses.length(); i++) {
+            JSONObject assigned = assignedLicenses.getJSONObject(i);
+            String skuId = assigned.optString("skuId", null);
+            if (skuId == null) {
+                continue;
+            }
+
+            if (skuId.equalsIgnoreCase(desiredSku)) {
+                held = true;
+                if (!planSet(assigned).equals(planSet(desired))) {
+                    this.addLicenses.add(desired);
+                }
+            } else {
+                this.removeLicenses.add(skuId);
+            }
+        }
+
+        if (desired != null && !held) {
+            this.addLicenses.add(desired);
+        }
+    }
+
+    /**
+     * @return true if the user already has the wanted license and plans
+     */
+    public boolean isEmpty() {
+        return this.addLicenses.isEmpty() && this.removeLicenses.isEmpty();
+    }
+
+    public List<JSONObject> getAddLicenses() {
+        return addLicenses;
+    }
+
+    public List<String> getRemoveLicenses() {
+        return removeLicenses;
+    }
+
+    /**
+     * @return the body of the assignLicense request, with null rather than
+     * an empty list for nothing to add or remove
+     */
+    public JSONObject toRequest() throws JSONException {
+        JSONObject request = new JSONObject();
+        request.put("addLicenses", this.addLicenses.isEmpty() ? JSONObject.NULL : new JSONArray(this.addLicenses));
+        request.put("removeLicenses", this.removeLicenses.isEmpty() ? JSONObject.NULL : new JSONArray(this.removeLicenses));
+        return request;
+    }
+
+    private static Set<String> planSet(JSONObject license) throws JSONException {
+        Set<String> plans = new HashSet<String>();
+        JSONArray disabledPlans = license.optJSONArray("disabledPlans");
+        for (int i = 0; disabledPlans != null && i < disabledPlans.length(); i++) {
+            plans.add(disabledPlans.getString(i).toLowerCase());
+        }
+        return plans;
+    }
+}
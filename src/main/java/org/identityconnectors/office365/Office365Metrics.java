@@ -0,0 +1,410 @@
+/*
+ * DO NOT REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2013 Salford Software Ltd. All rights reserved.
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://opensource.org/licenses/cddl1.txt
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://opensource.org/licenses/cddl1.txt
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.office365;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.regex.Pattern;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.identityconnectors.common.logging.Log;
+
+/**
+ * Operational metrics for a tenancy: latency histograms per connector
+ * operation and per Graph endpoint, HTTP status counts, retries, throttling,
+ * token refreshes and bytes transferred.
+ *
+ * There is one instance per tenancy, shared by every connection to it like
+ * {@link Office365RequestScheduler}. Each is registered with the platform
+ * MBean server as
+ * <code>org.identityconnectors.office365:type=Metrics,tenancy=...</code>,
+ * with an MBean of type Operation or Endpoint for every operation and
+ * endpoint seen.
+ *
+ * @author Paul Heaney
+ */
+public class Office365Metrics implements Office365MetricsMXBean {
+
+    private static final Log log = Log.getLog(Office365Metrics.class);
+
+    static final String DOMAIN = "org.identityconnectors.office365";
+
+    private static final ConcurrentMap<String, Office365Metrics> registry = new ConcurrentHashMap<String, Office365Metrics>();
+    private static final Pattern idPattern = Pattern.compile("[0-9a-fA-F]{8}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{12}|.*@.*");
+
+    private final String tenancy;
+    private final ConcurrentMap<String, Latency> operations = new ConcurrentHashMap<String, Latency>();
+    private final ConcurrentMap<String, Latency> endpoints = new ConcurrentHashMap<String, Latency>();
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong retryDelayMillis = new AtomicLong();
+    private final AtomicLong throttledResponses = new AtomicLong();
+    private final AtomicLong throttleDelayMillis = new AtomicLong();
+    private final AtomicLong tokenRefreshes = new AtomicLong();
+    private final AtomicLong tokenRefreshFailures = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+
+    Office365Metrics(String tenancy) {
+        this.tenancy = tenancy;
+    }
+
+    /**
+     * @return the metrics for the tenancy, created and registered with JMX on first use
+     */
+    public static Office365Metrics forTenancy(String tenancy) {
+        String key = tenancy != null ? tenancy.toLowerCase() : "";
+        Office365Metrics metrics = registry.get(key);
+        if (metrics == null) {
+            Office365Metrics created = new Office365Metrics(key);
+            metrics = registry.putIfAbsent(key, created);
+            if (metrics == null) {
+                register(created, "Metrics", key, null);
+                return created;
+            }
+        }
+        return metrics;
+    }
+
+    /**
+     * Record a connector operation such as create or search.
+     *
+     * @param startNanos the {@link System#nanoTime()} the operation started
+     */
+    public void recordOperation(String operation, long startNanos, boolean success) {
+        Latency latency = latency(this.operations, "Operation", operation);
+        latency.record(System.nanoTime() - startNanos, success);
+    }
+
+    /**
+     * Record one HTTP exchange with the Graph API, each retry is recorded separately.
+     *
+     * @param status the HTTP status, or -1 if no response was received
+     * @param startNanos the {@link System#nanoTime()} the request was sent
+     */
+    public void recordRequest(String method, String path, int status, long startNanos) {
+        this.requests.incrementAndGet();
+        Latency latency = latency(this.endpoints, "Endpoint", endpointOf(method, path));
+        latency.record(System.nanoTime() - startNanos, status >= 200 && status < 400);
+        latency.countStatus(status);
+    }
+
+    public void recordRetry(long delayMillis) {
+        this.retries.incrementAndGet();
+        this.retryDelayMillis.addAndGet(delayMillis);
+    }
+
+    /**
+     * Record a 429 or 503 that paused dispatch to the tenancy.
+     */
+    public void recordThrottle(long delayMillis) {
+        this.throttledResponses.incrementAndGet();
+        this.throttleDelayMillis.addAndGet(delayMillis);
+    }
+
+    public void recordTokenRefresh(boolean success) {
+        if (success) {
+            this.tokenRefreshes.incrementAndGet();
+        } else {
+            this.tokenRefreshFailures.incrementAndGet();
+        }
+    }
+
+    public void addBytesSent(long bytes) {
+        this.bytesSent.addAndGet(bytes);
+    }
+
+    public void addBytesReceived(long bytes) {
+        this.bytesReceived.addAndGet(bytes);
+    }
+
+    /**
+     * @return the latency of each connector operation, by operation name
+     */
+    public Map<String, Latency> getOperations() {
+        return Collections.unmodifiableMap(new TreeMap<String, Latency>(this.operations));
+    }
+
+    /**
+     * @return the latency of each endpoint, keyed by method and path with ids
+     * replaced by {id}, for example "PATCH /users/{id}"
+     */
+    public Map<String, Latency> getEndpoints() {
+        return Collections.unmodifiableMap(new TreeMap<String, Latency>(this.endpoints));
+    }
+
+    @Override
+    public String getTenancy() {
+        return this.tenancy;
+    }
+
+    @Override
+    public long getRequests() {
+        return this.requests.get();
+    }
+
+    @Override
+    public long getRetries() {
+        return this.retries.get();
+    }
+
+    @Override
+    public long getRetryDelayMillis() {
+        return this.retryDelayMillis.get();
+    }
+
+    @Override
+    public long getThrottledResponses() {
+        return this.throttledResponses.get();
+    }
+
+    @Override
+    public long getThrottleDelayMillis() {
+        return this.throttleDelayMillis.get();
+    }
+
+    @Override
+    public long getTokenRefreshes() {
+        return this.tokenRefreshes.get();
+    }
+
+    @Override
+    public long getTokenRefreshFailures() {
+        return this.tokenRefreshFailures.get();
+    }
+
+    @Override
+    public long getBytesSent() {
+        return this.bytesSent.get();
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return this.bytesReceived.get();
+    }
+
+    private Latency latency(ConcurrentMap<String, Latency> map, String type, String name) {
+        Latency latency = map.get(name);
+        if (latency == null) {
+            Latency created = new Latency();
+            latency = map.putIfAbsent(name, created);
+            if (latency == null) {
+                register(created, type, this.tenancy, name);
+                return created;
+            }
+        }
+        return latency;
+    }
+
+    /**
+     * Reduce a request path to the endpoint it calls, dropping the tenancy
+     * and query string and replacing object ids.
+     */
+    static String endpointOf(String method, String path) {
+        int query = path.indexOf('?');
+        if (query >= 0) {
+            path = path.substring(0, query);
+        }
+
+        StringBuilder sb = new StringBuilder(method).append(' ');
+        String[] segments = path.split("/");
+        // segments[0] is empty and segments[1] the tenancy
+        for (int i = 2; i < segments.length; i++) {
+            sb.append('/').append(idPattern.matcher(segments[i]).matches() ? "{id}" : segments[i]);
+        }
+        if (segments.length <= 2) {
+            sb.append('/');
+        }
+        return sb.toString();
+    }
+
+    private static void register(Object mbean, String type, String tenancy, String name) {
+        try {
+            StringBuilder sb = new StringBuilder(DOMAIN).append(":type=").append(type).append(",tenancy=").append(ObjectName.quote(tenancy));
+            if (name != null) {
+                sb.append(",name=").append(ObjectName.quote(name));
+            }
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName(sb.toString());
+            if (!server.isRegistered(objectName)) {
+                server.registerMBean(mbean, objectName);
+            }
+        } catch (JMException jme) {
+            log.warn(jme, "Unable to register {0} metrics for {1} with JMX", type, name != null ? name : tenancy);
+        } catch (SecurityException se) {
+            log.warn(se, "Unable to register {0} metrics for {1} with JMX", type, name != null ? name : tenancy);
+        }
+    }
+
+    /**
+     * A latency histogram with outcome counts.
+     *
+     * Latencies are counted in buckets on a log scale, four to each power of
+     * two microseconds, so recording never locks or allocates and a
+     * percentile is accurate to within about 20%.
+     */
+    public static class Latency implements Office365LatencyMXBean {
+
+        private static final int SUB_BUCKETS = 4;
+        private static final int SUB_BITS = 2;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(1 + 64 * SUB_BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong errors = new AtomicLong();
+        private final AtomicLong totalNanos = new AtomicLong();
+        private final AtomicLong maxNanos = new AtomicLong();
+        private final ConcurrentMap<Integer, AtomicLong> statusCounts = new ConcurrentHashMap<Integer, AtomicLong>();
+
+        void record(long nanos, boolean success) {
+            nanos = Math.max(0, nanos);
+            this.buckets.incrementAndGet(bucketOf(TimeUnit.NANOSECONDS.toMicros(nanos)));
+            this.count.incrementAndGet();
+            this.totalNanos.addAndGet(nanos);
+            if (!success) {
+                this.errors.incrementAndGet();
+            }
+
+            long max = this.maxNanos.get();
+            while (nanos > max && !this.maxNanos.compareAndSet(max, nanos)) {
+                max = this.maxNanos.get();
+            }
+        }
+
+        void countStatus(int status) {
+            AtomicLong counter = this.statusCounts.get(status);
+            if (counter == null) {
+                AtomicLong created = new AtomicLong();
+                counter = this.statusCounts.putIfAbsent(status, created);
+                if (counter == null) {
+                    counter = created;
+                }
+            }
+            counter.incrementAndGet();
+        }
+
+        static int bucketOf(long micros) {
+            if (micros <= 0) {
+                return 0;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(micros);
+            int sub = exponent >= SUB_BITS ? (int) (micros >>> (exponent - SUB_BITS)) : (int) (micros << (SUB_BITS - exponent));
+            return 1 + exponent * SUB_BUCKETS + (sub & (SUB_BUCKETS - 1));
+        }
+
+        /**
+         * @return the largest number of microseconds counted in the bucket
+         */
+        static long upperBoundOf(int bucket) {
+            if (bucket == 0) {
+                return 0;
+            }
+            int exponent = (bucket - 1) / SUB_BUCKETS;
+            int sub = (bucket - 1) % SUB_BUCKETS;
+            double upper = Math.scalb((double) (SUB_BUCKETS + sub + 1), exponent - SUB_BITS);
+            return (long) Math.ceil(upper) - 1;
+        }
+
+        /**
+         * @param percentile between 0 and 100
+         * @return the latency at the percentile in milliseconds, or 0 if nothing has been recorded
+         */
+        public double getPercentileMillis(double percentile) {
+            long total = 0;
+            long[] counts = new long[this.buckets.length()];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = this.buckets.get(i);
+                total += counts[i];
+            }
+            if (total == 0) {
+                return 0;
+            }
+
+            long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(upperBoundOf(i) / 1000.0, getMaxMillis());
+                }
+            }
+            return getMaxMillis();
+        }
+
+        @Override
+        public long getCount() {
+            return this.count.get();
+        }
+
+        @Override
+        public long getErrors() {
+            return this.errors.get();
+        }
+
+        @Override
+        public double getMeanMillis() {
+            long n = this.count.get();
+            return n == 0 ? 0 : this.totalNanos.get() / 1e6 / n;
+        }
+
+        @Override
+        public double getMaxMillis() {
+            return this.maxNanos.get() / 1e6;
+        }
+
+        @Override
+        public double getP50Millis() {
+            return getPercentileMillis(50);
+        }
+
+        @Override
+        public double getP95Millis() {
+            return getPercentileMillis(95);
+        }
+
+        @Override
+        public double getP99Millis() {
+            return getPercentileMillis(99);
+        }
+
+        @Override
+        public Map<String, Long> getStatusCounts() {
+            Map<String, Long> counts = new TreeMap<String, Long>();
+            for (Map.Entry<Integer, AtomicLong> entry : this.statusCounts.entrySet()) {
+                counts.put(entry.getKey() < 0 ? "failed" : entry.getKey().toString(), entry.getValue().get());
+            }
+            return counts;
+        }
+    }
+}
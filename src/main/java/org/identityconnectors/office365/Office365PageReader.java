@@ -0,0 +1,249 @@
+/*
+ * DO NOT REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2013 Salford Software Ltd. All rights reserved.
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://opensource.org/licenses/cddl1.txt
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://opensource.org/licenses/cddl1.txt
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.office365;
+
+import java.io.Reader;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.json.JSONException;
+import org.json.JSONTokener;
+
+/**
+ * Streaming reader for an OData collection response of the form
+ * <code>{"odata.metadata": ..., "value": [ {...}, {...} ], "odata.nextLink": ...}</code>.
+ *
+ * The response is read incrementally from the stream, each element of the
+ * value array is handed to an {@link ItemDecoder} while positioned on it and
+ * the decoded item passed straight to the {@link ItemHandler}, so only one
+ * element is held in memory at a time. All other top level properties are
+ * collected into the returned {@link Page}.
+ *
+ * @author Paul Heaney
+ */
+public class Office365PageReader {
+
+    public static final String VALUE = "value";
+    public static final String NEXT_LINK = "odata.nextLink";
+    // Differential query paging, the next page or the link for the next query
+    public static final String DELTA_NEXT_LINK = "aad.nextLink";
+    public static final String DELTA_LINK = "aad.deltaLink";
+
+    /**
+     * Decodes a single element of the value array.
+     */
+    public interface ItemDecoder<T> {
+
+        /**
+         * @param tokener positioned just before the element
+         * @return the decoded item, or null to skip it
+         */
+        T decode(JSONTokener tokener) throws JSONException;
+    }
+
+    /**
+     * Receives each decoded element.
+     */
+    public interface ItemHandler<T> {
+
+        /**
+         * @return false to stop reading the page
+         */
+        boolean handle(T item);
+    }
+
+    /**
+     * The top level properties of a page other than its value array.
+     */
+    public static class Page {
+
+        private final Map<String, Object> properties = new HashMap<String, Object>();
+        private boolean stopped = false;
+        private int itemCount = 0;
+
+        public Object getProperty(String name) {
+            return this.properties.get(name);
+        }
+
+        public String getStringProperty(String name) {
+            Object value = this.properties.get(name);
+            return value instanceof String ? (String) value : null;
+        }
+
+        public String getNextLink() {
+            return getStringProperty(NEXT_LINK);
+        }
+
+        public String getDeltaNextLink() {
+            return getStringProperty(DELTA_NEXT_LINK);
+        }
+
+        public String getDeltaLink() {
+            return getStringProperty(DELTA_LINK);
+        }
+
+        /**
+         * @return true if the handler stopped reading before the end of the page
+         */
+        public boolean isStopped() {
+            return stopped;
+        }
+
+        public int getItemCount() {
+            return itemCount;
+        }
+    }
+
+    private Office365PageReader() {
+    }
+
+    /**
+     * Read a page from the reader, passing each decoded element to the handler.
+     */
+    public static <T> Page read(Reader reader, ItemDecoder<T> decoder, ItemHandler<T> handler) throws JSONException {
+        JSONTokener x = new JSONTokener(reader);
+        Page page = new Page();
+
+        if (x.nextClean() != '{') {
+            throw x.syntaxError("A page must begin with '{'");
+        }
+
+        char c = x.nextClean();
+        if (c == '}') {
+            return page;
+        }
+        x.back();
+
+        while (true) {
+            String key = nextKey(x);
+
+            if (VALUE.equals(key)) {
+                if (!readItems(x, decoder, handler, page)) {
+                    page.stopped = true;
+                    return page;
+                }
+            } else {
+                page.properties.put(key, x.nextValue());
+            }
+
+            c = x.nextClean();
+            if (c == '}') {
+                return page;
+            } else if (c != ',') {
+                throw x.syntaxError("Expected ',' or '}'");
+            }
+        }
+    }
+
+    private static <T> boolean readItems(JSONTokener x, ItemDecoder<T> decoder, ItemHandler<T> handler, Page page) throws JSONException {
+        if (x.nextClean() != '[') {
+            throw x.syntaxError("The value property must be an array");
+        }
+
+        char c = x.nextClean();
+        if (c == ']') {
+            return true;
+        }
+        x.back();
+
+        while (true) {
+            T item = decoder.decode(x);
+            page.itemCount++;
+            if (item != null && !handler.handle(item)) {
+                return false;
+            }
+
+            c = x.nextClean();
+            if (c == ']') {
+                return true;
+            } else if (c != ',') {
+                throw x.syntaxError("Expected ',' or ']'");
+            }
+        }
+    }
+
+    /**
+     * Read an object key and the following ':'.
+     */
+    public static String nextKey(JSONTokener x) throws JSONException {
+        char c = x.nextClean();
+        if (c != '"') {
+            throw x.syntaxError("Expected a quoted key");
+        }
+        String key = x.nextString('"');
+
+        if (x.nextClean() != ':') {
+            throw x.syntaxError("Expected ':' after key " + key);
+        }
+        return key;
+    }
+
+    /**
+     * Skip over the next value without building it.
+     */
+    public static void skipValue(JSONTokener x) throws JSONException {
+        char c = x.nextClean();
+        switch (c) {
+            case '"':
+            case '\'':
+                x.nextString(c);
+                return;
+            case '{':
+                c = x.nextClean();
+                if (c == '}') {
+                    return;
+                }
+                x.back();
+                while (true) {
+                    nextKey(x);
+                    skipValue(x);
+                    c = x.nextClean();
+                    if (c == '}') {
+                        return;
+                    } else if (c != ',') {
+                        throw x.syntaxError("Expected ',' or '}'");
+                    }
+                }
+            case '[':
+                c = x.nextClean();
+                if (c == ']') {
+                    return;
+                }
+                x.back();
+                while (true) {
+                    skipValue(x);
+                    c = x.nextClean();
+                    if (c == ']') {
+                        return;
+                    } else if (c != ',') {
+                        throw x.syntaxError("Expected ',' or ']'");
+                    }
+                }
+            default:
+                // number, boolean or null
+                x.back();
+                x.nextValue();
+        }
+    }
+}
@@ -0,0 +1,273 @@
+/*
+ * DO NOT REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2013 Salford Software Ltd. All rights reserved.
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://opensource.org/licenses/cddl1.txt
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://opensource.org/licenses/cddl1.txt
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.office365;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.identityconnectors.common.logging.Log;
+
+/**
+ * Rate limits the requests sent to a tenancy with a token bucket, and pauses
+ * all dispatch when the Graph API asks us to back off with Retry-After.
+ *
+ * There is one scheduler in each {@link Office365TenantResources}, shared by
+ * every connection to the tenancy with the same credentials, so all
+ * connector instances slow down together rather than each being throttled
+ * in turn. It also caps the number of tasks run concurrently
+ * against the tenancy by {@link Office365TaskExecutor}.
+ *
+ * @author Paul Heaney
+ */
+public class Office365RequestScheduler {
+
+    private static final Log log = Log.getLog(Office365RequestScheduler.class);
+
+    private final String tenancy;
+    private double permitsPerSecond; // 0 means unlimited
+    private double maxPermits;
+    private double storedPermits;
+    private long lastRefill;
+    private long pausedUntil;
+    private final Slots slots = new Slots();
+    private volatile int maxConcurrency = 0;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong delayedRequests = new AtomicLong();
+    private final AtomicLong totalDelayMillis = new AtomicLong();
+    private final AtomicLong throttledResponses = new AtomicLong();
+    private final Office365Metrics metrics;
+
+    Office365RequestScheduler(String tenancy, double permitsPerSecond, int burst) {
+        this(tenancy, permitsPerSecond, burst, Integer.MAX_VALUE);
+    }
+
+    Office365RequestScheduler(String tenancy, double permitsPerSecond, int burst, int maxConcurrency) {
+        this.tenancy = tenancy;
+        this.metrics = Office365Metrics.forTenancy(tenancy);
+        this.lastRefill = System.nanoTime();
+        this.pausedUntil = this.lastRefill;
+        setRate(permitsPerSecond, burst);
+        setMaxConcurrency(maxConcurrency);
+        this.storedPermits = this.maxPermits;
+    }
+
+    /**
+     * Change the number of concurrent tasks, tasks already running beyond a
+     * lowered limit finish and no more start until they are under it.
+     */
+    void setMaxConcurrency(int maxConcurrency) {
+        maxConcurrency = Math.max(1, maxConcurrency);
+        synchronized (this.slots) {
+            int change = maxConcurrency - this.maxConcurrency;
+            this.maxConcurrency = maxConcurrency;
+            if (change > 0) {
+                this.slots.release(change);
+            } else if (change < 0) {
+                this.slots.reduce(-change);
+            }
+        }
+    }
+
+    /**
+     * @return the number of tasks that may run against the tenancy at once
+     */
+    public int getMaxConcurrency() {
+        return this.maxConcurrency;
+    }
+
+    /**
+     * Block until a concurrent task may start, it must call
+     * {@link #releaseSlot()} when done. Waits on a Semaphore rather than a
+     * monitor so a virtual thread waiting here does not pin its carrier.
+     *
+     * @throws InterruptedException if interrupted whilst waiting
+     */
+    public void acquireSlot() throws InterruptedException {
+        this.slots.acquire();
+    }
+
+    public void releaseSlot() {
+        this.slots.release();
+    }
+
+    /**
+     * @return the requests per second allowed, 0 for unlimited
+     */
+    public synchronized double getPermitsPerSecond() {
+        return this.permitsPerSecond;
+    }
+
+    /**
+     * @return true if the configuration asks for different limits to the
+     * ones this scheduler has
+     */
+    synchronized boolean isDifferent(Office365Configuration configuration) {
+        return configuration.getRequestsPerSecond() != this.permitsPerSecond
+                || Math.max(1, configuration.getRequestBurst()) != (int) this.maxPermits
+                || Math.max(1, configuration.getMaxConcurrency()) != this.maxConcurrency;
+    }
+
+    synchronized void setRate(double permitsPerSecond, int burst) {
+        refill(System.nanoTime());
+        this.permitsPerSecond = permitsPerSecond;
+        this.maxPermits = Math.max(1, burst);
+        this.storedPermits = Math.min(this.storedPermits, this.maxPermits);
+    }
+
+    /**
+     * Block until the next request may be sent.
+     *
+     * @throws InterruptedException if interrupted whilst waiting
+     */
+    public void acquire() throws InterruptedException {
+        requests.incrementAndGet();
+        long waited = 0;
+        long wait = reserve();
+        while (wait > 0) {
+            TimeUnit.MILLISECONDS.sleep(wait);
+            waited += wait;
+            // A Retry-After may have arrived whilst we slept
+            wait = getPauseRemaining();
+        }
+
+        if (waited > 0) {
+            delayedRequests.incrementAndGet();
+            totalDelayMillis.addAndGet(waited);
+            log.ok("Request to {0} delayed {1} ms", this.tenancy, waited);
+        }
+    }
+
+    /**
+     * Non-blocking form of {@link #acquire()}, takes a permit for a request
+     * that will be dispatched later rather than waiting for it.
+     *
+     * @return the number of milliseconds to wait before sending the request
+     */
+    public long reserveDelay() {
+        requests.incrementAndGet();
+        long wait = reserve();
+        if (wait > 0) {
+            delayedRequests.incrementAndGet();
+            totalDelayMillis.addAndGet(wait);
+        }
+        return wait;
+    }
+
+    /**
+     * Take a permit, going into debt if none are left.
+     *
+     * @return the number of milliseconds to wait before using it
+     */
+    synchronized long reserve() {
+        long now = System.nanoTime();
+        long pause = Math.max(0, TimeUnit.NANOSECONDS.toMillis(this.pausedUntil - now));
+        if (this.permitsPerSecond <= 0) {
+            return pause;
+        }
+
+        refill(now);
+        this.storedPermits -= 1;
+        long wait = 0;
+        if (this.storedPermits < 0) {
+            wait = (long) Math.ceil(-this.storedPermits * 1000 / this.permitsPerSecond);
+        }
+
+        return Math.max(wait, pause);
+    }
+
+    private void refill(long now) {
+        if (this.permitsPerSecond > 0) {
+            double elapsedSeconds = (now - this.lastRefill) / 1e9;
+            this.storedPermits = Math.min(this.maxPermits, this.storedPermits + elapsedSeconds * this.permitsPerSecond);
+        }
+        this.lastRefill = now;
+    }
+
+    /**
+     * @return how long dispatch is paused for after a Retry-After, in milliseconds
+     */
+    synchronized long getPauseRemaining() {
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(this.pausedUntil - System.nanoTime()));
+    }
+
+    /**
+     * Hold back all requests to the tenancy, called when the service
+     * responds with 429 or 503 and a Retry-After.
+     *
+     * @param millis how long to pause dispatch for
+     */
+    public synchronized void pause(long millis) {
+        throttledResponses.incrementAndGet();
+        metrics.recordThrottle(millis);
+        long until = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+        if (until - this.pausedUntil > 0) {
+            this.pausedUntil = until;
+        }
+        log.info("Throttled by {0}, pausing requests for {1} ms", this.tenancy, millis);
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * @return the number of requests that had to wait for a permit or a pause
+     */
+    public long getDelayedRequests() {
+        return delayedRequests.get();
+    }
+
+    /**
+     * @return the total time requests spent waiting, in milliseconds
+     */
+    public long getTotalDelayMillis() {
+        return totalDelayMillis.get();
+    }
+
+    /**
+     * @return the number of 429/503 responses that paused dispatch
+     */
+    public long getThrottledResponses() {
+        return throttledResponses.get();
+    }
+
+    /**
+     * The concurrent task slots, with permits that can be taken away when
+     * the max concurrency is lowered.
+     */
+    private static class Slots extends Semaphore {
+
+        private static final long serialVersionUID = 1L;
+
+        Slots() {
+            super(0);
+        }
+
+        void reduce(int reduction) {
+            reducePermits(reduction);
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * DO NOT REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2013 Salford Software Ltd. All rights reserved.
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://opensource.org/licenses/cddl1.txt
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://opensource.org/licenses/cddl1.txt
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.office365;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.identityconnectors.common.logging.Log;
+
+/**
+ * Decides whether a failed request may be sent again, and how long to wait
+ * before doing so.
+ *
+ * GET, PATCH and DELETE are idempotent and are retried on connection errors
+ * and 5xx responses. A POST is only retried when the caller says it is safe,
+ * a create has to check the object was not created by the failed attempt
+ * first (see {@link Office365UserOps#createUser}).
+ *
+ * The delay doubles on each attempt up to a cap, with half of it randomised
+ * so that clients failing together do not all retry together.
+ *
+ * @author Paul Heaney
+ */
+public class Office365RetryPolicy {
+
+    private static final Log log = Log.getLog(Office365RetryPolicy.class);
+
+    private final int maxRetries;
+    private final long initialDelay; // ms
+    private final long maxDelay; // ms
+    private final Random random = new Random();
+    private final Office365Metrics metrics; // may be null
+
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong totalRetryDelayMillis = new AtomicLong();
+
+    public Office365RetryPolicy(Office365Configuration configuration) {
+        this(configuration.getMaxRetries(), configuration.getRetryInitialDelay(), configuration.getRetryMaxDelay(),
+                Office365Metrics.forTenancy(configuration.getTenancy()));
+    }
+
+    Office365RetryPolicy(int maxRetries, long initialDelay, long maxDelay) {
+        this(maxRetries, initialDelay, maxDelay, null);
+    }
+
+    Office365RetryPolicy(int maxRetries, long initialDelay, long maxDelay, Office365Metrics metrics) {
+        this.maxRetries = maxRetries;
+        this.initialDelay = initialDelay;
+        this.maxDelay = maxDelay;
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return true if requests with this method can safely be sent twice
+     */
+    public static boolean isIdempotent(String method) {
+        return "GET".equals(method) || "PATCH".equals(method) || "DELETE".equals(method) || "PUT".equals(method);
+    }
+
+    /**
+     * @return true if the status indicates a transient server side failure
+     */
+    public boolean isRetryableStatus(int status) {
+        return status == 408 || status == 500 || status == 502 || status == 503 || status == 504;
+    }
+
+    /**
+     * @return true if the exception indicates a transient failure, such as a
+     * connection reset, either directly or as the cause of a ConnectorException
+     */
+    public boolean isRetryableException(Throwable t) {
+        while (t != null) {
+            if (t instanceof IOException) {
+                return true;
+            } else if (t instanceof Office365Exception) {
+                Integer code = ((Office365Exception) t).getErrorCode();
+                return code != null && isRetryableStatus(code);
+            }
+            t = t.getCause();
+        }
+        return false;
+    }
+
+    /**
+     * @param attempt the number of retries already made
+     */
+    public boolean canRetry(int attempt) {
+        return attempt < this.maxRetries;
+    }
+
+    /**
+     * @param attempt the number of retries already made
+     * @return the delay before the next retry in milliseconds
+     */
+    public long getDelay(int attempt) {
+        long delay = this.initialDelay << Math.min(attempt, 30);
+        if (delay <= 0 || delay > this.maxDelay) {
+            delay = this.maxDelay;
+        }
+
+        long half = delay / 2;
+        return half + (long) (this.random.nextDouble() * (delay - half));
+    }
+
+    /**
+     * Wait before the next retry.
+     *
+     * @param attempt the number of retries already made
+     * @param what description of the request for logging
+     */
+    public void backoff(int attempt, String what) throws InterruptedException {
+        TimeUnit.MILLISECONDS.sleep(nextDelay(attempt, what));
+    }
+
+    /**
+     * Record a retry without waiting for it, for callers that schedule the
+     * retry themselves.
+     *
+     * @param attempt the number of retries already made
+     * @param what description of the request for logging
+     * @return the delay before the retry in milliseconds
+     */
+    public long nextDelay(int attempt, String what) {
+        long delay = getDelay(attempt);
+        retries.incrementAndGet();
+        totalRetryDelayMillis.addAndGet(delay);
+        if (this.metrics != null) {
+            this.metrics.recordRetry(delay);
+        }
+        log.info("Retrying {0} in {1} ms, retry {2} of {3}", what, delay, attempt + 1, this.maxRetries);
+        return delay;
+    }
+
+    /**
+     * @return the number of retries made
+     */
+    public long getRetries() {
+        return retries.get();
+    }
+
+    /**
+     * @return the total time spent waiting to retry, in milliseconds
+     */
+    public long getTotalRetryDelayMillis() {
+        return totalRetryDelayMillis.get();
+    }
+}
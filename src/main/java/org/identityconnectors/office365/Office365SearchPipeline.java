@@ -0,0 +1,270 @@
+/*
+ * DO NOT REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2013 Salford Software Ltd. All rights reserved.
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://opensource.org/licenses/cddl1.txt
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://opensource.org/licenses/cddl1.txt
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.office365;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.framework.common.objects.ConnectorObject;
+import org.identityconnectors.framework.common.objects.ResultsHandler;
+
+/**
+ * Fetches the pages after the first of a search on a background thread
+ * while the calling thread passes the objects already fetched to the
+ * ResultsHandler, so the network wait overlaps with the handler's
+ * processing.
+ *
+ * At most prefetchDepth pages are held waiting for the handler, unless a
+ * memory budget is given, in which case the fetcher never waits for the
+ * handler and pages beyond the budget are spilled to disk by
+ * {@link Office365SpillBuffer}. When the handler returns false, or the
+ * calling thread is interrupted, the fetcher abandons the page it is reading
+ * and stops, and the search waits briefly for it to finish before returning.
+ *
+ * @author Paul Heaney
+ */
+public class Office365SearchPipeline {
+
+    private static final Log log = Log.getLog(Office365SearchPipeline.class);
+
+    private static final long STOP_TIMEOUT = 1000; // ms to wait for the fetcher to finish
+
+    // Marks the end of the pages, compared by identity
+    static final List<ConnectorObject> END = new ArrayList<ConnectorObject>(0);
+
+    /**
+     * The pages fetched but not yet handled.
+     */
+    interface PageQueue {
+
+        void put(List<ConnectorObject> page) throws InterruptedException;
+
+        List<ConnectorObject> take() throws InterruptedException;
+
+        /**
+         * Drop any pages still held and release resources.
+         */
+        void clear();
+    }
+
+    private final Office365Connection connection;
+    private final Office365PageReader.ItemDecoder<ConnectorObject> decoder;
+    private final String basePath;
+    private final int prefetchDepth;
+    private final long memoryBudget;
+    private final File spillDirectory;
+    private PageQueue pages = null; // created when a second page is fetched
+    private final AtomicInteger pageCount = new AtomicInteger();
+    private volatile boolean stopped = false;
+    private volatile RuntimeException failure = null;
+    private Thread fetcher = null;
+
+    /**
+     * @param basePath the path of the first page, further pages add the skip token
+     * @param prefetchDepth the number of pages that may be fetched ahead of the handler
+     * @param memoryBudget bytes of fetched objects to hold in memory before
+     * spilling to disk, or 0 to wait for the handler instead
+     * @param spillDirectory where pages beyond the memory budget are
+     * written, null for the system temp directory
+     */
+    public Office365SearchPipeline(Office365Connection connection, Office365PageReader.ItemDecoder<ConnectorObject> decoder, String basePath,
+            int prefetchDepth, long memoryBudget, File spillDirectory) {
+        this.connection = connection;
+        this.decoder = decoder;
+        this.basePath = basePath;
+        this.prefetchDepth = prefetchDepth;
+        this.memoryBudget = memoryBudget;
+        this.spillDirectory = spillDirectory;
+    }
+
+    private PageQueue newPageQueue() {
+        if (this.memoryBudget > 0) {
+            return new Office365SpillBuffer(this.memoryBudget, this.spillDirectory);
+        } else {
+            final BlockingQueue<List<ConnectorObject>> queue = new ArrayBlockingQueue<List<ConnectorObject>>(Math.max(1, this.prefetchDepth));
+            return new PageQueue() {
+                @Override
+                public void put(List<ConnectorObject> page) throws InterruptedException {
+                    queue.put(page);
+                }
+
+                @Override
+                public List<ConnectorObject> take() throws InterruptedException {
+                    return queue.take();
+                }
+
+                @Override
+                public void clear() {
+                    queue.clear();
+                }
+            };
+        }
+    }
+
+    /**
+     * Run the search, passing every object to the handler.
+     *
+     * The first page is read on the calling thread, the fetcher is only
+     * started if there is a page after it, so a search with one page, such
+     * as most filtered searches, runs without one.
+     *
+     * @return the number of pages fetched
+     */
+    public int run(ResultsHandler handler) {
+        List<ConnectorObject> first = new ArrayList<ConnectorObject>();
+        Office365PageReader.Page result = readPage(null, first);
+        this.pageCount.incrementAndGet();
+        final String skipToken = Office365Connection.getSkipToken(result.getNextLink());
+        if (skipToken != null) {
+            this.pages = newPageQueue();
+            this.fetcher = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    fetch(skipToken);
+                }
+            }, "Office365-SearchFetcher-" + this.connection.getTenancy());
+            this.fetcher.setDaemon(true);
+            this.fetcher.start();
+        }
+
+        try {
+            for (ConnectorObject co : first) {
+                if (!handler.handle(co)) {
+                    log.info("Handler stopped the search after {0} page(s)", this.pageCount.get());
+                    return this.pageCount.get();
+                }
+            }
+            if (skipToken == null) {
+                return this.pageCount.get();
+            }
+
+            while (true) {
+                List<ConnectorObject> page = this.pages.take();
+                if (page == END) {
+                    if (this.failure != null) {
+                        throw this.failure;
+                    }
+                    return this.pageCount.get();
+                }
+
+                for (ConnectorObject co : page) {
+                    if (!handler.handle(co)) {
+                        log.info("Handler stopped the search after {0} page(s)", this.pageCount.get());
+                        return this.pageCount.get();
+                    }
+                }
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new ConnectorException("Interrupted whilst searching " + this.basePath, ie);
+        } finally {
+            stop();
+        }
+    }
+
+    /**
+     * Read a page into a list, abandoning it if the search is stopped.
+     *
+     * @param skipToken the skip token of the page, null for the first
+     */
+    private Office365PageReader.Page readPage(String skipToken, final List<ConnectorObject> page) {
+        String path = this.basePath;
+        if (skipToken != null) {
+            path += "&$skiptoken=" + skipToken;
+        }
+
+        return this.connection.getPagedRequest(path, this.decoder, new Office365PageReader.ItemHandler<ConnectorObject>() {
+            @Override
+            public boolean handle(ConnectorObject co) {
+                if (stopped) {
+                    return false;
+                }
+                page.add(co);
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Fetch the pages after the first, from its skip token.
+     */
+    private void fetch(String skipToken) {
+        try {
+            do {
+                List<ConnectorObject> page = new ArrayList<ConnectorObject>();
+                Office365PageReader.Page result = readPage(skipToken, page);
+
+                if (this.stopped || result.isStopped()) {
+                    return;
+                }
+
+                this.pages.put(page);
+                this.pageCount.incrementAndGet();
+                skipToken = Office365Connection.getSkipToken(result.getNextLink());
+            } while (skipToken != null && !this.stopped);
+        } catch (InterruptedException ie) {
+            return;
+        } catch (RuntimeException re) {
+            if (!this.stopped) {
+                log.error(re, "Error fetching {0}", this.basePath);
+                this.failure = re;
+            }
+        }
+
+        if (!this.stopped) {
+            try {
+                this.pages.put(END);
+            } catch (InterruptedException ie) {
+                // stopped whilst waiting for room
+            }
+        }
+    }
+
+    /**
+     * Stop the fetcher and drop any pages it has fetched.
+     */
+    private void stop() {
+        this.stopped = true;
+        if (this.fetcher != null) {
+            this.fetcher.interrupt();
+            try {
+                this.fetcher.join(STOP_TIMEOUT);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+            if (this.fetcher.isAlive()) {
+                log.warn("Search fetcher for {0} still running {1} ms after being stopped", this.basePath, STOP_TIMEOUT);
+            }
+        }
+        if (this.pages != null) {
+            this.pages.clear();
+        }
+    }
+}
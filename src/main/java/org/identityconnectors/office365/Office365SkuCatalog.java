@@ -0,0 +1,267 @@
+/*
+ * DO NOT REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2013 Salford Software Ltd. All rights reserved.
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://opensource.org/licenses/cddl1.txt
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://opensource.org/licenses/cddl1.txt
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.office365;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * The tenancy's subscribed SKUs and their service plans, as an immutable
+ * snapshot that is swapped atomically when it is reloaded.
+ *
+ * Loads go through the connection of the latest caller, as the catalog is
+ * shared by all the connections to the tenancy and outlives any one of
+ * them. Only the first load is made by the caller. Once a snapshot is past its
+ * TTL it is still returned whilst a reload runs in the background, so
+ * license operations never wait for one. A failed load is remembered for
+ * the failure TTL: until then a failed first load is rethrown and a stale
+ * snapshot kept, without asking the Graph API again.
+ *
+ * @author Paul Heaney
+ */
+public class Office365SkuCatalog {
+
+    private static final Log log = Log.getLog(Office365SkuCatalog.class);
+
+    /**
+     * Fetches the subscribedSkus collection.
+     */
+    public interface Source {
+        JSONObject fetch();
+    }
+
+    private volatile Source source = null;
+    private final long ttl; // ms
+    private final long failureTtl; // ms
+    private final AtomicReference<Snapshot> snapshot = new AtomicReference<Snapshot>();
+    private final AtomicBoolean refreshing = new AtomicBoolean();
+    private final ThreadPoolExecutor refresher;
+    private final Object loadLock = new Object();
+
+    private volatile ConnectorException failure = null;
+    private volatile long retryAt = 0; // ms, when a load may be tried again after a failure
+
+    /**
+     * @param ttl milliseconds a snapshot is used before it is reloaded
+     * @param failureTtl milliseconds to wait before loading again after a failure
+     */
+    public Office365SkuCatalog(long ttl, long failureTtl, final String tenancy) {
+        this.ttl = ttl;
+        this.failureTtl = failureTtl;
+        // The thread only lives whilst a reload is running
+        this.refresher = new ThreadPoolExecutor(0, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "Office365-SkuCatalog-" + tenancy);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * The SKUs and service plans at one point in time. Its licenses are
+     * shared and must not be modified.
+     */
+    public static class Snapshot {
+
+        private final Map<String, Office365License> licenses; // skuPartNumber to license
+        private final Map<String, String> servicePlanIds; // servicePlanName to servicePlanId
+        private final long loaded = System.currentTimeMillis();
+
+        Snapshot(Map<String, Office365License> licenses, Map<String, String> servicePlanIds) {
+            this.licenses = Collections.unmodifiableMap(licenses);
+            this.servicePlanIds = Collections.unmodifiableMap(servicePlanIds);
+        }
+
+        /**
+         * @return the license with this SKU part number, or null if the tenancy has none
+         */
+        public Office365License getLicense(String skuPartNumber) {
+            return this.licenses.get(skuPartNumber);
+        }
+
+        /**
+         * @return the SKU id of the license with this part number, or null if the tenancy has none
+         */
+        public String getSkuId(String skuPartNumber) {
+            Office365License license = this.licenses.get(skuPartNumber);
+            return license != null ? license.getSkuID() : null;
+        }
+
+        public String getServicePlanId(String servicePlanName) {
+            return this.servicePlanIds.get(servicePlanName);
+        }
+
+        public Map<String, Office365License> getLicenses() {
+            return licenses;
+        }
+
+        public long getLoaded() {
+            return loaded;
+        }
+    }
+
+    /**
+     * @param source fetches the SKUs if they are loaded now or in the background
+     * @return the current snapshot, loading the first one if need be
+     * @throws ConnectorException if there is no snapshot and the last load
+     * failed, within the failure TTL
+     */
+    public Snapshot getSnapshot(Source source) {
+        this.source = source;
+        Snapshot current = this.snapshot.get();
+        if (current == null) {
+            return loadFirst();
+        }
+
+        long now = System.currentTimeMillis();
+        if (now - current.getLoaded() >= this.ttl && now >= this.retryAt) {
+            refreshInBackground();
+        }
+        return current;
+    }
+
+    /**
+     * Reload now, in the calling thread.
+     */
+    public void refresh(Source source) {
+        this.source = source;
+        load();
+    }
+
+    public void shutdown() {
+        this.refresher.shutdownNow();
+    }
+
+    private Snapshot loadFirst() {
+        synchronized (this.loadLock) {
+            Snapshot current = this.snapshot.get();
+            if (current != null) {
+                return current;
+            }
+            if (this.failure != null && System.currentTimeMillis() < this.retryAt) {
+                throw new ConnectorException("Subscribed SKUs are unavailable, the last load failed: " + this.failure.getMessage(), this.failure);
+            }
+            return load();
+        }
+    }
+
+    private void refreshInBackground() {
+        if (!this.refreshing.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            this.refresher.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        load();
+                    } catch (ConnectorException ce) {
+                        log.warn("Keeping the SKU catalog loaded at {0} until it can be reloaded", snapshot.get().getLoaded());
+                    } finally {
+                        refreshing.set(false);
+                    }
+                }
+            });
+        } catch (RuntimeException re) {
+            // Shut down, the stale snapshot is still used
+            this.refreshing.set(false);
+        }
+    }
+
+    private Snapshot load() {
+        log.info("Loading SKU catalog");
+        try {
+            Snapshot loaded = parse(this.source.fetch());
+            this.snapshot.set(loaded);
+            this.failure = null;
+            this.retryAt = 0;
+            log.ok("Loaded {0} SKU(s)", loaded.getLicenses().size());
+            return loaded;
+        } catch (RuntimeException re) {
+            ConnectorException ce = re instanceof ConnectorException ? (ConnectorException) re : new ConnectorException("Error loading subscribed SKUs", re);
+            log.error(ce, "Error loading subscribed SKUs, not trying again for {0} ms", this.failureTtl);
+            this.failure = ce;
+            this.retryAt = System.currentTimeMillis() + this.failureTtl;
+            throw ce;
+        }
+    }
+
+    static Snapshot parse(JSONObject obj) {
+        Map<String, Office365License> licenses = new HashMap<String, Office365License>();
+        Map<String, String> servicePlanIds = new HashMap<String, String>();
+
+        try {
+            JSONArray skus = obj.getJSONArray("value");
+            for (int i = 0; i < skus.length(); i++) {
+                JSONObject sku = skus.getJSONObject(i);
+
+                String skuID = sku.getString("skuId");
+                String skuPartNumber = sku.getString("skuPartNumber");
+
+                Office365License license = new Office365License(skuID);
+                license.setSkuPartNumber(skuPartNumber);
+                license.setObjectID(sku.getString("objectId"));
+                license.setConsumedUnits(sku.getInt("consumedUnits"));
+                JSONObject prepaidUnits = sku.getJSONObject("prepaidUnits");
+                license.setPrepaidUnitsEnabled(prepaidUnits.getInt("enabled"));
+                license.setPrepaidUnitsSuspended(prepaidUnits.getInt("suspended"));
+                license.setPrepaidUnitsWarning(prepaidUnits.getInt("warning"));
+
+                JSONArray servicePlans = sku.getJSONArray("servicePlans");
+
+                for (int j = 0; j < servicePlans.length(); j++) {
+                    JSONObject planObj = servicePlans.getJSONObject(j);
+                    String planID = planObj.getString("servicePlanId");
+                    String planName = planObj.getString("servicePlanName");
+                    Office365ServicePlan plan = new Office365ServicePlan(planID, planName);
+                    license.addServicePlan(plan);
+
+                    servicePlanIds.put(planName, planID);
+                }
+
+                licenses.put(skuPartNumber, license);
+            }
+        } catch (JSONException je) {
+            throw new ConnectorException("Error parsing subscribed SKUs", je);
+        }
+
+        return new Snapshot(licenses, servicePlanIds);
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ * DO NOT REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2013 Salford Software Ltd. All rights reserved.
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://opensource.org/licenses/cddl1.txt
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://opensource.org/licenses/cddl1.txt
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.office365;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.framework.common.objects.Attribute;
+import org.identityconnectors.framework.common.objects.ConnectorObject;
+import org.identityconnectors.framework.common.serializer.SerializerUtil;
+
+/**
+ * Page queue for {@link Office365SearchPipeline} that never makes the
+ * fetcher wait. Pages are held in memory up to a budget, beyond that they
+ * are written to a temp file and read back when the handler gets to them.
+ * The file is only readable by its owner where the file system has POSIX
+ * permissions, and is deleted when the buffer is cleared.
+ *
+ * Once a page has been spilled every following page is spilled too, until
+ * the handler has caught up with the file, so pages are always handed out
+ * in the order they were fetched. Objects are written in the framework's
+ * binary serialization, each prefixed with its length.
+ *
+ * @author Paul Heaney
+ */
+public class Office365SpillBuffer implements Office365SearchPipeline.PageQueue {
+
+    private static final Log log = Log.getLog(Office365SpillBuffer.class);
+
+    private static final int END_MARKER = -1;
+
+    private final long memoryBudget; // bytes
+    private final File directory; // null for the system temp directory
+    private final LinkedList<List<ConnectorObject>> memory = new LinkedList<List<ConnectorObject>>();
+    private final LinkedList<Long> memorySizes = new LinkedList<Long>();
+    private long memoryBytes = 0;
+
+    private File file = null;
+    private DataOutputStream out = null;
+    private DataInputStream in = null;
+    private long spilledPages = 0;
+    private long readPages = 0;
+    private long totalSpilledPages = 0;
+    private boolean cleared = false;
+    private ConnectorException failure = null;
+
+    /**
+     * @param memoryBudget estimated bytes of objects to hold in memory
+     */
+    public Office365SpillBuffer(long memoryBudget) {
+        this(memoryBudget, null);
+    }
+
+    /**
+     * @param memoryBudget estimated bytes of objects to hold in memory
+     * @param directory where to create the spill file, null for the system
+     * temp directory
+     */
+    public Office365SpillBuffer(long memoryBudget, File directory) {
+        this.memoryBudget = memoryBudget;
+        this.directory = directory;
+    }
+
+    @Override
+    public synchronized void put(List<ConnectorObject> page) {
+        if (this.cleared || this.failure != null) {
+            return;
+        }
+
+        long size = page == Office365SearchPipeline.END ? 0 : estimateSize(page);
+        boolean onDisk = this.spilledPages > this.readPages;
+        if (!onDisk && (this.memoryBytes + size <= this.memoryBudget || this.memory.isEmpty())) {
+            // A page larger than the whole budget is still held if nothing else is
+            this.memory.add(page);
+            this.memorySizes.add(size);
+            this.memoryBytes += size;
+        } else {
+            try {
+                spill(page);
+            } catch (IOException ioe) {
+                this.failure = new ConnectorException("Error spilling search results to " + this.file, ioe);
+                throw this.failure;
+            }
+        }
+
+        notifyAll();
+    }
+
+    @Override
+    public synchronized List<ConnectorObject> take() throws InterruptedException {
+        while (true) {
+            if (this.failure != null) {
+                throw this.failure;
+            }
+
+            if (!this.memory.isEmpty()) {
+                this.memoryBytes -= this.memorySizes.removeFirst();
+                return this.memory.removeFirst();
+            }
+
+            if (this.readPages < this.spilledPages) {
+                try {
+                    return unspill();
+                } catch (IOException ioe) {
+                    this.failure = new ConnectorException("Error reading spilled search results from " + this.file, ioe);
+                    throw this.failure;
+                }
+            }
+
+            wait();
+        }
+    }
+
+    @Override
+    public synchronized void clear() {
+        this.cleared = true;
+        this.memory.clear();
+        this.memorySizes.clear();
+        this.memoryBytes = 0;
+        closeStreams();
+        if (this.file != null) {
+            if (!this.file.delete()) {
+                log.warn("Unable to delete spill file {0}", this.file);
+            }
+            this.file = null;
+        }
+        if (this.totalSpilledPages > 0) {
+            log.info("Spilled {0} page(s) of search results to disk", this.totalSpilledPages);
+        }
+        notifyAll();
+    }
+
+    private void spill(List<ConnectorObject> page) throws IOException {
+        if (this.out == null) {
+            if (this.file == null) {
+                this.file = createSpillFile();
+                log.info("Search results exceed the memory budget of {0} bytes, spilling to {1}", this.memoryBudget, this.file);
+            }
+            // Truncates anything left from an earlier spill that has been read
+            this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(this.file)));
+        }
+
+        if (page == Office365SearchPipeline.END) {
+            this.out.writeInt(END_MARKER);
+        } else {
+            this.out.writeInt(page.size());
+            for (ConnectorObject co : page) {
+                byte[] bytes = SerializerUtil.serializeBinaryObject(co);
+                this.out.writeInt(bytes.length);
+                this.out.write(bytes);
+            }
+        }
+        this.spilledPages++;
+        this.totalSpilledPages++;
+    }
+
+    private File createSpillFile() throws IOException {
+        Path dir;
+        if (this.directory != null) {
+            dir = Files.createDirectories(this.directory.toPath());
+        } else {
+            dir = Paths.get(System.getProperty("java.io.tmpdir"));
+        }
+
+        if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            return Files.createTempFile(dir, "office365-search", ".spill", PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------"))).toFile();
+        }
+        return Files.createTempFile(dir, "office365-search", ".spill").toFile();
+    }
+
+    /**
+     * @return the file pages are spilled to, null if nothing is spilled
+     */
+    synchronized File getFile() {
+        return this.file;
+    }
+
+    private List<ConnectorObject> unspill() throws IOException {
+        this.out.flush();
+        if (this.in == null) {
+            this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(this.file)));
+        }
+
+        List<ConnectorObject> page;
+        int count = this.in.readInt();
+        if (count == END_MARKER) {
+            page = Office365SearchPipeline.END;
+        } else {
+            page = new ArrayList<ConnectorObject>(count);
+            for (int i = 0; i < count; i++) {
+                byte[] bytes = new byte[this.in.readInt()];
+                this.in.readFully(bytes);
+                page.add((ConnectorObject) SerializerUtil.deserializeBinaryObject(bytes));
+            }
+        }
+        this.readPages++;
+
+        if (this.readPages == this.spilledPages) {
+            // Caught up, start the file again on the next spill
+            closeStreams();
+        }
+        return page;
+    }
+
+    private void closeStreams() {
+        try {
+            if (this.out != null) {
+                this.out.close();
+            }
+            if (this.in != null) {
+                this.in.close();
+            }
+        } catch (IOException ioe) {
+            log.warn(ioe, "Error closing spill file {0}", this.file);
+        }
+        this.out = null;
+        this.in = null;
+        this.spilledPages = 0;
+        this.readPages = 0;
+    }
+
+    /**
+     * Rough heap size of the objects in a page.
+     */
+    static long estimateSize(List<ConnectorObject> page) {
+        long size = 16;
+        for (ConnectorObject co : page) {
+            size += 64;
+            for (Attribute attr : co.getAttributes()) {
+                size += 48 + 2 * attr.getName().length();
+                if (attr.getValue() != null) {
+                    for (Object value : attr.getValue()) {
+                        size += value instanceof String ? 40 + 2 * ((String) value).length() : 16;
+                    }
+                }
+            }
+        }
+        return size;
+    }
+}
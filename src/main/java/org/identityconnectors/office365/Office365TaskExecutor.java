@@ -0,0 +1,167 @@
+/*
+ * DO NOT REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2013 Salford Software Ltd. All rights reserved.
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://opensource.org/licenses/cddl1.txt
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://opensource.org/licenses/cddl1.txt
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.office365;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+
+/**
+ * Runs independent Graph calls concurrently, such as the license assignments
+ * of a bulk create.
+ *
+ * Tasks run on virtual threads when the JVM has them (JDK 21+), otherwise on
+ * a pool of daemon platform threads. Either way no more than the tenancy's
+ * max concurrency run at once, the limit is held by the tenancy's
+ * {@link Office365RequestScheduler} so it applies across all connections.
+ *
+ * @author Paul Heaney
+ */
+public class Office365TaskExecutor {
+
+    private static final Log log = Log.getLog(Office365TaskExecutor.class);
+
+    private final Office365RequestScheduler scheduler;
+    private final ExecutorService executor;
+    private final boolean virtual;
+
+    public Office365TaskExecutor(Office365RequestScheduler scheduler, final String tenancy) {
+        this.scheduler = scheduler;
+
+        ExecutorService virtualExecutor = null;
+        try {
+            // Looked up reflectively so the connector still runs on older JVMs
+            virtualExecutor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (Exception e) {
+            log.ok("Virtual threads not available, using platform threads");
+        }
+
+        this.virtual = virtualExecutor != null;
+        if (this.virtual) {
+            this.executor = virtualExecutor;
+        } else {
+            final AtomicInteger count = new AtomicInteger();
+            this.executor = Executors.newFixedThreadPool(scheduler.getMaxConcurrency(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "Office365-Worker-" + tenancy + "-" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        log.ok("Created task executor for tenancy {0}, virtual threads {1}", tenancy, this.virtual);
+    }
+
+    /**
+     * @return true if tasks run on virtual threads
+     */
+    public boolean isVirtual() {
+        return virtual;
+    }
+
+    /**
+     * Run a task once the tenancy's concurrency limit allows.
+     */
+    public <T> Future<T> submit(final Callable<T> task) {
+        return this.executor.submit(new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                scheduler.acquireSlot();
+                try {
+                    return task.call();
+                } finally {
+                    scheduler.releaseSlot();
+                }
+            }
+        });
+    }
+
+    /**
+     * Run the tasks concurrently and wait for them all to finish.
+     *
+     * @return the result of each task, in the same order
+     * @throws ConnectorException if any task failed, once all have finished
+     */
+    public <T> List<T> invokeAll(List<? extends Callable<T>> tasks) {
+        List<RuntimeException> failures = new ArrayList<RuntimeException>(tasks.size());
+        List<T> results = invokeEach(tasks, failures);
+        for (RuntimeException failure : failures) {
+            if (failure != null) {
+                throw failure;
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Run the tasks concurrently and wait for them all to finish, where one
+     * task failing does not fail the rest.
+     *
+     * @param failures filled with what each task failed with, in the same
+     * order, null for the tasks that succeeded
+     * @return the result of each task, in the same order, null for the tasks
+     * that failed
+     */
+    public <T> List<T> invokeEach(List<? extends Callable<T>> tasks, List<RuntimeException> failures) {
+        List<Future<T>> futures = new ArrayList<Future<T>>(tasks.size());
+        for (Callable<T> task : tasks) {
+            futures.add(submit(task));
+        }
+
+        List<T> results = new ArrayList<T>(futures.size());
+        try {
+            for (Future<T> future : futures) {
+                try {
+                    results.add(future.get());
+                    failures.add(null);
+                } catch (ExecutionException ee) {
+                    results.add(null);
+                    Throwable cause = ee.getCause();
+                    failures.add(cause instanceof RuntimeException ? (RuntimeException) cause : new ConnectorException(cause));
+                }
+            }
+        } catch (InterruptedException ie) {
+            for (Future<T> future : futures) {
+                future.cancel(true);
+            }
+            Thread.currentThread().interrupt();
+            throw new ConnectorException("Interrupted waiting for tasks", ie);
+        }
+        return results;
+    }
+
+    public void shutdown() {
+        this.executor.shutdownNow();
+    }
+}
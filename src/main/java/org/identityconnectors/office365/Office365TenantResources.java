@@ -0,0 +1,273 @@
+/*
+ * DO NOT REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2013 Salford Software Ltd. All rights reserved.
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://opensource.org/licenses/cddl1.txt
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://opensource.org/licenses/cddl1.txt
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.office365;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.common.security.GuardedString;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.office365.domain.Office365Domain;
+
+/**
+ * What the connections to one tenancy with the same credentials can share:
+ * the access token, the request scheduler, the HTTP connection pool, the SKU
+ * catalog, the verified domains and the user cache. The framework pools connector instances, so
+ * without sharing each would fetch its own token and tenant metadata.
+ *
+ * Shared resources are reference counted, {@link #acquire} for each
+ * connection and {@link #release} when it is disposed. They are closed when
+ * the last connection releases them. Settings such as the pool size and
+ * cache TTLs are taken from the configuration that created them, a warning
+ * is logged if a later configuration asks for different request limits.
+ *
+ * @author Paul Heaney
+ */
+public class Office365TenantResources {
+
+    private static final Log log = Log.getLog(Office365TenantResources.class);
+
+    private static final Map<String, Office365TenantResources> registry = new HashMap<String, Office365TenantResources>();
+
+    private final String key;
+    private final String tenancy;
+    private int references = 0;
+
+    private final Office365TokenManager tokenManager;
+    private final Office365RequestScheduler scheduler;
+    private final Office365ContentEncoding contentEncoding;
+    private final PoolingHttpClientConnectionManager connectionManager;
+    private final CloseableHttpClient httpClient;
+    private final Office365Connection.IdleConnectionMonitor idleConnectionMonitor;
+    private final Office365SkuCatalog skuCatalog;
+    private final Office365UserCache userCache;
+    private volatile Map<String, Office365Domain> verifiedDomains = null;
+
+    private Office365TenantResources(String key, Office365Configuration configuration) {
+        this.key = key;
+        this.tenancy = configuration.getTenancy();
+        this.tokenManager = new Office365TokenManager(configuration);
+        this.scheduler = new Office365RequestScheduler(this.tenancy.toLowerCase(), configuration.getRequestsPerSecond(), configuration.getRequestBurst(),
+                configuration.getMaxConcurrency());
+        this.contentEncoding = new Office365ContentEncoding(Office365Metrics.forTenancy(this.tenancy));
+
+        this.connectionManager = new PoolingHttpClientConnectionManager();
+        this.connectionManager.setMaxTotal(configuration.getMaxConnectionsTotal());
+        this.connectionManager.setDefaultMaxPerRoute(configuration.getMaxConnectionsPerRoute());
+
+        // Compression is handled by our own interceptor so it can be switched
+        // off and the bytes saved counted, it counts the bytes received either way
+        HttpClientBuilder builder = HttpClientBuilder.create()
+                .setConnectionManager(this.connectionManager)
+                .setKeepAliveStrategy(Office365Connection.createKeepAliveStrategy(configuration))
+                .disableContentCompression()
+                .addInterceptorLast((HttpResponseInterceptor) this.contentEncoding);
+        if (configuration.isCompressResponses()) {
+            builder.addInterceptorLast((HttpRequestInterceptor) this.contentEncoding);
+        }
+        this.httpClient = builder.build();
+
+        final PoolingHttpClientConnectionManager pool = this.connectionManager;
+        this.idleConnectionMonitor = new Office365Connection.IdleConnectionMonitor("Office365-IdleConnectionMonitor", configuration.getConnectionIdleTimeout()) {
+            @Override
+            void evict(long idleTimeoutMillis) {
+                pool.closeExpiredConnections();
+                pool.closeIdleConnections(idleTimeoutMillis, TimeUnit.MILLISECONDS);
+            }
+        };
+        this.idleConnectionMonitor.start();
+        log.ok("Created HTTP connection pool, max per route {0}, max total {1}",
+                configuration.getMaxConnectionsPerRoute(), configuration.getMaxConnectionsTotal());
+
+        this.skuCatalog = new Office365SkuCatalog(TimeUnit.SECONDS.toMillis(configuration.getSkuCatalogTtl()),
+                TimeUnit.SECONDS.toMillis(configuration.getSkuCatalogFailureTtl()), this.tenancy);
+        if (configuration.getUserCacheSize() > 0) {
+            this.userCache = new Office365UserCache(configuration.getUserCacheSize(), TimeUnit.SECONDS.toMillis(configuration.getUserCacheTtl()));
+        } else {
+            this.userCache = null;
+        }
+    }
+
+    /**
+     * @return the resources for the tenancy and credentials in the
+     * configuration, created if no connection holds them
+     */
+    public static Office365TenantResources acquire(Office365Configuration configuration) {
+        String key = keyOf(configuration);
+        synchronized (registry) {
+            Office365TenantResources resources = registry.get(key);
+            if (resources == null) {
+                resources = new Office365TenantResources(key, configuration);
+                registry.put(key, resources);
+                log.ok("Created shared resources for tenancy {0}", resources.tenancy);
+            } else if (resources.scheduler.isDifferent(configuration)) {
+                log.warn("Request limits for tenancy {0} differ from those of the connections already open, keeping rate {1}/s, max concurrency {2}",
+                        resources.tenancy, resources.scheduler.getPermitsPerSecond(), resources.scheduler.getMaxConcurrency());
+            }
+            resources.references++;
+            return resources;
+        }
+    }
+
+    /**
+     * Called once by each connection that acquired the resources, the last
+     * closes them.
+     */
+    public void release() {
+        synchronized (registry) {
+            if (this.references == 0) {
+                return;
+            }
+            if (--this.references > 0) {
+                log.ok("Released shared resources for tenancy {0}, {1} connection(s) still hold them", this.tenancy, this.references);
+                return;
+            }
+            registry.remove(this.key);
+        }
+
+        this.tokenManager.dispose();
+        this.skuCatalog.shutdown();
+        this.idleConnectionMonitor.shutdown();
+        try {
+            this.httpClient.close();
+        } catch (IOException ioe) {
+            log.warn(ioe, "Error closing HTTP client for tenancy {0}", this.tenancy);
+        }
+        log.ok("Closed shared resources for tenancy {0}", this.tenancy);
+    }
+
+    /**
+     * @return the number of connections holding the resources
+     */
+    public int getReferences() {
+        synchronized (registry) {
+            return this.references;
+        }
+    }
+
+    /**
+     * @return true until the last connection has released the resources
+     */
+    public boolean isOpen() {
+        synchronized (registry) {
+            return this.references > 0 && this.idleConnectionMonitor.isAlive();
+        }
+    }
+
+    public Office365TokenManager getTokenManager() {
+        return tokenManager;
+    }
+
+    /**
+     * @return the scheduler rate limiting requests to the tenancy
+     */
+    public Office365RequestScheduler getScheduler() {
+        return scheduler;
+    }
+
+    public Office365ContentEncoding getContentEncoding() {
+        return contentEncoding;
+    }
+
+    public PoolingHttpClientConnectionManager getConnectionManager() {
+        return connectionManager;
+    }
+
+    public CloseableHttpClient getHttpClient() {
+        return httpClient;
+    }
+
+    public Office365SkuCatalog getSkuCatalog() {
+        return skuCatalog;
+    }
+
+    /**
+     * @return the cache of users fetched one at a time, or null if they are not cached
+     */
+    public Office365UserCache getUserCache() {
+        return userCache;
+    }
+
+    /**
+     * @return the verified domains by lower case name, or null if they have not been read
+     */
+    public Map<String, Office365Domain> getVerifiedDomains() {
+        return verifiedDomains;
+    }
+
+    public void setVerifiedDomains(Map<String, Office365Domain> verifiedDomains) {
+        this.verifiedDomains = verifiedDomains;
+    }
+
+    /**
+     * The tenancy, endpoints and principal, with a digest of the key rather
+     * than the key itself.
+     */
+    static String keyOf(Office365Configuration configuration) {
+        final StringBuilder sb = new StringBuilder();
+        sb.append(configuration.getTenancy().toLowerCase()).append('|')
+                .append(configuration.getApiEndPoint()).append('|')
+                .append(configuration.getAuthURL()).append('|')
+                .append(configuration.getPrincipalID()).append('|')
+                .append(configuration.getResourceID()).append('|')
+                .append(configuration.getAcsPrincipalID()).append('|');
+
+        GuardedString symetricKey = configuration.getSymetricKey();
+        if (symetricKey != null) {
+            try {
+                final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+                symetricKey.access(new GuardedString.Accessor() {
+                    @Override
+                    public void access(char[] clearChars) {
+                        ByteBuffer bytes = Charset.forName("UTF-8").encode(CharBuffer.wrap(clearChars));
+                        digest.update(bytes.duplicate());
+                        if (bytes.hasArray()) {
+                            Arrays.fill(bytes.array(), (byte) 0);
+                        }
+                    }
+                });
+                for (byte b : digest.digest()) {
+                    sb.append(String.format("%02x", b));
+                }
+            } catch (NoSuchAlgorithmException nsae) {
+                throw new ConnectorException("Unable to digest the symmetric key", nsae);
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,389 @@
+/*
+ * DO NOT REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2013 Salford Software Ltd. All rights reserved.
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://opensource.org/licenses/cddl1.txt
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://opensource.org/licenses/cddl1.txt
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.office365;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.identityconnectors.common.StringUtil;
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.common.security.GuardedString;
+import org.identityconnectors.office365.jsontoken.JWTTokenHelper;
+import org.identityconnectors.office365.jsontoken.JsonWebToken;
+import org.json.JSONObject;
+
+/**
+ * Holds the ACS access token for a connection and keeps it fresh.
+ *
+ * The token is refreshed on a background thread shortly before it expires,
+ * so callers normally never wait for ACS. If the token has expired anyway,
+ * the first caller mints a new one while the others wait for that single
+ * request rather than each minting their own. Callers that must not block,
+ * such as the async client's I/O threads, use {@link #getTokenAsync()}
+ * which mints on a thread of its own.
+ *
+ * @author Paul Heaney
+ */
+public class Office365TokenManager {
+
+    private static final Log log = Log.getLog(Office365TokenManager.class);
+
+    static final long DEFAULT_EXPIRES_IN = 60 * 60; // seconds
+    static final long REFRESH_MARGIN = 5 * 60; // seconds before expiry to refresh
+    static final long REFRESH_RETRY_INTERVAL = 30; // seconds between failed background refreshes
+    static final long MIN_REFRESH_DELAY = 10; // seconds, however short lived the token
+    static final long EXPIRY_SKEW = 30; // seconds, treat a token as expired this long before it is
+
+    private final Office365Configuration configuration;
+    private final Object mintLock = new Object();
+    private volatile AccessToken current = null;
+    private ScheduledExecutorService refresher = null;
+    private ScheduledFuture<?> scheduledRefresh = null;
+    private volatile boolean disposed = false;
+    private final Object asyncLock = new Object();
+    private ThreadPoolExecutor minter = null;
+    private CompletableFuture<String> minting = null;
+    private final Office365Metrics metrics;
+
+    public Office365TokenManager(Office365Configuration configuration) {
+        this.configuration = configuration;
+        this.metrics = Office365Metrics.forTenancy(configuration.getTenancy());
+    }
+
+    /**
+     * @return the current bearer token, minting one if there is no valid token,
+     * or null if ACS could not be reached
+     */
+    public String getToken() {
+        AccessToken token = this.current;
+        if (token != null && !token.isExpired()) {
+            return token.getValue();
+        }
+
+        synchronized (this.mintLock) {
+            // Another caller may have minted while we waited for the lock
+            token = this.current;
+            if (token != null && !token.isExpired()) {
+                return token.getValue();
+            }
+
+            log.info("No currently valid token attempting to retrieve");
+            int count = 0;
+            while (count < Office365Configuration.MAX_RECONNECT_ATTEMPTS) {
+                token = requestToken(this.configuration);
+                if (token != null) {
+                    setCurrent(token);
+                    return token.getValue();
+                } else {
+                    this.metrics.recordTokenRefresh(false);
+                    log.info("Failed to get token, attempting again, request {0} of {1}", count, Office365Configuration.MAX_RECONNECT_ATTEMPTS);
+                }
+                count++;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Non-blocking {@link #getToken()}. A valid token is returned at once,
+     * otherwise a single mint is started on the minting thread and shared by
+     * all the callers waiting for it.
+     *
+     * @return the bearer token, null if ACS could not be reached
+     */
+    public CompletableFuture<String> getTokenAsync() {
+        AccessToken token = this.current;
+        if (token != null && !token.isExpired()) {
+            return CompletableFuture.completedFuture(token.getValue());
+        }
+
+        synchronized (this.asyncLock) {
+            if (this.minting != null) {
+                return this.minting;
+            }
+
+            final CompletableFuture<String> future = new CompletableFuture<String>();
+            if (this.disposed) {
+                future.completeExceptionally(new IllegalStateException("Token manager for " + this.configuration.getTenancy() + " has been disposed"));
+                return future;
+            }
+            if (this.minter == null) {
+                final String tenancy = this.configuration.getTenancy();
+                // The thread only lives whilst a token is being minted
+                this.minter = new ThreadPoolExecutor(0, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "Office365-TokenMint-" + tenancy);
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+            }
+
+            this.minting = future;
+            try {
+                this.minter.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            future.complete(getToken());
+                        } catch (RuntimeException re) {
+                            future.completeExceptionally(re);
+                        } finally {
+                            synchronized (asyncLock) {
+                                minting = null;
+                            }
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException ree) {
+                this.minting = null;
+                future.completeExceptionally(ree);
+            }
+            return future;
+        }
+    }
+
+    /**
+     * @return true if a token is held that has not yet expired
+     */
+    public boolean hasValidToken() {
+        AccessToken token = this.current;
+        return token != null && !token.isExpired();
+    }
+
+    /**
+     * Discard the token after the service rejected it. Only the rejected token
+     * is cleared, so a token minted concurrently is kept.
+     *
+     * @param rejected the bearer token that was rejected
+     */
+    public void invalidate(String rejected) {
+        synchronized (this.mintLock) {
+            AccessToken token = this.current;
+            if (token != null && (rejected == null || token.getValue().equals(rejected))) {
+                log.info("Token invalidated");
+                this.current = null;
+                cancelScheduledRefresh();
+            }
+        }
+    }
+
+    /**
+     * Stop the background refresh and minting threads.
+     */
+    public void dispose() {
+        synchronized (this.asyncLock) {
+            this.disposed = true;
+            if (this.minter != null) {
+                this.minter.shutdownNow();
+                this.minter = null;
+            }
+            if (this.minting != null) {
+                this.minting.completeExceptionally(new IllegalStateException("Token manager for " + this.configuration.getTenancy() + " has been disposed"));
+                this.minting = null;
+            }
+        }
+        synchronized (this.mintLock) {
+            this.disposed = true;
+            cancelScheduledRefresh();
+            if (this.refresher != null) {
+                this.refresher.shutdownNow();
+                this.refresher = null;
+            }
+            this.current = null;
+        }
+    }
+
+    private void setCurrent(AccessToken token) {
+        this.metrics.recordTokenRefresh(true);
+        this.current = token;
+        scheduleRefresh(refreshDelay(token.getExpiresAt(), System.currentTimeMillis()));
+    }
+
+    /**
+     * @return milliseconds until the token should be refreshed, the margin
+     * before it expires, or half its remaining life if that is shorter than
+     * the margin, so a short lived token is not minted again straight away
+     */
+    static long refreshDelay(long expiresAt, long now) {
+        long remaining = expiresAt - now;
+        long margin = TimeUnit.SECONDS.toMillis(REFRESH_MARGIN);
+        long delay = remaining > 2 * margin ? remaining - margin : remaining / 2;
+        return Math.max(delay, TimeUnit.SECONDS.toMillis(MIN_REFRESH_DELAY));
+    }
+
+    private void scheduleRefresh(long delayMillis) {
+        if (this.disposed) {
+            return;
+        }
+
+        cancelScheduledRefresh();
+        if (this.refresher == null) {
+            final String tenancy = this.configuration.getTenancy();
+            this.refresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "Office365-TokenRefresh-" + tenancy);
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+
+        this.scheduledRefresh = this.refresher.schedule(new Runnable() {
+            @Override
+            public void run() {
+                refresh();
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+        log.ok("Token refresh scheduled in {0} ms", delayMillis);
+    }
+
+    private void cancelScheduledRefresh() {
+        if (this.scheduledRefresh != null) {
+            this.scheduledRefresh.cancel(false);
+            this.scheduledRefresh = null;
+        }
+    }
+
+    /**
+     * Background refresh, the existing token stays in use until the new one
+     * is available.
+     */
+    private void refresh() {
+        synchronized (this.mintLock) {
+            if (this.disposed) {
+                return;
+            }
+
+            log.info("Refreshing token ahead of expiry");
+            AccessToken token = requestToken(this.configuration);
+            if (token != null) {
+                setCurrent(token);
+            } else {
+                this.metrics.recordTokenRefresh(false);
+                AccessToken old = this.current;
+                if (old != null && !old.isExpired()) {
+                    log.warn("Background token refresh failed, retrying in {0} seconds", REFRESH_RETRY_INTERVAL);
+                    scheduleRefresh(TimeUnit.SECONDS.toMillis(REFRESH_RETRY_INTERVAL));
+                } else {
+                    log.warn("Background token refresh failed, next request will mint a token");
+                }
+            }
+        }
+    }
+
+    /**
+     * Mint a new token from ACS.
+     *
+     * @param configuration the connector configuration
+     * @return the token or null if it could not be obtained
+     */
+    static AccessToken requestToken(Office365Configuration configuration) {
+        log.info("requestToken");
+        JsonWebToken webToken;
+
+        try {
+            webToken = new JsonWebToken(configuration.getPrincipalID(),
+                    configuration.getTenancy(),
+                    (new URI(configuration.getAuthURL())).getHost(),
+                    configuration.getAcsPrincipalID(),
+                    JWTTokenHelper.getCurrentDateTime(),
+                    60 * 60);
+
+            final String[] clearText = new String[1];
+            GuardedString.Accessor accessor = new GuardedString.Accessor() {
+                @Override
+                public void access(char[] clearChars) {
+                    clearText[0] = new String(clearChars);
+
+                }
+            };
+            configuration.getSymetricKey().access(accessor);
+
+            try {
+                long requestedAt = System.currentTimeMillis();
+                String assertion = JWTTokenHelper.generateAssertion(webToken, clearText[0]);
+                String resource = String.format("%s/%s@%s", configuration.getResourceID(), configuration.getApiEndPoint(), configuration.getTenancy());
+                JSONObject response = JWTTokenHelper.getOAuthAccessTokenResponseFromACS(configuration.getAuthURL(), assertion, resource);
+
+                String accessToken = response.optString("access_token");
+                if (StringUtil.isBlank(accessToken)) {
+                    log.error("No access token returned from {0}", configuration.getAuthURL());
+                    return null;
+                }
+
+                long expiresIn = response.optLong("expires_in", DEFAULT_EXPIRES_IN);
+                if (expiresIn <= 0) {
+                    expiresIn = DEFAULT_EXPIRES_IN;
+                }
+                log.ok("Minted token for tenancy {0} expiring in {1} seconds", configuration.getTenancy(), expiresIn);
+                return new AccessToken(JWTTokenHelper.toBearerToken(accessToken), requestedAt + TimeUnit.SECONDS.toMillis(expiresIn));
+            } catch (Exception e) {
+                log.error("Error creating token, error {0}", e);
+            }
+        } catch (URISyntaxException use) {
+            log.error("Error connecting to authetication server {0} error is {1}", configuration.getAuthURL(), use);
+        }
+
+        return null;
+    }
+
+    /**
+     * A bearer token and the time it expires.
+     */
+    static class AccessToken {
+
+        private final String value;
+        private final long expiresAt;
+
+        AccessToken(String value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+
+        String getValue() {
+            return value;
+        }
+
+        long getExpiresAt() {
+            return expiresAt;
+        }
+
+        boolean isExpired() {
+            return System.currentTimeMillis() >= this.expiresAt - TimeUnit.SECONDS.toMillis(EXPIRY_SKEW);
+        }
+    }
+}
@@ -0,0 +1,538 @@
+/*
+ * DO NOT REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2013 Salford Software Ltd. All rights reserved.
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://opensource.org/licenses/cddl1.txt
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://opensource.org/licenses/cddl1.txt
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.office365;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.util.EntityUtils;
+import org.identityconnectors.common.logging.Log;
+
+/**
+ * Records a sample of the requests sent to a tenancy in a ring buffer, with
+ * the endpoint, status, timings and the start of the request and response
+ * bodies, for diagnosing problems without logging every body.
+ *
+ * Deciding whether to trace a request is the only work done for requests
+ * that are not sampled. The start of a sampled response body is copied as
+ * the caller reads it, and the request is recorded once the body has been
+ * closed. Passwords, secrets and tokens in bodies are masked before they are
+ * stored.
+ *
+ * There is one tracer per tenancy, registered with JMX as
+ * <code>org.identityconnectors.office365:type=Trace,tenancy=...</code> so
+ * the sample rate can be raised and the buffer dumped at run time.
+ *
+ * @author Paul Heaney
+ */
+public class Office365Tracer implements Office365TracerMXBean {
+
+    private static final Log log = Log.getLog(Office365Tracer.class);
+
+    static final int BODY_LIMIT = 1024; // characters of each body kept
+    static final int CAPTURE_LIMIT = 4 * BODY_LIMIT; // bytes of a response copied, enough for BODY_LIMIT characters
+    static final String MASK = "***";
+
+    private static final ConcurrentMap<String, Office365Tracer> tracers = new ConcurrentHashMap<String, Office365Tracer>();
+    private static final Pattern secretPattern = Pattern.compile(
+            "(\"(?:password|newPassword|access_token|refresh_token|client_secret|client_assertion|assertion)\"\\s*:\\s*)\"[^\"\\\\]*+(?:\\\\.[^\"\\\\]*+)*+(?:\"|\\\\?$)",
+            Pattern.CASE_INSENSITIVE);
+
+    private final String tenancy;
+    private volatile double sampleRate;
+    private Trace[] buffer;
+    private int next = 0;
+    private long recorded = 0;
+
+    Office365Tracer(String tenancy, double sampleRate, int capacity) {
+        this.tenancy = tenancy;
+        this.sampleRate = sampleRate;
+        this.buffer = new Trace[Math.max(1, capacity)];
+    }
+
+    /**
+     * @return the tracer for the tenancy in the configuration, created on
+     * first use, with the configuration's sample rate and buffer size
+     */
+    public static Office365Tracer forTenancy(Office365Configuration configuration) {
+        String key = configuration.getTenancy().toLowerCase();
+        Office365Tracer tracer = tracers.get(key);
+        if (tracer == null) {
+            Office365Tracer created = new Office365Tracer(key, configuration.getTraceSampleRate(), configuration.getTraceBufferSize());
+            tracer = tracers.putIfAbsent(key, created);
+            if (tracer == null) {
+                register(created);
+                return created;
+            }
+        }
+
+        tracer.setSampleRate(configuration.getTraceSampleRate());
+        tracer.setCapacity(configuration.getTraceBufferSize());
+        return tracer;
+    }
+
+    /**
+     * Decide whether to trace a request.
+     *
+     * @return the span to record the request in, or null if it is not sampled
+     */
+    public Span start(HttpRequest request) {
+        double rate = this.sampleRate;
+        if (rate <= 0 || (rate < 1 && ThreadLocalRandom.current().nextDouble() >= rate)) {
+            return null;
+        }
+        return new Span(request);
+    }
+
+    @Override
+    public String getTenancy() {
+        return this.tenancy;
+    }
+
+    @Override
+    public double getSampleRate() {
+        return this.sampleRate;
+    }
+
+    @Override
+    public void setSampleRate(double sampleRate) {
+        this.sampleRate = Math.max(0, Math.min(1, sampleRate));
+    }
+
+    @Override
+    public synchronized int getCapacity() {
+        return this.buffer.length;
+    }
+
+    synchronized void setCapacity(int capacity) {
+        capacity = Math.max(1, capacity);
+        if (capacity != this.buffer.length) {
+            List<Trace> traces = getTraces();
+            this.buffer = new Trace[capacity];
+            this.next = 0;
+            for (Trace trace : traces.subList(Math.max(0, traces.size() - capacity), traces.size())) {
+                add(trace);
+            }
+        }
+    }
+
+    @Override
+    public synchronized long getRecorded() {
+        return this.recorded;
+    }
+
+    /**
+     * @return the requests held, oldest first
+     */
+    public synchronized List<Trace> getTraces() {
+        List<Trace> traces = new ArrayList<Trace>(this.buffer.length);
+        for (int i = 0; i < this.buffer.length; i++) {
+            Trace trace = this.buffer[(this.next + i) % this.buffer.length];
+            if (trace != null) {
+                traces.add(trace);
+            }
+        }
+        return traces;
+    }
+
+    @Override
+    public String[] dump() {
+        List<Trace> traces = getTraces();
+        String[] lines = new String[traces.size()];
+        for (int i = 0; i < lines.length; i++) {
+            lines[i] = traces.get(i).toString();
+        }
+        return lines;
+    }
+
+    @Override
+    public synchronized void clear() {
+        for (int i = 0; i < this.buffer.length; i++) {
+            this.buffer[i] = null;
+        }
+        this.next = 0;
+    }
+
+    private synchronized void record(Trace trace) {
+        this.recorded++;
+        add(trace);
+    }
+
+    private void add(Trace trace) {
+        this.buffer[this.next] = trace;
+        this.next = (this.next + 1) % this.buffer.length;
+    }
+
+    /**
+     * Mask secrets in a body and cut it to {@link #BODY_LIMIT} characters.
+     */
+    static String redact(String body) {
+        if (body == null) {
+            return null;
+        }
+        String redacted = secretPattern.matcher(body).replaceAll("$1\"" + MASK + "\"");
+        if (redacted.length() > BODY_LIMIT) {
+            redacted = redacted.substring(0, BODY_LIMIT) + "...(" + redacted.length() + " chars)";
+        }
+        return redacted;
+    }
+
+    private static void register(Office365Tracer tracer) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(Office365Metrics.DOMAIN + ":type=Trace,tenancy=" + ObjectName.quote(tracer.tenancy));
+            if (!server.isRegistered(name)) {
+                server.registerMBean(tracer, name);
+            }
+        } catch (JMException jme) {
+            log.warn(jme, "Unable to register tracer for {0} with JMX", tracer.tenancy);
+        } catch (SecurityException se) {
+            log.warn(se, "Unable to register tracer for {0} with JMX", tracer.tenancy);
+        }
+    }
+
+    /**
+     * A request being traced, filled in as it progresses and recorded by
+     * {@link #finish()}.
+     */
+    public class Span {
+
+        private final long startedAt = System.currentTimeMillis();
+        private final long started = System.nanoTime();
+        private final String method;
+        private final String path;
+        private final String requestBody;
+        private long sent = 0;
+        private long responded = 0;
+        private int attempts = 0;
+        private int status = -1;
+        private String responseBody = null;
+        private long responseLength = -1; // bytes read when only the start of the body was kept
+        private String error = null;
+        private int outstanding = 1; // finish() and any response body still being read
+
+        Span(HttpRequest request) {
+            this.method = request.getRequestLine().getMethod();
+            this.path = request.getRequestLine().getUri();
+
+            String body = null;
+            if (request instanceof HttpEntityEnclosingRequest) {
+                HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+                if (entity != null && entity.isRepeatable()) {
+                    try {
+                        body = EntityUtils.toString(entity, "UTF-8");
+                    } catch (IOException ioe) {
+                        body = "(unreadable: " + ioe + ")";
+                    }
+                }
+            }
+            this.requestBody = body;
+        }
+
+        /**
+         * The request has been sent, after any wait for the scheduler.
+         */
+        public void sent() {
+            this.attempts++;
+            this.sent = System.nanoTime();
+        }
+
+        public void responded(int status) {
+            this.status = status;
+            this.responded = System.nanoTime();
+        }
+
+        /**
+         * Capture the start of the body of the final response as the caller
+         * reads it. The span is then recorded when both {@link #finish()} has
+         * been called and the body has been closed.
+         */
+        public void response(HttpResponse response) {
+            HttpEntity entity = response.getEntity();
+            if (entity != null) {
+                synchronized (this) {
+                    this.outstanding++;
+                }
+                response.setEntity(new CapturingEntity(entity, this));
+            }
+        }
+
+        public void responseBody(String body) {
+            this.responseBody = body;
+        }
+
+        public void failed(Throwable t) {
+            this.error = t.toString();
+        }
+
+        public void finish() {
+            done();
+        }
+
+        void captured(byte[] prefix, int length, long total) {
+            this.responseBody = new String(prefix, 0, length, Charset.forName("UTF-8"));
+            if (total > length) {
+                this.responseLength = total;
+            }
+            done();
+        }
+
+        private void done() {
+            synchronized (this) {
+                if (--this.outstanding > 0) {
+                    return;
+                }
+            }
+            record(new Trace(this));
+        }
+    }
+
+    /**
+     * Copies up to {@link #CAPTURE_LIMIT} bytes of the wrapped entity's
+     * content into the span as it is read, without holding the rest.
+     */
+    private static class CapturingEntity extends HttpEntityWrapper {
+
+        private final Span span;
+        private boolean capturing = false;
+
+        CapturingEntity(HttpEntity entity, Span span) {
+            super(entity);
+            this.span = span;
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            synchronized (this) {
+                if (this.capturing) {
+                    // A repeatable entity read again, the first read is the one captured
+                    return super.getContent();
+                }
+                this.capturing = true;
+            }
+
+            final ByteArrayOutputStream prefix = new ByteArrayOutputStream(256);
+            return new FilterInputStream(super.getContent()) {
+                private long total = 0;
+                private boolean closed = false;
+
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    if (b >= 0) {
+                        this.total++;
+                        if (prefix.size() < CAPTURE_LIMIT) {
+                            prefix.write(b);
+                        }
+                    }
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] buffer, int offset, int length) throws IOException {
+                    int n = super.read(buffer, offset, length);
+                    if (n > 0) {
+                        this.total += n;
+                        int keep = Math.min(n, CAPTURE_LIMIT - prefix.size());
+                        if (keep > 0) {
+                            prefix.write(buffer, offset, keep);
+                        }
+                    }
+                    return n;
+                }
+
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        if (!this.closed) {
+                            this.closed = true;
+                            span.captured(prefix.toByteArray(), prefix.size(), this.total);
+                        }
+                    }
+                }
+            };
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            InputStream in = getContent();
+            try {
+                byte[] buffer = new byte[4096];
+                int n;
+                while ((n = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, n);
+                }
+            } finally {
+                in.close();
+            }
+        }
+    }
+
+    /**
+     * A traced request.
+     */
+    public static class Trace {
+
+        private final long timestamp;
+        private final String method;
+        private final String endpoint;
+        private final int status;
+        private final int attempts;
+        private final long queuedMillis;
+        private final long responseMillis;
+        private final long totalMillis;
+        private final String requestBody;
+        private final String responseBody;
+        private final String error;
+
+        Trace(Span span) {
+            long finished = System.nanoTime();
+            this.timestamp = span.startedAt;
+            this.method = span.method;
+            String path = span.path;
+            int scheme = path.indexOf("://");
+            if (scheme >= 0) {
+                int slash = path.indexOf('/', scheme + 3);
+                path = slash >= 0 ? path.substring(slash) : "/";
+            }
+            this.endpoint = Office365Metrics.endpointOf(span.method, path).substring(span.method.length() + 1);
+            this.status = span.status;
+            this.attempts = span.attempts;
+            this.queuedMillis = span.sent > 0 ? TimeUnit.NANOSECONDS.toMillis(span.sent - span.started) : 0;
+            this.responseMillis = span.responded > 0 ? TimeUnit.NANOSECONDS.toMillis(span.responded - span.sent) : 0;
+            this.totalMillis = TimeUnit.NANOSECONDS.toMillis(finished - span.started);
+            this.requestBody = redact(span.requestBody);
+            String responseBody = redact(span.responseBody);
+            if (responseBody != null && span.responseLength >= 0) {
+                responseBody += "...(" + span.responseLength + " bytes)";
+            }
+            this.responseBody = responseBody;
+            this.error = span.error;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public String getMethod() {
+            return method;
+        }
+
+        /**
+         * @return the path with the tenancy, query and object ids removed
+         */
+        public String getEndpoint() {
+            return endpoint;
+        }
+
+        /**
+         * @return the final status, or -1 if no response was received
+         */
+        public int getStatus() {
+            return status;
+        }
+
+        public int getAttempts() {
+            return attempts;
+        }
+
+        /**
+         * @return the time from the request being made to the last attempt
+         * being sent, waiting for the scheduler and retries
+         */
+        public long getQueuedMillis() {
+            return queuedMillis;
+        }
+
+        /**
+         * @return the time from the last attempt being sent to its response headers
+         */
+        public long getResponseMillis() {
+            return responseMillis;
+        }
+
+        public long getTotalMillis() {
+            return totalMillis;
+        }
+
+        public String getRequestBody() {
+            return requestBody;
+        }
+
+        public String getResponseBody() {
+            return responseBody;
+        }
+
+        public String getError() {
+            return error;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ").format(new Date(this.timestamp)));
+            sb.append(' ').append(this.method).append(' ').append(this.endpoint);
+            sb.append(" status=").append(this.status);
+            sb.append(" attempts=").append(this.attempts);
+            sb.append(" queued=").append(this.queuedMillis).append("ms");
+            sb.append(" response=").append(this.responseMillis).append("ms");
+            sb.append(" total=").append(this.totalMillis).append("ms");
+            if (this.error != null) {
+                sb.append(" error=").append(this.error);
+            }
+            if (this.requestBody != null) {
+                sb.append(" requestBody=").append(this.requestBody);
+            }
+            if (this.responseBody != null) {
+                sb.append(" responseBody=").append(this.responseBody);
+            }
+            return sb.toString();
+        }
+    }
+}
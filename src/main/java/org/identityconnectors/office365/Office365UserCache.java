@@ -0,0 +1,188 @@
+/*
+ * DO NOT REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2013 Salford Software Ltd. All rights reserved.
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://opensource.org/licenses/cddl1.txt
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://opensource.org/licenses/cddl1.txt
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.office365;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONObject;
+
+/**
+ * Bounded cache of the users fetched one at a time, keyed by objectId and
+ * by user principal name, with the least recently used evicted first.
+ *
+ * Within its TTL an entry is used as it is. After that, or whenever the
+ * caller needs the current state, it is revalidated with its ETag so an
+ * unchanged user costs a 304 rather than the whole object. The connector's
+ * own writes invalidate the users they touch.
+ *
+ * @author Paul Heaney
+ */
+public class Office365UserCache {
+
+    private final int maxEntries;
+    private final long ttl; // ms
+    private final Map<String, Entry> entries;
+    private final Map<String, String> names = new HashMap<String, String>(); // lower case UPN to objectId
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param ttl milliseconds an entry is used without revalidating it
+     */
+    public Office365UserCache(int maxEntries, long ttl) {
+        this.maxEntries = maxEntries;
+        this.ttl = ttl;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() > Office365UserCache.this.maxEntries) {
+                    removeName(eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * A user as fetched, with the ETag it was sent with. The object is shared
+     * and must not be modified.
+     */
+    public static class Entry {
+
+        private final JSONObject object;
+        private final String etag;
+        private final long fetched = System.currentTimeMillis();
+
+        public Entry(JSONObject object, String etag) {
+            this.object = object;
+            this.etag = etag;
+        }
+
+        public JSONObject getObject() {
+            return object;
+        }
+
+        /**
+         * @return the ETag of the response, or null if it had none
+         */
+        public String getETag() {
+            return etag;
+        }
+
+        public long getFetched() {
+            return fetched;
+        }
+
+        String getObjectId() {
+            return this.object.optString("objectId", null);
+        }
+
+        String getName() {
+            return this.object.optString("userPrincipalName", null);
+        }
+    }
+
+    /**
+     * @param key the objectId or user principal name
+     * @return the entry, which may be past its TTL, or null if there is none
+     */
+    public synchronized Entry get(String key) {
+        Entry entry = this.entries.get(resolve(key));
+        if (entry != null) {
+            this.hits.incrementAndGet();
+        } else {
+            this.misses.incrementAndGet();
+        }
+        return entry;
+    }
+
+    /**
+     * @return true if the entry can be used without revalidating it
+     */
+    public boolean isFresh(Entry entry) {
+        return System.currentTimeMillis() - entry.getFetched() < this.ttl;
+    }
+
+    public synchronized void put(Entry entry) {
+        String objectId = entry.getObjectId();
+        if (objectId == null) {
+            return;
+        }
+
+        Entry previous = this.entries.put(objectId, entry);
+        if (previous != null) {
+            removeName(previous);
+        }
+        if (entry.getName() != null) {
+            this.names.put(entry.getName().toLowerCase(), objectId);
+        }
+    }
+
+    /**
+     * @param key the objectId or user principal name of a user that has changed
+     */
+    public synchronized void invalidate(String key) {
+        Entry entry = this.entries.remove(resolve(key));
+        if (entry != null) {
+            removeName(entry);
+        }
+        this.names.remove(key.toLowerCase());
+    }
+
+    public synchronized void clear() {
+        this.entries.clear();
+        this.names.clear();
+    }
+
+    public synchronized int size() {
+        return this.entries.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    private String resolve(String key) {
+        String objectId = this.names.get(key.toLowerCase());
+        return objectId != null ? objectId : key;
+    }
+
+    private void removeName(Entry entry) {
+        String name = entry.getName();
+        if (name != null && entry.getObjectId().equals(this.names.get(name.toLowerCase()))) {
+            this.names.remove(name.toLowerCase());
+        }
+    }
+}
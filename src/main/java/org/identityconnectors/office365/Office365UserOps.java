@@ -23,13 +23,21 @@
  */
 package org.identityconnectors.office365;
 
+import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.logging.Level;
-import java.util.logging.Logger;
+import java.util.concurrent.Callable;
 
+import org.apache.http.Header;
+import org.apache.http.message.BasicHeader;
+import org.identityconnectors.common.StringUtil;
 import org.identityconnectors.common.logging.Log;
 import org.identityconnectors.common.security.GuardedString;
 import org.identityconnectors.framework.common.exceptions.AlreadyExistsException;
@@ -44,10 +52,17 @@ import org.identityconnectors.framework.common.objects.ObjectClass;
 import org.identityconnectors.framework.common.objects.OperationOptions;
 import org.identityconnectors.framework.common.objects.OperationalAttributes;
 import org.identityconnectors.framework.common.objects.ResultsHandler;
+import org.identityconnectors.framework.common.objects.SyncDelta;
+import org.identityconnectors.framework.common.objects.SyncDeltaBuilder;
+import org.identityconnectors.framework.common.objects.SyncDeltaType;
+import org.identityconnectors.framework.common.objects.SyncResultsHandler;
+import org.identityconnectors.framework.common.objects.SyncToken;
 import org.identityconnectors.framework.common.objects.Uid;
+import org.identityconnectors.framework.spi.SyncTokenResultsHandler;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.json.JSONTokener;
 
 /**
  *
@@ -59,6 +74,25 @@ public class Office365UserOps {
     private Office365Connector connector;
     private static final Log log = Log.getLog(Office365UserOps.class);
     private static final String NAME_ATTRIBUTE = "userPrincipalName";
+    private static final String UID_ATTRIBUTE = "objectId";
+    private static final String OBJECT_TYPE_ATTRIBUTE = "objectType";
+    private static final String DELETED_ATTRIBUTE = "aad.isDeleted";
+    static final String DELTA_TOKEN_ONLY_HEADER = "ocp-aad-dq-include-only-delta-token";
+    static final String SYNC_CHECKPOINT = "sync";
+
+    // Attributes returned on the connector object, other than uid and name
+    private static final String[] USER_ATTRIBUTES = {"accountEnabled", "city", "country", "department", "displayName", "facsimileTelephoneNumber", "givenName",
+        "jobTitle", "mail", "mailNickname", "mobile", "otherMails", "physicalDeliveryOfficeName", "postalCode",
+        "preferredLanguage", "proxyAddresses", "state", "streetAddress", "surname", "telephoneNumber",
+        "usageLocation"};
+    private static final Set<String> USER_ATTRIBUTE_SET = new HashSet<String>(Arrays.asList(USER_ATTRIBUTES));
+
+    private final Office365PageReader.ItemDecoder<ConnectorObject> userDecoder = new Office365PageReader.ItemDecoder<ConnectorObject>() {
+        @Override
+        public ConnectorObject decode(JSONTokener tokener) throws JSONException {
+            return decodeConnectorObject(tokener);
+        }
+    };
 
     public Office365UserOps(Office365Connector connector) {
         this.connector = connector;
@@ -69,6 +103,320 @@ public class Office365UserOps {
 
         Uid uid = null;
 
+        UserRequest request = buildCreateRequest(name, createAttributes);
+        JSONObject jsonCreate = request.json;
+        String license = request.license;
+        boolean usageLocationSet = request.licenseSettable;
+
+        log.info("About to create account {0}", name.getNameValue());
+
+        // A create is not idempotent, so before sending it again after a
+        // transient failure check whether the failed attempt created the user
+        Office365RetryPolicy retryPolicy = connector.getConnection().getRetryPolicy();
+        int retries = 0;
+        while (true) {
+            RuntimeException failure = null;
+            try {
+                uid = connector.getConnection().postRequest("/users?api-version=" + Office365Connection.API_VERSION, jsonCreate);
+                break;
+            } 
+            catch(Office365Exception oe)
+            {
+            	//Verify error if user Exist
+            	if(isUserExists(oe)){
+            		log.error("User Already exists {0}", name.getNameValue());
+            		throw new AlreadyExistsException(oe.getMessage(),oe);
+            	}
+            	failure = oe;
+        	}catch (ConnectorException ce) {
+                log.error(ce, "Error creating user {0}", name);
+                log.error("Reason: {0}", ce.getMessage());
+                log.error("Localized Message: {0}", ce.getLocalizedMessage());
+                failure = ce;
+            }
+
+            if (!retryPolicy.isRetryableException(failure) || !retryPolicy.canRetry(retries)) {
+                break;
+            }
+
+            try {
+                Uid existing = findUserUid(name.getNameValue());
+                if (existing != null) {
+                    log.info("User {0} was created by the failed request", name.getNameValue());
+                    uid = existing;
+                    break;
+                }
+            } catch (ConnectorException ce) {
+                log.warn(ce, "Unable to check whether {0} was created", name.getNameValue());
+            }
+
+            try {
+                retryPolicy.backoff(retries++, "create of " + name.getNameValue());
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new ConnectorException("Interrupted creating user " + name.getNameValue(), ie);
+            }
+        }
+
+        // Drops any cached user that had the same name before
+        invalidateCachedUser(name.getNameValue());
+        log.ok("Created account {0} successfully", name);
+
+        if (uid != null && license != null) {
+            log.info("Licenses to apply to newly created account");
+
+            if (usageLocationSet) {
+                log.info("Usage location was set so we can assign license");
+                boolean b = assignLicense(uid, license);
+                if (b) {
+                    log.ok("License {0} set on {1}", license, uid.getUidValue());
+                } else {
+                    log.error("Failed to set license {0} set on {1}", license, uid.getUidValue());
+                }
+            } else {
+                log.error("Usage Location not set on {0} unable to set license", uid.getUidValue());
+            }
+        }
+
+        return uid;
+    }
+
+    public Uid updateUser(Uid uid, Set<Attribute> replaceAttributes, OperationOptions options) {
+
+        log.info("Entered updateUser");
+
+        UserRequest request = buildUpdateRequest(uid, replaceAttributes);
+        JSONObject jsonModify = request.json;
+        String license = request.license;
+        Boolean licenseChanging = request.licenseSettable;
+
+        log.info("About to modify account {0}", uid.getUidValue());
+
+        boolean b = false;
+        try {
+            b = this.connector.getConnection().patchObject("/users/" + uid.getUidValue() + "?api-version=" + Office365Connection.API_VERSION, jsonModify);
+        } catch (ConnectorException ce) {
+            log.error(ce, "Error modifying user {0}", uid.getUidValue());
+        } finally {
+            invalidateCachedUser(uid.getUidValue());
+        }
+
+        if (b) {
+            log.ok("Modified account {0} successfully", uid.getUidValue());
+            
+            if (licenseChanging == true) {
+                log.info("Attempting to set the license");
+                b = assignLicense(uid, license);
+                if (b) {
+                    log.ok("License updated sucessfully on {0}", uid.getUidValue());
+                } else {
+                    log.error("Failed to update license on {0}", uid.getUidValue());
+                }
+            }
+        } else {
+            log.ok("Failed to modify account {0}", uid.getUidValue());
+        }
+
+        return uid;
+    }
+
+    /**
+     * Create users in $batch requests rather than one request each. Licenses
+     * are assigned afterwards to the users that were created.
+     *
+     * A user whose create cannot be built, or whose license cannot be
+     * assigned, has that failure in its result, the other users carry on.
+     *
+     * @param users the attributes of each user, including its Name
+     * @return the result for each user, in the same order
+     */
+    public List<Office365BatchResult> createUsers(List<Set<Attribute>> users) {
+        log.info("Entered createUsers for {0} user(s)", users.size());
+
+        // Building a request checks the user's domain, which may need a lookup
+        List<Callable<UserRequest>> builds = new ArrayList<Callable<UserRequest>>(users.size());
+        for (final Set<Attribute> createAttributes : users) {
+            builds.add(new Callable<UserRequest>() {
+                @Override
+                public UserRequest call() {
+                    return buildCreateRequest(AttributeUtil.getNameFromAttributes(createAttributes), createAttributes);
+                }
+            });
+        }
+        List<RuntimeException> buildFailures = new ArrayList<RuntimeException>(users.size());
+        List<UserRequest> requests = this.connector.getConnection().getTaskExecutor().invokeEach(builds, buildFailures);
+
+        List<Office365BatchOperation> operations = new ArrayList<Office365BatchOperation>(users.size());
+        for (UserRequest request : requests) {
+            if (request != null) {
+                operations.add(Office365BatchOperation.create("/users?api-version=" + Office365Connection.API_VERSION, request.json));
+            }
+        }
+        List<Office365BatchResult> sent = this.connector.getConnection().batchRequest(operations);
+
+        List<Office365BatchResult> results = new ArrayList<Office365BatchResult>(users.size());
+        Map<Integer, Callable<Boolean>> assignments = new LinkedHashMap<Integer, Callable<Boolean>>();
+        Iterator<Office365BatchResult> sentResults = sent.iterator();
+        for (int i = 0; i < requests.size(); i++) {
+            UserRequest request = requests.get(i);
+            if (request == null) {
+                log.error(buildFailures.get(i), "Unable to create user {0}", AttributeUtil.getNameFromAttributes(users.get(i)));
+                results.add(new Office365BatchResult(null, null, buildFailures.get(i)));
+                continue;
+            }
+
+            Office365BatchResult result = sentResults.next();
+            if (result.getException() != null && isUserExists(result.getException())) {
+                log.error("User Already exists {0}", request.json.optString(NAME_ATTRIBUTE, null));
+                result = new Office365BatchResult(result.getOperation(), null, new AlreadyExistsException(result.getException().getMessage(), result.getException()));
+            }
+            results.add(result);
+            invalidateCachedUser(request.json.optString(NAME_ATTRIBUTE, null));
+            if (result.isSuccess() && request.license != null) {
+                if (request.licenseSettable) {
+                    assignments.put(i, licenseAssignment(result.getUid(), request.license));
+                } else {
+                    log.error("Usage Location not set on {0} unable to set license", result.getUid().getUidValue());
+                }
+            }
+        }
+        assignLicenses(results, assignments);
+
+        return results;
+    }
+
+    /**
+     * Update users in $batch requests rather than one request each.
+     *
+     * A user whose update cannot be built, or whose license cannot be
+     * assigned, has that failure in its result, the other users carry on.
+     *
+     * @param updates the attributes to replace on each user
+     * @return the result for each user, in the iteration order of the map
+     */
+    public List<Office365BatchResult> updateUsers(Map<Uid, Set<Attribute>> updates) {
+        log.info("Entered updateUsers for {0} user(s)", updates.size());
+
+        List<UserRequest> requests = new ArrayList<UserRequest>(updates.size());
+        List<RuntimeException> buildFailures = new ArrayList<RuntimeException>(updates.size());
+        List<Office365BatchOperation> operations = new ArrayList<Office365BatchOperation>(updates.size());
+        for (Map.Entry<Uid, Set<Attribute>> update : updates.entrySet()) {
+            Uid uid = update.getKey();
+            UserRequest request = null;
+            RuntimeException failure = null;
+            try {
+                request = buildUpdateRequest(uid, update.getValue());
+                operations.add(Office365BatchOperation.update(uid, "/users/" + uid.getUidValue() + "?api-version=" + Office365Connection.API_VERSION, request.json));
+            } catch (RuntimeException re) {
+                log.error(re, "Unable to update user {0}", uid != null ? uid.getUidValue() : null);
+                failure = re;
+            }
+            requests.add(request);
+            buildFailures.add(failure);
+        }
+
+        List<Office365BatchResult> sent;
+        try {
+            sent = this.connector.getConnection().batchRequest(operations);
+        } finally {
+            for (Uid uid : updates.keySet()) {
+                if (uid != null) {
+                    invalidateCachedUser(uid.getUidValue());
+                }
+            }
+        }
+
+        List<Office365BatchResult> results = new ArrayList<Office365BatchResult>(updates.size());
+        Map<Integer, Callable<Boolean>> assignments = new LinkedHashMap<Integer, Callable<Boolean>>();
+        Iterator<Office365BatchResult> sentResults = sent.iterator();
+        for (int i = 0; i < requests.size(); i++) {
+            UserRequest request = requests.get(i);
+            if (request == null) {
+                results.add(new Office365BatchResult(null, null, buildFailures.get(i)));
+                continue;
+            }
+
+            Office365BatchResult result = sentResults.next();
+            results.add(result);
+            if (result.isSuccess() && request.licenseSettable) {
+                assignments.put(i, licenseAssignment(result.getUid(), request.license));
+            }
+        }
+        assignLicenses(results, assignments);
+
+        return results;
+    }
+
+    /**
+     * Run the license assignments concurrently, putting any failure in the
+     * result of the user it was for.
+     *
+     * @param assignments the assignment for each user, by index in the results
+     */
+    private void assignLicenses(List<Office365BatchResult> results, Map<Integer, Callable<Boolean>> assignments) {
+        List<RuntimeException> failures = new ArrayList<RuntimeException>(assignments.size());
+        this.connector.getConnection().getTaskExecutor().invokeEach(new ArrayList<Callable<Boolean>>(assignments.values()), failures);
+
+        Iterator<RuntimeException> failure = failures.iterator();
+        for (Integer index : assignments.keySet()) {
+            RuntimeException licenseError = failure.next();
+            if (licenseError != null) {
+                log.error(licenseError, "Failed to set license on {0}", results.get(index).getUid().getUidValue());
+                results.set(index, results.get(index).withLicenseError(licenseError));
+            }
+        }
+    }
+
+    /**
+     * Delete users in $batch requests rather than one request each.
+     *
+     * @return the result for each user, in the same order
+     */
+    public List<Office365BatchResult> deleteUsers(List<Uid> uids) {
+        log.info("Entered deleteUsers for {0} user(s)", uids.size());
+
+        List<Office365BatchOperation> operations = new ArrayList<Office365BatchOperation>(uids.size());
+        for (Uid uid : uids) {
+            if (uid == null || (uid.getUidValue() == null)) {
+                throw new IllegalArgumentException("No UID specified for delete");
+            }
+            operations.add(Office365BatchOperation.delete(uid, "/users/" + uid.getUidValue() + "?api-version=" + Office365Connection.API_VERSION));
+        }
+
+        try {
+            return this.connector.getConnection().batchRequest(operations);
+        } finally {
+            for (Uid uid : uids) {
+                invalidateCachedUser(uid.getUidValue());
+            }
+        }
+    }
+
+    /**
+     * @return true if the Graph API rejected a create as the user principal
+     * name is already taken
+     */
+    private static boolean isUserExists(Office365Exception oe) {
+        return oe.getErrorCode() != null && oe.getErrorCode().equals(400) && oe.getErrorMessage() != null
+                && oe.getErrorMessage().contains("Another object with the same value for property userPrincipalName already exists.");
+    }
+
+    private Callable<Boolean> licenseAssignment(final Uid uid, final String license) {
+        return new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                if (!assignLicense(uid, license)) {
+                    throw new ConnectorException("Failed to set license " + license + " on " + uid.getUidValue());
+                }
+                return Boolean.TRUE;
+            }
+        };
+    }
+
+    /**
+     * Validate a create and build the JSON for it.
+     */
+    UserRequest buildCreateRequest(Name name, Set<Attribute> createAttributes) {
         if (createAttributes == null || createAttributes.size() == 0) {
             log.error("Attributes to create is empty");
             throw new IllegalArgumentException("Attributes to create are empty");
@@ -157,49 +505,13 @@ public class Office365UserOps {
             }
         }
 
-        log.info("About to create account using JSON {0}", jsonCreate.toString());
-
-        try {
-            uid = connector.getConnection().postRequest("/users?api-version=" + Office365Connection.API_VERSION, jsonCreate);            
-        } 
-        catch(Office365Exception oe)
-        {
-        	//Verify error if user Exist
-        	if(oe.getErrorCode().equals(400) && oe.getErrorMessage().contains("Another object with the same value for property userPrincipalName already exists.")){
-        		log.error("User Already exists {0}", name.getNameValue());
-        		throw new AlreadyExistsException(oe.getMessage(),oe);
-        	}
-    	}catch (ConnectorException ce) {
-            log.error(ce, "Error creating user {0}", name);
-            log.error("Reason: {0}", ce.getMessage());
-            log.error("Localized Message: {0}", ce.getLocalizedMessage());           
-        }
-
-        log.ok("Created account {0} successfully", name);
-
-        if (uid != null && license != null) {
-            log.info("Licenses to apply to newly created account");
-
-            if (usageLocationSet) {
-                log.info("Usage location was set so we can assign license");
-                boolean b = assignLicense(uid, license);
-                if (b) {
-                    log.ok("License {0} set on {1}", license, uid.getUidValue());
-                } else {
-                    log.error("Failed to set license {0} set on {1}", license, uid.getUidValue());
-                }
-            } else {
-                log.error("Usage Location not set on {0} unable to set license", uid.getUidValue());
-            }
-        }
-
-        return uid;
+        return new UserRequest(jsonCreate, license, usageLocationSet);
     }
 
-    public Uid updateUser(Uid uid, Set<Attribute> replaceAttributes, OperationOptions options) {
-
-        log.info("Entered updateUser");
-
+    /**
+     * Validate an update and build the JSON for it.
+     */
+    UserRequest buildUpdateRequest(Uid uid, Set<Attribute> replaceAttributes) {
         if (replaceAttributes == null || replaceAttributes.size() == 0) {
             log.error("No attributes passed for update");
             throw new IllegalArgumentException("No attributes passed update");
@@ -289,32 +601,7 @@ public class Office365UserOps {
             }
         }
 
-        log.info("About to modify account using JSON {0}", jsonModify.toString());
-
-        boolean b = false;
-        try {
-            b = this.connector.getConnection().patchObject("/users/" + uid.getUidValue() + "?api-version=" + Office365Connection.API_VERSION, jsonModify);
-        } catch (ConnectorException ce) {
-            log.error(ce, "Error modifying user {0}", uid.getUidValue());
-        }
-
-        if (b) {
-            log.ok("Modified account {0} successfully", uid.getUidValue());
-            
-            if (licenseChanging == true) {
-                log.info("Attempting to set the license");
-                b = assignLicense(uid, license);
-                if (b) {
-                    log.ok("License updated sucessfully on {0}", uid.getUidValue());
-                } else {
-                    log.error("Failed to update license on {0}", uid.getUidValue());
-                }
-            }
-        } else {
-            log.ok("Failed to modify account {0}", uid.getUidValue());
-        }
-
-        return uid;
+        return new UserRequest(jsonModify, license, licenseChanging);
     }
 
     public void deleteUser(final Uid uid) {
@@ -328,7 +615,12 @@ public class Office365UserOps {
 
         log.ok("UID of {0} is present", uid.getUidValue());
 
-        boolean b = this.connector.getConnection().deleteRequest("/users/" + uid.getUidValue() + "?api-version=" + Office365Connection.API_VERSION);
+        boolean b;
+        try {
+            b = this.connector.getConnection().deleteRequest("/users/" + uid.getUidValue() + "?api-version=" + Office365Connection.API_VERSION);
+        } finally {
+            invalidateCachedUser(uid.getUidValue());
+        }
 
         if (b) {
             log.info("Sucessfully deleted account {0}", uid.getUidValue());
@@ -337,34 +629,326 @@ public class Office365UserOps {
         }
     }
 
-    public void queryUser(String query, ResultsHandler resultsHandler, OperationOptions options) {
+    public void queryUser(Office365Filter query, final ResultsHandler resultsHandler, OperationOptions options) {
         log.info("queryUser");
 
-        if (query == null) {
-            // retrieve all
+        String select = getSelect(options);
+
+        // A single user, by objectId or user principal name, is read through the cache
+        String key = query != null ? query.getObjectId() : null;
+        if (key == null && query != null) {
+            key = query.getEqualsValue(NAME_ATTRIBUTE);
+        }
+        if (key != null) {
+            log.info("Fetching Office 365 user {0}", key);
+            JSONObject obj = getUser(key, select, false);
+            ConnectorObject co = obj != null ? makeConnectorObject(obj) : null;
+
+            if (co != null) {
+                resultsHandler.handle(co);
+            }
+            return;
+        }
+
+        // retrieve all matching, one page at a time following the server's skip token
+        String basePath = "/users?api-version=" + Office365Connection.API_VERSION + "&$top=" + this.connector.getConfiguration().getPageSize();
+        if (query != null && query.isFilterable()) {
+            log.info("Fetching Office 365 users matching {0}", query);
+            basePath += "&$filter=" + Office365Connection.urlEncode(query.toODataFilter());
+        } else {
             log.info("Fetching All Users from Office 365");
-            JSONArray allObj;
+        }
+        if (select != null) {
+            basePath += "&$select=" + select;
+        }
+
+        int prefetchDepth = this.connector.getConfiguration().getPrefetchDepth();
+        long memoryBudget = this.connector.getConfiguration().getSearchMemoryBudget() * 1024L * 1024L;
+        if (prefetchDepth > 0 || memoryBudget > 0) {
+            String spillDirectory = this.connector.getConfiguration().getSearchSpillDirectory();
+            int pages = new Office365SearchPipeline(this.connector.getConnection(), this.userDecoder, basePath, prefetchDepth, memoryBudget,
+                    StringUtil.isNotBlank(spillDirectory) ? new File(spillDirectory) : null).run(resultsHandler);
+            log.info("Fetched {0} page(s) of users", pages);
+            return;
+        }
+
+        String skipToken = null;
+        int pages = 0;
+        Office365PageReader.ItemHandler<ConnectorObject> handler = new Office365PageReader.ItemHandler<ConnectorObject>() {
+            @Override
+            public boolean handle(ConnectorObject co) {
+                return resultsHandler.handle(co);
+            }
+        };
+
+        do {
+            String path = basePath;
+            if (skipToken != null) {
+                path += "&$skiptoken=" + skipToken;
+            }
+
+            Office365PageReader.Page page = this.connector.getConnection().getPagedRequest(path, this.userDecoder, handler);
+            pages++;
+            if (page.isStopped()) {
+                log.info("Handler stopped the search after {0} page(s)", pages);
+                return;
+            }
+
+            skipToken = Office365Connection.getSkipToken(page.getNextLink());
+        } while (skipToken != null);
+        log.info("Fetched {0} page(s) of users", pages);
+    }
+
+    /**
+     * Fetch a single user, through the cache unless a $select is given. A
+     * cached user within its TTL is used as it is, otherwise it is
+     * revalidated with its ETag.
+     *
+     * @param key the objectId or user principal name
+     * @param select the properties to fetch, or null for all of them
+     * @param revalidate true to check with the server even if the cached
+     * user is within its TTL, when the current state is needed
+     * @return the user, or null if there is none
+     */
+    JSONObject getUser(String key, String select, boolean revalidate) {
+        Office365Connection connection = this.connector.getConnection();
+        String path = "/users/" + Office365Connection.urlEncode(key) + "?api-version=" + Office365Connection.API_VERSION;
+        Office365UserCache cache = connection.getUserCache();
+
+        Office365UserCache.Entry held = cache != null ? cache.get(key) : null;
+        if (held != null && !revalidate && cache.isFresh(held)) {
+            log.info("Using cached user {0}", key);
+            return held.getObject();
+        }
+
+        if (select != null && held == null) {
+            // Only whole users are cached
+            Office365UserCache.Entry entry = connection.getConditionalRequest(path + "&$select=" + select, null);
+            return entry != null ? entry.getObject() : null;
+        }
+
+        Office365UserCache.Entry entry = connection.getConditionalRequest(path, held);
+        if (cache != null) {
+            if (entry != null) {
+                cache.put(entry);
+            } else {
+                cache.invalidate(key);
+            }
+        }
+        return entry != null ? entry.getObject() : null;
+    }
+
+    private void invalidateCachedUser(String key) {
+        Office365UserCache cache = this.connector.getConnection().getUserCache();
+        if (cache != null && key != null) {
+            cache.invalidate(key);
+        }
+    }
+
+    /**
+     * Pass the users changed or deleted since the token to the handler, using
+     * the differential query. With no token every user is passed.
+     *
+     * Each delta carries the token of the page it was read from, so a sync
+     * interrupted part way through a page repeats that page when resumed.
+     * Once every page has been read the token for the next sync is passed to
+     * the handler if it is a {@link SyncTokenResultsHandler}.
+     *
+     * If a checkpoint store is configured the next page is recorded as each
+     * page completes, and a sync from the same token that was interrupted
+     * carries on from there.
+     */
+    public void syncUsers(SyncToken token, final SyncResultsHandler handler) {
+        log.info("syncUsers from {0}", token);
+
+        String start = token != null && token.getValue() != null ? token.getValue().toString() : "";
+        String deltaToken = start;
+
+        Office365CheckpointStore checkpoints = this.connector.getConnection().getCheckpointStore();
+        boolean resumed = false;
+        if (checkpoints != null) {
+            Office365CheckpointStore.Checkpoint checkpoint = checkpoints.load(SYNC_CHECKPOINT);
+            if (checkpoint != null && checkpoint.getStart().equals(start)) {
+                log.info("Resuming sync from the checkpoint of {0,date,yyyy-MM-dd HH:mm:ss}", checkpoint.getUpdated());
+                deltaToken = checkpoint.getToken();
+                resumed = true;
+            }
+        }
+
+        int pages = 0;
+        while (true) {
+            final SyncToken pageToken = new SyncToken(deltaToken);
+            Office365PageReader.Page page;
             try {
-                allObj = this.connector.getConnection().getRequest("/users?api-version=" + Office365Connection.API_VERSION).getJSONArray("value");
-                for (int i = 0; i < allObj.length(); i++) {
-                    ConnectorObject co = makeConnectorObject((JSONObject) allObj.get(i));
-                    if (co != null) {
-                        resultsHandler.handle(co);
-                    }
+                page = this.connector.getConnection().getPagedRequest(getDeltaPath(deltaToken),
+                        new Office365PageReader.ItemDecoder<SyncDelta>() {
+                            @Override
+                            public SyncDelta decode(JSONTokener tokener) throws JSONException {
+                                return makeSyncDelta(new JSONObject(tokener), pageToken);
+                            }
+                        }, new Office365PageReader.ItemHandler<SyncDelta>() {
+                            @Override
+                            public boolean handle(SyncDelta delta) {
+                                return handler.handle(delta);
+                            }
+                        });
+            } catch (ConnectorException ce) {
+                if (!resumed || pages > 0) {
+                    throw ce;
                 }
-            } catch (JSONException ex) {
-                Logger.getLogger(Office365UserOps.class.getName()).log(Level.SEVERE, null, ex);
+                // The checkpoint's token may have expired, the sync can still be run in full
+                log.warn(ce, "Unable to resume sync from its checkpoint, starting again");
+                checkpoints.clear(SYNC_CHECKPOINT);
+                deltaToken = start;
+                resumed = false;
+                continue;
+            }
+
+            pages++;
+            if (page.isStopped()) {
+                log.info("Handler stopped the sync after {0} page(s)", pages);
+                return;
+            }
+
+            String next = Office365Connection.getDeltaToken(page.getDeltaNextLink());
+            if (next == null) {
+                String latest = Office365Connection.getDeltaToken(page.getDeltaLink());
+                if (latest == null) {
+                    throw new ConnectorException("Differential query from " + deltaToken + " returned neither a next link nor a delta link");
+                }
+                log.info("Synced {0} page(s) of users", pages);
+                if (handler instanceof SyncTokenResultsHandler) {
+                    ((SyncTokenResultsHandler) handler).handleResult(new SyncToken(latest));
+                }
+                if (checkpoints != null) {
+                    checkpoints.clear(SYNC_CHECKPOINT);
+                }
+                return;
+            }
+
+            if (checkpoints != null) {
+                checkpoints.save(SYNC_CHECKPOINT, start, next);
+            }
+            deltaToken = next;
+        }
+    }
+
+    /**
+     * @return the token of the current state of the users, without fetching them
+     */
+    public SyncToken getLatestSyncToken() {
+        log.info("getLatestSyncToken");
+
+        // Asks for just the token, any users sent regardless are skipped
+        Header onlyToken = new BasicHeader(DELTA_TOKEN_ONLY_HEADER, "true");
+        Office365PageReader.ItemDecoder<Object> skip = new Office365PageReader.ItemDecoder<Object>() {
+            @Override
+            public Object decode(JSONTokener tokener) throws JSONException {
+                Office365PageReader.skipValue(tokener);
+                return null;
+            }
+        };
+        Office365PageReader.ItemHandler<Object> none = new Office365PageReader.ItemHandler<Object>() {
+            @Override
+            public boolean handle(Object item) {
+                return true;
+            }
+        };
+
+        String deltaToken = "";
+        while (true) {
+            Office365PageReader.Page page = this.connector.getConnection().getPagedRequest(getDeltaPath(deltaToken), skip, none, onlyToken);
+            String latest = Office365Connection.getDeltaToken(page.getDeltaLink());
+            if (latest != null) {
+                return new SyncToken(latest);
             }
 
+            deltaToken = Office365Connection.getDeltaToken(page.getDeltaNextLink());
+            if (deltaToken == null) {
+                throw new ConnectorException("Differential query returned neither a next link nor a delta link");
+            }
+        }
+    }
+
+    private static String getDeltaPath(String deltaToken) {
+        return "/users?api-version=" + Office365Connection.API_VERSION + "&deltaLink=" + deltaToken;
+    }
+
+    /**
+     * @return a delete for a user flagged as deleted, otherwise a create or update
+     */
+    SyncDelta makeSyncDelta(JSONObject jsonObject, SyncToken token) throws JSONException {
+        SyncDeltaBuilder builder = new SyncDeltaBuilder();
+        builder.setToken(token);
+        builder.setObjectClass(ObjectClass.ACCOUNT);
+
+        if (jsonObject.optBoolean(DELETED_ATTRIBUTE, false)) {
+            builder.setDeltaType(SyncDeltaType.DELETE);
+            builder.setUid(new Uid(jsonObject.getString(UID_ATTRIBUTE)));
         } else {
-            log.info("Fetching Office 365 user {0}", query);
-            JSONObject obj = this.connector.getConnection().getRequest("/users/" + query + "/?api-version=" + Office365Connection.API_VERSION);
-            ConnectorObject co = makeConnectorObject(obj);
+            ConnectorObject co = makeConnectorObject(jsonObject);
+            if (co == null) {
+                throw new ConnectorException("Unable to read changed user " + jsonObject.optString(UID_ATTRIBUTE));
+            }
+            builder.setDeltaType(SyncDeltaType.CREATE_OR_UPDATE);
+            builder.setObject(co);
+        }
 
-            if (co != null) {
-                resultsHandler.handle(co);
+        return builder.build();
+    }
+
+    /**
+     * Build the $select list for the attributes requested in the options, so
+     * only those properties are returned.
+     *
+     * @return the comma separated property list, or null to return everything
+     */
+    String getSelect(OperationOptions options) {
+        if (options == null || options.getAttributesToGet() == null) {
+            return null;
+        }
+
+        Set<String> properties = new LinkedHashSet<String>();
+        properties.add(OBJECT_TYPE_ATTRIBUTE);
+        properties.add(UID_ATTRIBUTE);
+        properties.add(NAME_ATTRIBUTE);
+        for (String attrName : options.getAttributesToGet()) {
+            if (USER_ATTRIBUTE_SET.contains(attrName)) {
+                properties.add(attrName);
             }
         }
+
+        StringBuilder sb = new StringBuilder();
+        for (String property : properties) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(property);
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * Look up a user by userPrincipalName.
+     *
+     * @return the Uid of the user, or null if there is no such user
+     */
+    private Uid findUserUid(String userPrincipalName) {
+        String path = "/users?api-version=" + Office365Connection.API_VERSION
+                + "&$filter=" + Office365Connection.urlEncode(Office365Filter.equalTo(NAME_ATTRIBUTE, userPrincipalName, false).toODataFilter())
+                + "&$select=" + OBJECT_TYPE_ATTRIBUTE + "," + UID_ATTRIBUTE + "," + NAME_ATTRIBUTE;
+
+        final Uid[] found = new Uid[1];
+        this.connector.getConnection().getPagedRequest(path, this.userDecoder, new Office365PageReader.ItemHandler<ConnectorObject>() {
+            @Override
+            public boolean handle(ConnectorObject co) {
+                found[0] = co.getUid();
+                return false;
+            }
+        });
+
+        return found[0];
     }
 
     public boolean assignLicense(Uid uid, String license) {
@@ -378,74 +962,60 @@ public class Office365UserOps {
         log.ok("UID of {0} is present", uid.getUidValue());
 
         log.ok("License of {0} received for uid {1}", license, uid.getUidValue());
-        
+
         /*
-         * The Connector handles only single values only
-         * Office 365 assignLicense Service does not support to remove and add the same license modifying the plans
-         * so we need to remove the license first and then add the other license and plans 
+         * The Connector handles only single values, so the user ends up with
+         * this license alone. The change from the licenses the user has is
+         * made in one assignLicense call, or none if there is nothing to change.
          */
-        log.ok("Query user for existing license(s) to be removed prior to set new license.");
-        try
-        {
-        	JSONObject myUser = this.connector.getConnection().getRequest("/users/" + uid.getUidValue() + "?api-version=" + Office365Connection.API_VERSION);
-        	log.info("User Information {0}", myUser);
-        	JSONArray userAssignedLicenses = myUser.getJSONArray("assignedLicenses");
-        	if(userAssignedLicenses.length() != 0){
-	        	log.info("User Assigned Licenses {0}", userAssignedLicenses);        	
-	        	for (int i = 0; i < userAssignedLicenses.length(); i++) { 
-	        		if(userAssignedLicenses.getJSONObject(i).getString("skuId") != null){
-		        		JSONObject license2remove = new JSONObject();
-		        		license2remove.put("addLicenses", JSONObject.NULL);
-		        		log.ok("User SkuID License {0}", userAssignedLicenses.getJSONObject(i).getString("skuId"));
-		        		
-		        		ArrayList<String> unwantedLicenses = new ArrayList<String>();
-		        		unwantedLicenses.add(userAssignedLicenses.getJSONObject(i).getString("skuId"));
-		        		license2remove.put("removeLicenses", unwantedLicenses);
-		        		log.info("Remove License JSON {0}", license2remove);
-		        		Uid returnedUid = this.connector.getConnection().postRequest("/users/" + uid.getUidValue() + "/assignLicense?api-version=" + Office365Connection.API_VERSION, license2remove);
-		        		if (returnedUid != null && returnedUid.equals(Office365Connection.SUCCESS_UID)) {
-		                    log.info("License removed successfully from user {0}", uid.getUidValue());
-		                } else {
-		                    log.error("Failed to remove license");
-		                    
-		                }
-	        		}
-	        	}	        	
-        	}
-         }
-        catch (Exception e)
-        {
-        log.error(e, "Error removing existing license(s).");
-                   throw new ConnectorException("Error removing existing license(s). ", e);
-        }
-
-        log.ok("Now add the new license, if it is not null.");
         try {
-            if(license != null){ 
-	        	JSONObject lic = convertLicenseToJson(license);
-	
-	            log.info("Attempting license assignment with {0}", lic.toString());
-	
-	            Uid returnedUid = this.connector.getConnection().postRequest("/users/" + uid.getUidValue() + "/assignLicense?api-version=" + Office365Connection.API_VERSION, lic);
-	
-	            if (returnedUid != null && returnedUid.equals(Office365Connection.SUCCESS_UID)) {
-	                log.info("License assigned successfully to {0}", uid.getUidValue());
-	                return true;
-	            } else {
-	                log.error("Failed to assign license.");
-	                return false;
-	            }
-            }else{
-            	log.info("Exit without assigning new license.");
+            JSONObject desired = null;
+            if (license != null) {
+                JSONObject lic = convertLicenseToJson(license);
+                if (lic == null) {
+                    log.error("Failed to assign license, {0} is not valid", license);
+                    return false;
+                }
+                desired = lic.getJSONArray("addLicenses").getJSONObject(0);
+            }
+
+            // Revalidated as the current licenses are needed
+            JSONObject myUser = getUser(uid.getUidValue(), null, true);
+            if (myUser == null) {
+                throw new ConnectorException("User " + uid.getUidValue() + " does not exist");
+            }
+            log.info("User Assigned Licenses {0}", myUser.optJSONArray("assignedLicenses"));
+
+            Office365LicenseDiff diff = new Office365LicenseDiff(myUser.optJSONArray("assignedLicenses"), desired);
+            if (diff.isEmpty()) {
+                log.info("User {0} already has license {1}, nothing to change", uid.getUidValue(), license);
                 return true;
             }
+
+            JSONObject request = diff.toRequest();
+            log.info("Attempting license assignment with {0}", request);
+
+            Uid returnedUid;
+            try {
+                returnedUid = this.connector.getConnection().postRequest("/users/" + uid.getUidValue() + "/assignLicense?api-version=" + Office365Connection.API_VERSION, request, true);
+            } finally {
+                invalidateCachedUser(uid.getUidValue());
+            }
+
+            if (returnedUid != null && returnedUid.equals(Office365Connection.SUCCESS_UID)) {
+                log.info("License assigned successfully to {0}", uid.getUidValue());
+                return true;
+            } else {
+                log.error("Failed to assign license.");
+                return false;
+            }
         } catch (JSONException je) {
             log.error(je, "Error converting license {0} to JSON for {1}", license, uid.getUidValue());
             throw new ConnectorException("Error converting license " + license + " to JSON for " + uid.getUidValue(), je);
         }
     }
 
-    private ConnectorObject makeConnectorObject(JSONObject jsonObject) {
+    ConnectorObject makeConnectorObject(JSONObject jsonObject) {
         log.info("makeConnectorObject");
 
         if (jsonObject == null) {
@@ -467,27 +1037,12 @@ public class Office365UserOps {
             cob.setUid(uid);
             cob.setName(userPrincipalName);
 
-            String[] attrs = {"accountEnabled", "city", "country", "department", "displayName", "facsimileTelephoneNumber", "givenName",
-                "jobTitle", "mail", "mailNickname", "mobile", "otherMails", "physicalDeliveryOfficeName", "postalCode",
-                "preferredLanguage", "proxyAddresses", "state", "streetAddress", "surname", "telephoneNumber",
-                "usageLocation"};
-
-            for (String a : attrs) {
+            for (String a : USER_ATTRIBUTES) {
                 if (jsonObject.has(a)) {
                     Object value = jsonObject.get(a);
                     // log.info("Retreieved attribute {0} with value {1}", a, value);
                     if (value != null && value != JSONObject.NULL) {
-                        if (value instanceof JSONArray) {
-                            JSONArray j = (JSONArray) value;
-                            int length = j.length();
-                            List<String> items = new ArrayList<String>();
-                            for (int i = 0; i < length; i++) {
-                                items.add(j.getString(i));
-                            }
-                            cob.addAttribute(AttributeBuilder.build(a, items));
-                        } else {
-                            cob.addAttribute(AttributeBuilder.build(a, value));
-                        }
+                        cob.addAttribute(buildAttribute(a, value));
                     }
                 } else {
                     log.info("No value returned for {0}", a);
@@ -503,6 +1058,79 @@ public class Office365UserOps {
         }
     }
 
+    /**
+     * Decode a user straight from the response stream into a connector
+     * object, skipping properties that are not mapped.
+     */
+    ConnectorObject decodeConnectorObject(JSONTokener tokener) throws JSONException {
+        if (tokener.nextClean() != '{') {
+            throw tokener.syntaxError("A user must begin with '{'");
+        }
+
+        ConnectorObjectBuilder cob = new ConnectorObjectBuilder();
+        String objectType = null;
+        String objectId = null;
+        String userPrincipalName = null;
+
+        char c = tokener.nextClean();
+        if (c != '}') {
+            tokener.back();
+            while (true) {
+                String key = Office365PageReader.nextKey(tokener);
+
+                if (OBJECT_TYPE_ATTRIBUTE.equals(key)) {
+                    objectType = tokener.nextValue().toString();
+                } else if (UID_ATTRIBUTE.equals(key)) {
+                    objectId = tokener.nextValue().toString();
+                } else if (NAME_ATTRIBUTE.equals(key)) {
+                    userPrincipalName = tokener.nextValue().toString();
+                } else if (USER_ATTRIBUTE_SET.contains(key)) {
+                    Object value = tokener.nextValue();
+                    if (value != null && value != JSONObject.NULL) {
+                        cob.addAttribute(buildAttribute(key, value));
+                    }
+                } else {
+                    Office365PageReader.skipValue(tokener);
+                }
+
+                c = tokener.nextClean();
+                if (c == '}') {
+                    break;
+                } else if (c != ',') {
+                    throw tokener.syntaxError("Expected ',' or '}'");
+                }
+            }
+        }
+
+        if (!"User".equals(objectType)) {
+            log.error("Received object type {0} when doing a user query which is not supported", objectType);
+            throw new IllegalArgumentException("Received " + objectType + " when searching for a user, this should be User");
+        }
+
+        if (objectId == null || userPrincipalName == null) {
+            throw new JSONException("User is missing " + UID_ATTRIBUTE + " or " + NAME_ATTRIBUTE);
+        }
+
+        cob.setUid(objectId);
+        cob.setName(userPrincipalName);
+
+        return cob.build();
+    }
+
+    private static Attribute buildAttribute(String name, Object value) throws JSONException {
+        if (value instanceof JSONArray) {
+            JSONArray j = (JSONArray) value;
+            int length = j.length();
+            List<String> items = new ArrayList<String>();
+            for (int i = 0; i < length; i++) {
+                items.add(j.getString(i));
+            }
+            return AttributeBuilder.build(name, items);
+        } else {
+            return AttributeBuilder.build(name, value);
+        }
+    }
+
     public JSONObject convertLicenseToJson(String license) throws JSONException {
         // INPUT  licensename:planname:planname:...
         log.info("convertLicenseToJson");
@@ -522,7 +1150,9 @@ public class Office365UserOps {
             JSONObject obj = new JSONObject();
             JSONArray addObj = new JSONArray();
 
-            String skuId = connector.getConnection().getLicensePlanId(components[0]);
+            // One snapshot throughout, in case the catalog is reloaded meanwhile
+            Office365SkuCatalog.Snapshot skus = connector.getConnection().getSkus();
+            String skuId = skus.getSkuId(components[0]);
             JSONObject licenseObj = new JSONObject();
             if (skuId != null) {
                 log.info("valid license SKU of {0} passed", skuId);
@@ -536,7 +1166,7 @@ public class Office365UserOps {
                 } else {
                     log.info("Plans passed with license");
                     // Need to do the inverse here and get the disables
-                    Office365License lic = connector.getConnection().getLicensePlan(components[0]);
+                    Office365License lic = skus.getLicense(components[0]);
 
                     ArrayList<String> assignedPlans = new ArrayList<String>();
                     for (int i = 1; i < components.length; i++) {
@@ -555,7 +1185,7 @@ public class Office365UserOps {
                             if (!assignedPlans.contains(sp.getServicePlanName())) {
                                 log.info("Adding {0} to list of plans we don't want", sp.getServicePlanName());
                                 // We don't want this plan
-                                String id = connector.getConnection().getServicePlanId(sp.getServicePlanName());
+                                String id = skus.getServicePlanId(sp.getServicePlanName());
                                 if (id != null) {
                                     unwantedPlans.add(id);
                                 }
@@ -582,6 +1212,23 @@ public class Office365UserOps {
         }
     }
 
+    /**
+     * The JSON for a create or update, and the license to assign once it is
+     * done.
+     */
+    static class UserRequest {
+
+        final JSONObject json;
+        final String license;
+        final boolean licenseSettable; // usage location set on create, license changing on update
+
+        UserRequest(JSONObject json, String license, boolean licenseSettable) {
+            this.json = json;
+            this.license = license;
+            this.licenseSettable = licenseSettable;
+        }
+    }
+
     /**
      *
      * @param password The password to format
@@ -6,6 +6,7 @@ package org.identityconnectors.office365;
 import java.io.UnsupportedEncodingException;
 
 import org.identityconnectors.common.Base64;
+import org.identityconnectors.common.logging.Log;
 import org.identityconnectors.framework.common.exceptions.ConnectorException;
 
 /**
@@ -14,6 +15,36 @@ import org.identityconnectors.framework.common.exceptions.ConnectorException;
  */
 public class Office365Utils {
 
+    private static final Log log = Log.getLog(Office365Utils.class);
+
+    /**
+     * Encode a UUID as an immutableId using the configured mechanism.
+     *
+     * @param uuid the UUID to encode
+     * @param mechanism one of the Office365Configuration ENCODE_ constants
+     * @return the encoded value, or the uuid unaltered if the mechanism is not recognised
+     */
+    public static String encodeImmutableId(String uuid, String mechanism) throws ConnectorException {
+        log.info("Encoding uuid {0} with mechanism {1}", uuid, mechanism);
+        if (mechanism.equals(Office365Configuration.ENCODE_MS_BASE64_STR)) {
+            log.info("Encoding UUID with Microsoft format");
+            return encodeUUIDInMicrosoftFormat(uuid);
+        } else if (mechanism.equals(Office365Configuration.ENCODE_MS_BASE64_OPENICF_ADFS_STR)) {
+            log.info("Doing base64 encode in ADFS compatible format");
+            return encodeUUIDInMicrosoftADFSFormat(uuid);
+        } else if (mechanism.equals(Office365Configuration.ENCODE_STRAIGHT_BASE64_STR)) {
+            log.info("Encoding UUID with standard base64");
+            try {
+                return Base64.encode(uuid.getBytes("ISO-8859-1"));
+            } catch (UnsupportedEncodingException uee) {
+                throw new ConnectorException("unable to convert uuid " + uuid + "to MS format", uee);
+            }
+        } else {
+            log.info("No encoding of UUID, returning unaltered");
+            return uuid;
+        }
+    }
+
     public static String encodeUUIDInMicrosoftFormat(String uuid) throws ConnectorException {
         String[] array = uidToArray(uuid);
         
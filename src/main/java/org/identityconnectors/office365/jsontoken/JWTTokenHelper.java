@@ -170,8 +170,21 @@ public class JWTTokenHelper {
 	public static String getOAuthAccessTokenFromACS(String stsUrl,
 			String assertion, String resource) throws Exception {
 		
-		String accessToken = "";
-				
+		String accessToken = getOAuthAccessTokenResponseFromACS(stsUrl, assertion, resource).optString("access_token");
+		return toBearerToken(accessToken);
+	}
+
+	/**
+	 * Get the full token response from ACS (STS), including expires_in.
+	 * @param stsUrl ACS STS Url.
+	 * @param assertion Assertion Token.
+	 * @param resource ExpiresIn name.
+	 * @return The parsed token response.
+	 * @throws Exception If the operation can not be completed successfully.
+	 */
+	public static JSONObject getOAuthAccessTokenResponseFromACS(String stsUrl,
+			String assertion, String resource) throws Exception {
+		
 		URL url = null;
 		
 		String data = null;
@@ -201,8 +214,15 @@ public class JWTTokenHelper {
 		wr.close();
 		rd.close();
 		
-		
-		accessToken = (new JSONObject(response)).optString("access_token");						
+		return new JSONObject(response);
+	}
+
+	/**
+	 * Format an access token as an Authorization header value.
+	 * @param accessToken The raw OAuth access token.
+	 * @return The bearer token.
+	 */
+	public static String toBearerToken(String accessToken) {
 		return String.format("%s%s", JWTTokenHelper.bearerTokenPrefix, accessToken);
 	}
 
@@ -0,0 +1,153 @@
+package org.identityconnectors.office365;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.framework.common.objects.Uid;
+import org.json.JSONObject;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Runs {@link Office365AsyncClient} against {@link Office365GraphStandIn},
+ * covering throttling, retries, cancellation and closing the client.
+ *
+ * @author Paul Heaney
+ */
+public class Office365AsyncClientTests {
+
+    private static final String USER_PATH = "/users/" + Office365GraphStandIn.syntheticId(1) + "?api-version=" + Office365Connection.API_VERSION;
+
+    private static Office365Connector connect(Office365GraphStandIn standIn) {
+        Office365Configuration configuration = standIn.configuration();
+        configuration.setMaxRetries(2);
+        configuration.setRetryInitialDelay(1);
+        configuration.setRetryMaxDelay(5);
+        configuration.setMaxThrottleRetries(1);
+        Office365Connector connector = new Office365Connector();
+        connector.init(configuration);
+        return connector;
+    }
+
+    private static Throwable failure(CompletableFuture<?> future) throws Exception {
+        try {
+            future.get(10, TimeUnit.SECONDS);
+        } catch (ExecutionException ee) {
+            return ee.getCause();
+        }
+        Assert.fail("Expected the request to fail");
+        return null;
+    }
+
+    @Test
+    public void testThrottledWithRetryAfter() throws Exception {
+        Office365GraphStandIn standIn = new Office365GraphStandIn("async-throttle.onmicrosoft.com", 5);
+        Office365Connector connector = connect(standIn);
+        try {
+            Office365AsyncClient client = connector.getConnection().getAsyncClient();
+
+            // Retried once after the Retry-After, then the 429 is returned
+            standIn.setThrottleRate(1.0, 1);
+            long started = System.currentTimeMillis();
+            Throwable t = failure(client.getRequest(USER_PATH));
+            Assert.assertTrue(t instanceof ConnectorException && t.getMessage().contains("429"), String.valueOf(t));
+            Assert.assertTrue(System.currentTimeMillis() - started >= 1000, "retried before the Retry-After");
+            Assert.assertEquals(standIn.getThrottledCount(), 2);
+
+            standIn.setThrottleRate(0, 0);
+            JSONObject user = client.getRequest(USER_PATH).get(10, TimeUnit.SECONDS);
+            Assert.assertEquals(user.getString("objectId"), Office365GraphStandIn.syntheticId(1));
+        } finally {
+            connector.dispose();
+            standIn.stop();
+        }
+    }
+
+    @Test
+    public void testRetriesOnlyIdempotentRequests() throws Exception {
+        Office365GraphStandIn standIn = new Office365GraphStandIn("async-retry.onmicrosoft.com", 5);
+        Office365Connector connector = connect(standIn);
+        try {
+            Office365AsyncClient client = connector.getConnection().getAsyncClient();
+            standIn.setErrorRate(1.0);
+
+            // A GET is sent again, up to the max retries
+            Throwable t = failure(client.getRequest(USER_PATH));
+            Assert.assertTrue(t.getMessage().contains("500"), t.getMessage());
+            Assert.assertEquals(standIn.getRequestCount("GET /users/{id}"), 3);
+
+            // A create is not, it may have been applied
+            JSONObject create = new JSONObject().put("userPrincipalName", "async@async-retry.onmicrosoft.com")
+                    .put("displayName", "Async").put("mailNickname", "async");
+            failure(client.postRequest("/users?api-version=" + Office365Connection.API_VERSION, create));
+            Assert.assertEquals(standIn.getRequestCount("POST /users"), 1);
+
+            standIn.setErrorRate(0);
+            Uid uid = client.postRequest("/users?api-version=" + Office365Connection.API_VERSION,
+                    create.put("userPrincipalName", "async2@async-retry.onmicrosoft.com")).get(10, TimeUnit.SECONDS);
+            Assert.assertNotNull(uid.getUidValue());
+        } finally {
+            connector.dispose();
+            standIn.stop();
+        }
+    }
+
+    @Test
+    public void testCancelAbortsRequest() throws Exception {
+        Office365GraphStandIn standIn = new Office365GraphStandIn("async-cancel.onmicrosoft.com", 5);
+        Office365Connector connector = connect(standIn);
+        try {
+            Office365AsyncClient client = connector.getConnection().getAsyncClient();
+            standIn.setLatency(5000, 0);
+
+            CompletableFuture<JSONObject> future = client.getRequest(USER_PATH);
+            long deadline = System.currentTimeMillis() + 3000;
+            while (client.getLeasedConnections() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            Assert.assertEquals(client.getLeasedConnections(), 1);
+
+            // The connection is given up long before the response would arrive
+            long started = System.currentTimeMillis();
+            Assert.assertTrue(future.cancel(true));
+            while (client.getLeasedConnections() > 0 && System.currentTimeMillis() - started < 3000) {
+                Thread.sleep(10);
+            }
+            Assert.assertEquals(client.getLeasedConnections(), 0);
+            Assert.assertTrue(System.currentTimeMillis() - started < 3000);
+        } finally {
+            connector.dispose();
+            standIn.stop();
+        }
+    }
+
+    @Test
+    public void testCloseFailsParkedRequests() throws Exception {
+        Office365GraphStandIn standIn = new Office365GraphStandIn("async-close.onmicrosoft.com", 5);
+        Office365Connector connector = connect(standIn);
+        try {
+            Office365AsyncClient client = connector.getConnection().getAsyncClient();
+
+            // Parked on the timer for the Retry-After
+            standIn.setThrottleRate(1.0, 30);
+            CompletableFuture<JSONObject> future = client.getRequest(USER_PATH);
+            long deadline = System.currentTimeMillis() + 3000;
+            while (standIn.getThrottledCount() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            Thread.sleep(50);
+            Assert.assertFalse(future.isDone());
+
+            client.close();
+            Throwable t = failure(future);
+            Assert.assertTrue(t.getMessage().contains("closed"), t.getMessage());
+            t = failure(client.getRequest(USER_PATH));
+            Assert.assertTrue(t.getMessage().contains("closed"), t.getMessage());
+        } finally {
+            connector.dispose();
+            standIn.stop();
+        }
+    }
+}
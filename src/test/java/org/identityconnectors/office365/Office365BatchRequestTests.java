@@ -0,0 +1,82 @@
+package org.identityconnectors.office365;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.identityconnectors.framework.common.objects.Uid;
+import org.json.JSONObject;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests encoding a $batch and mapping its response back in {@link Office365BatchRequest}.
+ *
+ * @author Paul Heaney
+ */
+public class Office365BatchRequestTests {
+
+    private static final String RESPONSE = "--batchresponse_1\r\n"
+            + "Content-Type: multipart/mixed; boundary=changesetresponse_a\r\n"
+            + "\r\n"
+            + "--changesetresponse_a\r\n"
+            + "Content-Type: application/http\r\n"
+            + "Content-Transfer-Encoding: binary\r\n"
+            + "\r\n"
+            + "HTTP/1.1 201 Created\r\n"
+            + "Location: https://graph.windows.net/contoso.onmicrosoft.com/directoryObjects/4e971521-101a-4311-94f4-0917d7218b4e/Microsoft.WindowsAzure.ActiveDirectory.User\r\n"
+            + "Content-Type: application/json\r\n"
+            + "\r\n"
+            + "{\"objectId\":\"4e971521-101a-4311-94f4-0917d7218b4e\"}\r\n"
+            + "--changesetresponse_a--\r\n"
+            + "--batchresponse_1\r\n"
+            + "Content-Type: multipart/mixed; boundary=changesetresponse_b\r\n"
+            + "\r\n"
+            + "--changesetresponse_b\r\n"
+            + "Content-Type: application/http\r\n"
+            + "Content-Transfer-Encoding: binary\r\n"
+            + "\r\n"
+            + "HTTP/1.1 400 Bad Request\r\n"
+            + "Content-Type: application/json\r\n"
+            + "\r\n"
+            + "{\"odata.error\":{\"code\":\"Request_BadRequest\"}}\r\n"
+            + "--changesetresponse_b--\r\n"
+            + "--batchresponse_1\r\n"
+            + "Content-Type: multipart/mixed; boundary=changesetresponse_c\r\n"
+            + "\r\n"
+            + "--changesetresponse_c\r\n"
+            + "Content-Type: application/http\r\n"
+            + "Content-Transfer-Encoding: binary\r\n"
+            + "\r\n"
+            + "HTTP/1.1 204 No Content\r\n"
+            + "\r\n"
+            + "\r\n"
+            + "--changesetresponse_c--\r\n"
+            + "--batchresponse_1--\r\n";
+
+    private final List<Office365BatchOperation> operations = Arrays.asList(
+            Office365BatchOperation.create("/users?api-version=2013-11-08", new JSONObject()),
+            Office365BatchOperation.create("/users?api-version=2013-11-08", new JSONObject()),
+            Office365BatchOperation.delete(new Uid("abc"), "/users/abc?api-version=2013-11-08"));
+
+    @Test
+    public void testEncode() {
+        Office365BatchRequest batch = new Office365BatchRequest(operations);
+        String body = batch.encode("https://graph.windows.net/contoso.onmicrosoft.com");
+
+        Assert.assertTrue(body.contains("POST https://graph.windows.net/contoso.onmicrosoft.com/users?api-version=2013-11-08 HTTP/1.1\r\n"));
+        Assert.assertTrue(body.contains("DELETE https://graph.windows.net/contoso.onmicrosoft.com/users/abc?api-version=2013-11-08 HTTP/1.1\r\n"));
+        Assert.assertTrue(body.endsWith("--" + batch.getContentType().split("boundary=")[1] + "--\r\n"));
+        Assert.assertFalse(batch.isRepeatable());
+    }
+
+    @Test
+    public void testDecode() {
+        List<Office365BatchResult> results = new Office365BatchRequest(operations).decode("multipart/mixed; boundary=batchresponse_1", RESPONSE);
+
+        Assert.assertEquals(results.size(), 3);
+        Assert.assertEquals(results.get(0).getUid(), new Uid("4e971521-101a-4311-94f4-0917d7218b4e"));
+        Assert.assertFalse(results.get(1).isSuccess());
+        Assert.assertEquals(results.get(1).getException().getErrorCode(), Integer.valueOf(400));
+        Assert.assertEquals(results.get(2).getUid(), new Uid("abc"));
+    }
+}
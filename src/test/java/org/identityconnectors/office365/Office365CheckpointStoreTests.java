@@ -0,0 +1,121 @@
+package org.identityconnectors.office365;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.identityconnectors.framework.common.objects.SyncDelta;
+import org.identityconnectors.framework.common.objects.SyncResultsHandler;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests {@link Office365CheckpointStore} and resuming an interrupted sync
+ * from its checkpoint.
+ *
+ * @author Paul Heaney
+ */
+public class Office365CheckpointStoreTests {
+
+    private final List<File> directories = new ArrayList<File>();
+
+    @AfterMethod
+    public void deleteDirectories() {
+        for (File directory : this.directories) {
+            delete(directory);
+        }
+        this.directories.clear();
+    }
+
+    @Test
+    public void testSaveLoadClear() throws IOException {
+        File directory = createDirectory();
+        Office365CheckpointStore store = new Office365CheckpointStore(new File(directory, "nested"), "Contoso.onmicrosoft.com");
+        Assert.assertNull(store.load("sync"));
+
+        store.save("sync", "", "F200.0");
+        store.save("sync", "", "F400.0");
+        Office365CheckpointStore.Checkpoint checkpoint = store.load("sync");
+        Assert.assertEquals(checkpoint.getStart(), "");
+        Assert.assertEquals(checkpoint.getToken(), "F400.0");
+        Assert.assertTrue(checkpoint.getUpdated() > 0);
+        Assert.assertEquals(store.getFile("sync").getParentFile().list().length, 1, "temp files left behind");
+
+        // Another tenancy or operation has its own checkpoint
+        Assert.assertNull(new Office365CheckpointStore(new File(directory, "nested"), "fabrikam.onmicrosoft.com").load("sync"));
+        Assert.assertNull(store.load("search"));
+
+        FileOutputStream out = new FileOutputStream(store.getFile("sync"));
+        out.write("start=\n".getBytes("UTF-8"));
+        out.close();
+        Assert.assertNull(store.load("sync"), "incomplete checkpoint");
+
+        store.clear("sync");
+        Assert.assertFalse(store.getFile("sync").exists());
+    }
+
+    @Test
+    public void testSyncResumes() throws Exception {
+        Office365GraphStandIn standIn = new Office365GraphStandIn("resume.onmicrosoft.com", 1000);
+        Office365Connector connector = new Office365Connector();
+        try {
+            Office365Configuration configuration = standIn.configuration();
+            configuration.setCheckpointDirectory(createDirectory().getPath());
+            connector.init(configuration);
+
+            // Interrupted part way through the third of five pages
+            final AtomicInteger count = new AtomicInteger();
+            connector.sync(ObjectClass.ACCOUNT, null, new SyncResultsHandler() {
+                @Override
+                public boolean handle(SyncDelta delta) {
+                    return count.incrementAndGet() < 450;
+                }
+            }, null);
+            Office365CheckpointStore store = connector.getConnection().getCheckpointStore();
+            Assert.assertNotNull(store.load(Office365UserOps.SYNC_CHECKPOINT));
+
+            count.set(0);
+            SyncResultsHandler counter = new SyncResultsHandler() {
+                @Override
+                public boolean handle(SyncDelta delta) {
+                    count.incrementAndGet();
+                    return true;
+                }
+            };
+            connector.sync(ObjectClass.ACCOUNT, null, counter, null);
+            Assert.assertEquals(count.get(), 600);
+            Assert.assertNull(store.load(Office365UserOps.SYNC_CHECKPOINT));
+
+            // A checkpoint the server no longer accepts is dropped and the sync run in full
+            store.save(Office365UserOps.SYNC_CHECKPOINT, "", "expired");
+            count.set(0);
+            connector.sync(ObjectClass.ACCOUNT, null, counter, null);
+            Assert.assertEquals(count.get(), 1000);
+        } finally {
+            connector.dispose();
+            standIn.stop();
+        }
+    }
+
+    private File createDirectory() throws IOException {
+        File directory = File.createTempFile("office365-checkpoints", "");
+        Assert.assertTrue(directory.delete() && directory.mkdir());
+        this.directories.add(directory);
+        return directory;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -24,6 +24,8 @@
 package org.identityconnectors.office365;
 
 import org.identityconnectors.common.logging.Log;
+import org.testng.Assert;
+import org.testng.annotations.Test;
 
 /**
  * 
@@ -34,5 +36,12 @@ public class Office365ConnectionTests {
 
 	private static final Log LOGGER = Log.getLog(Office365ConnectorTests.class);
 
-	
+	@Test
+	public void testGetSkipToken() {
+		String nextLink = "directoryObjects/$/Microsoft.WindowsAzure.ActiveDirectory.User?$skiptoken=X'4453707402000100000017'";
+		Assert.assertEquals(Office365Connection.getSkipToken(nextLink), "X'4453707402000100000017'");
+		Assert.assertEquals(Office365Connection.getSkipToken("users?$top=10&$skiptoken=abc&api-version=1"), "abc");
+		Assert.assertNull(Office365Connection.getSkipToken(null));
+		Assert.assertNull(Office365Connection.getSkipToken("users?$top=10"));
+	}
 }
@@ -0,0 +1,138 @@
+package org.identityconnectors.office365;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.http.HttpException;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.util.EntityUtils;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests responses are decompressed as they are read and the bytes received
+ * and decoded are counted.
+ *
+ * @author Paul Heaney
+ */
+public class Office365ContentEncodingTests {
+
+    private static final String BODY = "{\"value\":[{\"objectType\":\"User\",\"displayName\":\"A user with a name repeated, repeated, repeated\"}]}";
+
+    @Test
+    public void testAcceptEncoding() {
+        Office365ContentEncoding encoding = new Office365ContentEncoding(Office365Metrics.forTenancy("accept.encoding.test"));
+
+        BasicHttpRequest request = new BasicHttpRequest("GET", "/users");
+        encoding.process(request, null);
+        Assert.assertEquals(request.getFirstHeader("Accept-Encoding").getValue(), Office365ContentEncoding.ACCEPT_ENCODING);
+
+        BasicHttpRequest identity = new BasicHttpRequest("GET", "/users");
+        identity.addHeader("Accept-Encoding", "identity");
+        encoding.process(identity, null);
+        Assert.assertEquals(identity.getHeaders("Accept-Encoding").length, 1);
+    }
+
+    @Test
+    public void testGzip() throws Exception {
+        assertDecoded("gzip", compress("gzip"), "gzip.encoding.test");
+    }
+
+    @Test
+    public void testDeflate() throws Exception {
+        assertDecoded("deflate", compress("deflate"), "deflate.encoding.test");
+    }
+
+    @Test
+    public void testIdentity() throws Exception {
+        Office365Metrics metrics = Office365Metrics.forTenancy("identity.encoding.test");
+        Office365ContentEncoding encoding = new Office365ContentEncoding(metrics);
+        byte[] body = BODY.getBytes("UTF-8");
+
+        HttpResponse response = response(body, null);
+        encoding.process(response, null);
+        Assert.assertEquals(EntityUtils.toString(response.getEntity(), "UTF-8"), BODY);
+        Assert.assertEquals(encoding.getReceivedBytes(), body.length);
+        Assert.assertEquals(encoding.getDecodedBytes(), body.length);
+        Assert.assertEquals(metrics.getBytesReceived(), body.length);
+    }
+
+    @Test(expectedExceptions = HttpException.class)
+    public void testUnknownEncoding() throws Exception {
+        Office365ContentEncoding encoding = new Office365ContentEncoding(Office365Metrics.forTenancy("unknown.encoding.test"));
+        encoding.process(response(BODY.getBytes("UTF-8"), "br"), null);
+    }
+
+    @Test
+    public void testCompressResponses() throws Exception {
+        Office365GraphStandIn compressing = new Office365GraphStandIn("compressed.onmicrosoft.com", 200);
+        Office365GraphStandIn plain = new Office365GraphStandIn("uncompressed.onmicrosoft.com", 200);
+        Office365Connection compressed = null;
+        Office365Connection identity = null;
+        try {
+            compressed = Office365Connection.createConnection(compressing.configuration());
+            compressed.getRequest("/users?api-version=" + Office365Connection.API_VERSION);
+            Assert.assertTrue(compressed.getReceivedBytes() > 0);
+            Assert.assertTrue(compressed.getReceivedBytes() < compressed.getDecodedBytes(),
+                    compressed.getReceivedBytes() + " received for " + compressed.getDecodedBytes() + " decoded");
+
+            Office365Configuration configuration = plain.configuration();
+            configuration.setCompressResponses(false);
+            identity = Office365Connection.createConnection(configuration);
+            identity.getRequest("/users?api-version=" + Office365Connection.API_VERSION);
+            Assert.assertTrue(identity.getReceivedBytes() > 0);
+            Assert.assertEquals(identity.getReceivedBytes(), identity.getDecodedBytes());
+        } finally {
+            if (compressed != null) {
+                compressed.dispose();
+            }
+            if (identity != null) {
+                identity.dispose();
+            }
+            compressing.stop();
+            plain.stop();
+        }
+    }
+
+    private static void assertDecoded(String coding, byte[] compressed, String tenancy) throws Exception {
+        Office365Metrics metrics = Office365Metrics.forTenancy(tenancy);
+        Office365ContentEncoding encoding = new Office365ContentEncoding(metrics);
+
+        HttpResponse response = response(compressed, coding);
+        encoding.process(response, null);
+        Assert.assertNull(response.getFirstHeader("Content-Encoding"));
+        Assert.assertNull(response.getFirstHeader("Content-Length"));
+        Assert.assertEquals(EntityUtils.toString(response.getEntity(), "UTF-8"), BODY);
+
+        Assert.assertEquals(encoding.getReceivedBytes(), compressed.length);
+        Assert.assertEquals(encoding.getDecodedBytes(), BODY.getBytes("UTF-8").length);
+        Assert.assertEquals(metrics.getBytesReceived(), compressed.length);
+    }
+
+    private static HttpResponse response(byte[] body, String coding) {
+        HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        ByteArrayEntity entity = new ByteArrayEntity(body);
+        if (coding != null) {
+            entity.setContentEncoding(coding);
+            response.addHeader("Content-Encoding", coding);
+        }
+        response.addHeader("Content-Length", String.valueOf(body.length));
+        response.setEntity(entity);
+        return response;
+    }
+
+    private static byte[] compress(String coding) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        OutputStream out = coding.equals("gzip") ? new GZIPOutputStream(bytes) : new DeflaterOutputStream(bytes);
+        out.write(BODY.getBytes("UTF-8"));
+        out.close();
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,75 @@
+package org.identityconnectors.office365;
+
+import java.util.List;
+
+import org.identityconnectors.framework.common.objects.AttributeBuilder;
+import org.identityconnectors.framework.common.objects.Name;
+import org.identityconnectors.framework.common.objects.Uid;
+import org.identityconnectors.framework.common.objects.filter.Filter;
+import org.identityconnectors.framework.common.objects.filter.FilterBuilder;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the {@link Office365FilterTranslator} produces the expected OData filters.
+ *
+ * @author Paul Heaney
+ */
+public class Office365FilterTranslatorTests {
+
+    private List<Office365Filter> translate(Filter filter) {
+        Office365Configuration config = new Office365Configuration();
+        config.setImmutableIDEncodeMechanism(Office365Configuration.ENCODE_MS_BASE64_STR);
+        return new Office365FilterTranslator(config).translate(filter);
+    }
+
+    private Office365Filter translateSingle(Filter filter) {
+        List<Office365Filter> filters = translate(filter);
+        Assert.assertEquals(filters.size(), 1);
+        return filters.get(0);
+    }
+
+    @Test
+    public void testUidIsLookup() {
+        Office365Filter f = translateSingle(FilterBuilder.equalTo(new Uid("4e971521-101a-4311-94f4-0917d7218b4e")));
+        Assert.assertEquals(f.getObjectId(), "4e971521-101a-4311-94f4-0917d7218b4e");
+        Assert.assertFalse(f.isFilterable());
+    }
+
+    @Test
+    public void testNameEquals() {
+        Office365Filter f = translateSingle(FilterBuilder.equalTo(new Name("o'brien@contoso.com")));
+        Assert.assertNull(f.getObjectId());
+        Assert.assertEquals(f.toODataFilter(), "userPrincipalName eq 'o''brien@contoso.com'");
+    }
+
+    @Test
+    public void testStartsWithAndOr() {
+        Filter filter = FilterBuilder.and(
+                FilterBuilder.startsWith(AttributeBuilder.build("displayName", "Jo")),
+                FilterBuilder.or(
+                        FilterBuilder.equalTo(AttributeBuilder.build("department", "Sales")),
+                        FilterBuilder.equalTo(AttributeBuilder.build("proxyAddresses", "smtp:jo@contoso.com"))));
+        Assert.assertEquals(translateSingle(filter).toODataFilter(),
+                "(startswith(displayName,'Jo') and (department eq 'Sales' or proxyAddresses/any(c:c eq 'smtp:jo@contoso.com')))");
+    }
+
+    @Test
+    public void testBooleanAndImmutableId() {
+        Assert.assertEquals(translateSingle(FilterBuilder.equalTo(AttributeBuilder.build("accountEnabled", Boolean.FALSE))).toODataFilter(),
+                "accountEnabled eq false");
+        Assert.assertEquals(translateSingle(FilterBuilder.equalTo(AttributeBuilder.build(Office365Connector.IMMUTABLEID_ATTR, "14c6c0c6-66fb-4c3c-a28e-a22a3e778dc4"))).toODataFilter(),
+                "immutableId eq 'xsDGFPtmPEyijqIqPneNxA=='");
+    }
+
+    @Test
+    public void testUnsupported() {
+        Assert.assertTrue(translate(FilterBuilder.not(FilterBuilder.equalTo(AttributeBuilder.build("mail", "a@contoso.com")))).isEmpty());
+        Assert.assertTrue(translate(FilterBuilder.equalTo(AttributeBuilder.build("telephoneNumber", "123"))).isEmpty());
+        // An unsupported side of an and is left to the framework
+        Office365Filter f = translateSingle(FilterBuilder.and(
+                FilterBuilder.equalTo(AttributeBuilder.build("telephoneNumber", "123")),
+                FilterBuilder.equalTo(AttributeBuilder.build("mail", "a@contoso.com"))));
+        Assert.assertEquals(f.toODataFilter(), "mail eq 'a@contoso.com'");
+    }
+}
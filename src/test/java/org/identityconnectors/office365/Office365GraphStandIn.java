@@ -0,0 +1,1051 @@
+package org.identityconnectors.office365;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+import org.identityconnectors.common.security.GuardedString;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A local stand-in for the Graph API, for load and scale testing the
+ * connector without a real tenancy.
+ *
+ * It answers the endpoints the connector uses: the ACS token endpoint,
+ * tenantDetails, subscribedSkus, users (paged and filtered lists, the
+ * differential query, get, create, update and delete), assignLicense and
+ * $batch. Users are projected to the $select of the request. The tenancy starts
+ * with a number of synthetic users that are generated from their index when
+ * asked for, so a tenancy of millions of users costs no memory. Only users
+ * that are created, updated or deleted are held.
+ *
+ * Latency, server errors and 429 throttling can be injected. Half of the
+ * injected errors happen after the request has been applied, as when a
+ * response is lost, so the connector's handling of repeated creates is
+ * exercised too.
+ *
+ * @author Paul Heaney
+ */
+public class Office365GraphStandIn {
+
+    static final String SIGNING_KEY = "c2VjcmV0LXNpZ25pbmcta2V5LWZvci10aGUtc3RhbmQtaW4h";
+    static final String PRINCIPAL_ID = "aa8de79f-4c6a-4f81-bcc7-61262226256a";
+    static final String SKU_ID = "6fd2c87f-b296-42f0-b197-1e91e994b900";
+    static final String SKU_PART_NUMBER = "ENTERPRISEPACK";
+
+    static final String CONFLICT = "Another object with the same value for property userPrincipalName already exists.";
+
+    // Synthetic users have ids ending in their index
+    private static final String SYNTHETIC_PREFIX = "00000000-0000-4000-8000-";
+    private static final int MAX_PAGE_SIZE = 999;
+    private static final int DELTA_PAGE_SIZE = 200;
+    private static final String JSON = "application/json;odata=minimalmetadata;streaming=true;charset=utf-8";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final Pattern requestLinePattern = Pattern.compile("^(GET|POST|PATCH|DELETE|PUT) (\\S+) HTTP/1\\.1\\n(.*?)\\n\\n(.*?)\\n?--changeset",
+            Pattern.MULTILINE | Pattern.DOTALL);
+    private static final Pattern eqPattern = Pattern.compile("(\\w+) eq '((?:[^']|'')*)'");
+    private static final Pattern startsWithPattern = Pattern.compile("startswith\\((\\w+),'((?:[^']|'')*)'\\)");
+    private static final Pattern anyEqPattern = Pattern.compile("(\\w+)/any\\(c:c eq '((?:[^']|'')*)'\\)");
+    private static final Pattern anyStartsWithPattern = Pattern.compile("(\\w+)/any\\(c:startswith\\(c,'((?:[^']|'')*)'\\)\\)");
+
+    private final String tenancy;
+    private final int syntheticUsers;
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    // Users created or changed, by object id, and the ids of deleted users
+    private final ConcurrentMap<String, JSONObject> changed = new ConcurrentHashMap<String, JSONObject>();
+    private final ConcurrentMap<String, String> createdByName = new ConcurrentHashMap<String, String>();
+    private final Set<String> deleted = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final List<String> created = new ArrayList<String>(); // in creation order, for paging
+    private final List<String> changes = new ArrayList<String>(); // ids in order of change, for differential queries
+
+    private volatile long latency = 0; // ms
+    private volatile long latencyJitter = 0; // ms
+    private volatile double errorRate = 0;
+    private volatile double throttleRate = 0;
+    private volatile int retryAfter = 1; // seconds
+    private volatile int requestsPerSecond = 0;
+    private volatile String failingEndpoint = null;
+    private volatile long failingAfter = 0;
+    private final Set<String> issued = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final Set<String> revoked = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private long windowStart = 0;
+    private int windowRequests = 0;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong throttled = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final ConcurrentMap<String, AtomicLong> endpoints = new ConcurrentHashMap<String, AtomicLong>();
+
+    /**
+     * Start a stand-in on a free local port.
+     *
+     * @param tenancy the tenancy name, also the domain of its users
+     * @param syntheticUsers the number of users the tenancy starts with
+     */
+    public Office365GraphStandIn(String tenancy, int syntheticUsers) throws IOException {
+        this.tenancy = tenancy.toLowerCase();
+        this.syntheticUsers = syntheticUsers;
+
+        final AtomicInteger count = new AtomicInteger();
+        this.executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "Office365-GraphStandIn-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        this.server.setExecutor(this.executor);
+        this.server.createContext("/tokens", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                readBody(exchange);
+                count("POST /tokens");
+                String token = "stand-in-" + UUID.randomUUID();
+                issued.add(token);
+                send(exchange, new Reply(200, "{\"token_type\":\"Bearer\",\"access_token\":\"" + token
+                        + "\",\"expires_in\":86400}"));
+            }
+        });
+        this.server.createContext("/" + this.tenancy + "/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                serve(exchange);
+            }
+        });
+        this.server.start();
+    }
+
+    /**
+     * @return a configuration for a connector to use this stand-in, over plain HTTP
+     */
+    public Office365Configuration configuration() {
+        String endPoint = "127.0.0.1:" + this.server.getAddress().getPort();
+        Office365Configuration configuration = new Office365Configuration() {
+            @Override
+            public String getProtocol() {
+                return "http://";
+            }
+        };
+        configuration.setApiEndPoint(endPoint);
+        configuration.setTenancy(this.tenancy);
+        configuration.setAuthURL("http://" + endPoint + "/tokens");
+        configuration.setPrincipalID(PRINCIPAL_ID);
+        configuration.setSymetricKey(new GuardedString(SIGNING_KEY.toCharArray()));
+        return configuration;
+    }
+
+    public void stop() {
+        this.server.stop(0);
+        this.executor.shutdownNow();
+    }
+
+    /**
+     * Delay every Graph response.
+     *
+     * @param latency the minimum delay in milliseconds
+     * @param jitter the most added at random to the minimum, in milliseconds
+     */
+    public void setLatency(long latency, long jitter) {
+        this.latency = latency;
+        this.latencyJitter = jitter;
+    }
+
+    /**
+     * @param errorRate the fraction of Graph requests that fail with a 500
+     */
+    public void setErrorRate(double errorRate) {
+        this.errorRate = errorRate;
+    }
+
+    /**
+     * @param throttleRate the fraction of Graph requests answered with a 429
+     * @param retryAfter the Retry-After of the 429 in seconds
+     */
+    public void setThrottleRate(double throttleRate, int retryAfter) {
+        this.throttleRate = throttleRate;
+        this.retryAfter = retryAfter;
+    }
+
+    /**
+     * @param requestsPerSecond the Graph requests accepted each second before
+     * answering with a 429 until the next second, 0 for no limit
+     */
+    public void setRequestsPerSecond(int requestsPerSecond) {
+        this.requestsPerSecond = requestsPerSecond;
+    }
+
+    /**
+     * Answer requests to an endpoint with a 500, without applying them, once
+     * a number of them have been received.
+     *
+     * @param endpoint the endpoint as named by {@link Office365Metrics}, null to stop failing
+     * @param after the number of requests to the endpoint answered as usual
+     */
+    public void setFailingEndpoint(String endpoint, long after) {
+        this.failingAfter = after;
+        this.failingEndpoint = endpoint;
+    }
+
+    /**
+     * Answer Graph requests bearing any of the tokens issued so far with a 401.
+     */
+    public void revokeTokens() {
+        this.revoked.addAll(this.issued);
+    }
+
+    /**
+     * @return the number of requests received, including the token endpoint
+     */
+    public long getRequestCount() {
+        return this.requests.get();
+    }
+
+    /**
+     * @param endpoint the endpoint as named by {@link Office365Metrics}, such as "GET /users"
+     */
+    public long getRequestCount(String endpoint) {
+        AtomicLong counter = this.endpoints.get(endpoint);
+        return counter != null ? counter.get() : 0;
+    }
+
+    public long getThrottledCount() {
+        return this.throttled.get();
+    }
+
+    public long getFailedCount() {
+        return this.failed.get();
+    }
+
+    /**
+     * @return the number of users the tenancy has now
+     */
+    public long getUserCount() {
+        synchronized (this.created) {
+            return (long) this.syntheticUsers + this.created.size() - this.deleted.size();
+        }
+    }
+
+    /**
+     * @return the object id of the synthetic user with this index
+     */
+    public static String syntheticId(long index) {
+        return SYNTHETIC_PREFIX + String.format("%012x", index);
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        String method = exchange.getRequestMethod();
+        URI uri = exchange.getRequestURI();
+        String body = readBody(exchange);
+        String endpoint = Office365Metrics.endpointOf(method, uri.getPath());
+        count(endpoint);
+
+        String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+        if (authorization != null && this.revoked.contains(authorization.substring(authorization.indexOf(' ') + 1))) {
+            send(exchange, error(401, "Authentication_ExpiredToken", "Your access token has expired. Please renew it before submitting the request."));
+            return;
+        }
+
+        long delay = this.latency + (this.latencyJitter > 0 ? ThreadLocalRandom.current().nextLong(this.latencyJitter + 1) : 0);
+        if (delay > 0) {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+
+        int wait = throttle();
+        if (wait >= 0) {
+            this.throttled.incrementAndGet();
+            exchange.getResponseHeaders().set("Retry-After", String.valueOf(wait));
+            send(exchange, error(429, "Request_ThrottledTemporarily", "Your request is throttled temporarily. Please try after " + wait + " second(s)."));
+            return;
+        }
+
+        if (endpoint.equals(this.failingEndpoint) && getRequestCount(endpoint) > this.failingAfter) {
+            this.failed.incrementAndGet();
+            send(exchange, error(500, "Service_InternalServerError", "Encountered an internal error. Please try again."));
+            return;
+        }
+
+        boolean fail = this.errorRate > 0 && ThreadLocalRandom.current().nextDouble() < this.errorRate;
+        if (fail && ThreadLocalRandom.current().nextBoolean()) {
+            this.failed.incrementAndGet();
+            send(exchange, error(500, "Service_InternalServerError", "Encountered an internal error. Please try again."));
+            return;
+        }
+
+        Reply reply;
+        try {
+            Map<String, String> headers = new HashMap<String, String>();
+            for (Map.Entry<String, List<String>> header : exchange.getRequestHeaders().entrySet()) {
+                headers.put(header.getKey().toLowerCase(), header.getValue().get(0));
+            }
+            reply = dispatch(method, uri, body, headers);
+        } catch (JSONException je) {
+            reply = error(400, "Request_BadRequest", "Invalid request body: " + je.getMessage());
+        }
+
+        if (fail) {
+            // Applied, but the caller never hears
+            this.failed.incrementAndGet();
+            reply = error(500, "Service_InternalServerError", "Encountered an internal error. Please try again.");
+        }
+
+        String accept = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        send(exchange, reply, accept != null && accept.contains("gzip"));
+    }
+
+    /**
+     * @return the Retry-After in seconds if this request is throttled, otherwise -1
+     */
+    private int throttle() {
+        int limit = this.requestsPerSecond;
+        if (limit > 0) {
+            synchronized (this) {
+                long now = System.currentTimeMillis();
+                if (now - this.windowStart >= 1000) {
+                    this.windowStart = now;
+                    this.windowRequests = 0;
+                }
+                if (++this.windowRequests > limit) {
+                    return 1;
+                }
+            }
+        }
+
+        if (this.throttleRate > 0 && ThreadLocalRandom.current().nextDouble() < this.throttleRate) {
+            return Math.max(this.retryAfter, 0);
+        }
+        return -1;
+    }
+
+    private Reply dispatch(String method, URI uri, String body, Map<String, String> headers) throws JSONException {
+        String path = uri.getPath().substring(this.tenancy.length() + 1);
+        if (path.endsWith("/") && path.length() > 1) {
+            path = path.substring(0, path.length() - 1);
+        }
+        Map<String, String> query = parseQuery(uri.getRawQuery());
+        String[] segments = path.split("/");
+
+        if (segments.length == 2 && method.equals("GET") && segments[1].equals("tenantDetails")) {
+            return new Reply(200, tenantDetails());
+        } else if (segments.length == 2 && method.equals("GET") && segments[1].equals("subscribedSkus")) {
+            return new Reply(200, subscribedSkus());
+        } else if (segments.length == 2 && method.equals("POST") && segments[1].equals("$batch")) {
+            return batch(body);
+        } else if (segments.length >= 2 && segments[1].equals("users")) {
+            if (segments.length == 2 && method.equals("GET") && query.containsKey("deltaLink")) {
+                return deltaUsers(query.get("deltaLink"), "true".equals(headers.get(Office365UserOps.DELTA_TOKEN_ONLY_HEADER)));
+            } else if (segments.length == 2 && method.equals("GET")) {
+                return listUsers(query);
+            } else if (segments.length == 2 && method.equals("POST")) {
+                return createUser(new JSONObject(body));
+            }
+
+            String id = findUser(urlDecode(segments[2]));
+            if (id == null) {
+                return error(404, "Request_ResourceNotFound", "Resource '" + segments[2] + "' does not exist or one of its queried reference-property objects are not present.");
+            } else if (segments.length == 3 && method.equals("GET")) {
+                String user = select(getUser(id), query.get("$select")).toString();
+                String etag = "W/\"" + Integer.toHexString(user.hashCode()) + "\"";
+                Reply reply = etag.equals(headers.get("if-none-match")) ? new Reply(304, null) : new Reply(200, user);
+                reply.etag = etag;
+                return reply;
+            } else if (segments.length == 3 && method.equals("PATCH")) {
+                return updateUser(id, new JSONObject(body));
+            } else if (segments.length == 3 && method.equals("DELETE")) {
+                deleteUser(id);
+                return new Reply(204, null);
+            } else if (segments.length == 4 && method.equals("POST") && segments[3].equals("assignLicense")) {
+                return assignLicense(id, new JSONObject(body));
+            }
+        }
+
+        return error(400, "Request_UnsupportedQuery", "Unsupported " + method + " to " + path);
+    }
+
+    private Reply listUsers(Map<String, String> query) throws JSONException {
+        int top = 100;
+        if (query.containsKey("$top")) {
+            top = Math.min(Integer.parseInt(query.get("$top")), MAX_PAGE_SIZE);
+        }
+        long position = 0;
+        String skipToken = query.get("$skiptoken");
+        if (skipToken != null) {
+            position = Long.parseLong(skipToken.substring(1), 16);
+        }
+
+        Match match = null;
+        String filter = query.get("$filter");
+        if (filter != null) {
+            match = parseFilter(filter);
+            if (match == null) {
+                return error(400, "Request_UnsupportedQuery", "Unsupported or invalid query filter clause specified for property '" + filter + "'.");
+            }
+        }
+
+        StringBuilder sb = new StringBuilder("{\"odata.metadata\":\"").append(this.tenancy).append("/$metadata#directoryObjects/Microsoft.WindowsAzure.ActiveDirectory.User\",\"value\":[");
+        int found = 0;
+        long end = this.syntheticUsers + createdCount();
+        if (match != null && match.property.equals("userPrincipalName") && !match.prefix && !match.any) {
+            // Looked up directly rather than scanning millions
+            String id = findByName(match.value);
+            if (id != null) {
+                sb.append(select(getUser(id), query.get("$select")));
+            }
+            position = end;
+        } else {
+            while (found < top && position < end) {
+                JSONObject user = getUser(userAt(position++));
+                if (user != null && (match == null || match.matches(user))) {
+                    if (found++ > 0) {
+                        sb.append(',');
+                    }
+                    sb.append(select(user, query.get("$select")));
+                }
+            }
+        }
+        sb.append(']');
+        if (position < end) {
+            sb.append(",\"odata.nextLink\":\"directoryObjects/$/Microsoft.WindowsAzure.ActiveDirectory.User?$skiptoken=X").append(Long.toHexString(position)).append('"');
+        }
+        sb.append('}');
+
+        return new Reply(200, sb.toString());
+    }
+
+    private synchronized Reply createUser(JSONObject user) throws JSONException {
+        String name = user.optString("userPrincipalName", null);
+        if (name == null || user.optString("displayName", null) == null || user.optString("mailNickname", null) == null) {
+            return error(400, "Request_BadRequest", "A value is required for property 'userPrincipalName', 'displayName' and 'mailNickname' of resource 'User'.");
+        }
+        if (findByName(name) != null) {
+            return error(400, "Request_BadRequest", CONFLICT);
+        }
+
+        String id = UUID.randomUUID().toString();
+        user.remove("passwordProfile");
+        user.put("odata.type", "Microsoft.WindowsAzure.ActiveDirectory.User");
+        user.put("objectType", "User");
+        user.put("objectId", id);
+        user.put("assignedLicenses", new JSONArray());
+
+        this.changed.put(id, user);
+        this.createdByName.put(name.toLowerCase(), id);
+        synchronized (this.created) {
+            this.created.add(id);
+        }
+        recordChange(id);
+
+        Reply reply = new Reply(201, user.toString());
+        reply.location = "http://" + this.server.getAddress().getHostString() + ":" + this.server.getAddress().getPort() + "/" + this.tenancy
+                + "/directoryObjects/" + id + "/Microsoft.WindowsAzure.ActiveDirectory.User";
+        return reply;
+    }
+
+    private synchronized Reply updateUser(String id, JSONObject changes) throws JSONException {
+        JSONObject user = getUser(id);
+        String oldName = user.getString("userPrincipalName");
+        String newName = changes.optString("userPrincipalName", oldName);
+        if (!newName.equalsIgnoreCase(oldName)) {
+            if (findByName(newName) != null) {
+                return error(400, "Request_BadRequest", CONFLICT);
+            }
+            this.createdByName.remove(oldName.toLowerCase());
+            this.createdByName.put(newName.toLowerCase(), id);
+        }
+
+        Iterator<?> keys = changes.keys();
+        while (keys.hasNext()) {
+            String key = (String) keys.next();
+            if (!key.equals("passwordProfile")) {
+                user.put(key, changes.get(key));
+            }
+        }
+        this.changed.put(id, user);
+        recordChange(id);
+        return new Reply(204, null);
+    }
+
+    private synchronized void deleteUser(String id) {
+        JSONObject user = getUser(id);
+        this.createdByName.remove(user.optString("userPrincipalName").toLowerCase());
+        this.deleted.add(id);
+        this.changed.remove(id);
+        recordChange(id);
+    }
+
+    private synchronized Reply assignLicense(String id, JSONObject request) throws JSONException {
+        JSONObject user = getUser(id);
+        JSONArray assigned = user.getJSONArray("assignedLicenses");
+
+        JSONArray remove = request.optJSONArray("removeLicenses");
+        JSONArray add = request.optJSONArray("addLicenses");
+        for (int i = 0; remove != null && i < remove.length(); i++) {
+            for (int j = 0; add != null && j < add.length(); j++) {
+                if (add.getJSONObject(j).optString("skuId").equalsIgnoreCase(remove.getString(i))) {
+                    return error(400, "Request_BadRequest", "License " + remove.getString(i) + " is present in both addLicenses and removeLicenses.");
+                }
+            }
+        }
+
+        for (int i = 0; remove != null && i < remove.length(); i++) {
+            for (int j = assigned.length() - 1; j >= 0; j--) {
+                if (assigned.getJSONObject(j).getString("skuId").equalsIgnoreCase(remove.getString(i))) {
+                    assigned.remove(j);
+                }
+            }
+        }
+
+        for (int i = 0; add != null && i < add.length(); i++) {
+            JSONObject license = add.getJSONObject(i);
+            if (!SKU_ID.equalsIgnoreCase(license.optString("skuId"))) {
+                return error(400, "Request_BadRequest", "License " + license.optString("skuId") + " does not correspond to a valid company License.");
+            }
+            if (user.optString("usageLocation", "").length() == 0) {
+                return error(400, "Request_BadRequest", "License assignment cannot be done for user with invalid usage location.");
+            }
+            // Adding a license the user has replaces its disabled plans
+            for (int j = assigned.length() - 1; j >= 0; j--) {
+                if (assigned.getJSONObject(j).getString("skuId").equalsIgnoreCase(license.getString("skuId"))) {
+                    assigned.remove(j);
+                }
+            }
+            assigned.put(license);
+        }
+
+        this.changed.put(id, user);
+        recordChange(id);
+        return new Reply(200, user.toString());
+    }
+
+    /**
+     * Answer a differential query. A token of "F" and a position reads every
+     * user, noting the changes made since it began, and then continues from
+     * those with a token of "C" and a position in the change log.
+     */
+    private Reply deltaUsers(String token, boolean onlyToken) throws JSONException {
+        long position;
+        int since;
+        boolean full;
+        try {
+            if (token.length() == 0) {
+                full = true;
+                position = 0;
+                since = changeCount();
+            } else if (token.startsWith("F")) {
+                full = true;
+                int dot = token.indexOf('.');
+                position = Long.parseLong(token.substring(1, dot));
+                since = Integer.parseInt(token.substring(dot + 1));
+            } else if (token.startsWith("C")) {
+                full = false;
+                position = Integer.parseInt(token.substring(1));
+                since = (int) position;
+            } else {
+                throw new NumberFormatException(token);
+            }
+        } catch (RuntimeException re) {
+            return error(400, "Directory_ExpiredPageToken", "The token in the deltaLink is invalid or has expired.");
+        }
+
+        StringBuilder sb = new StringBuilder("{\"odata.metadata\":\"").append(this.tenancy).append("/$metadata#directoryObjects\",\"value\":[");
+        String next;
+        if (onlyToken) {
+            next = "aad.deltaLink\":\"" + deltaLink("C" + changeCount());
+        } else if (full) {
+            int found = 0;
+            long end = this.syntheticUsers + createdCount();
+            while (found < DELTA_PAGE_SIZE && position < end) {
+                JSONObject user = getUser(userAt(position++));
+                if (user != null) {
+                    if (found++ > 0) {
+                        sb.append(',');
+                    }
+                    sb.append(user);
+                }
+            }
+            next = position < end ? "aad.nextLink\":\"" + deltaLink("F" + position + "." + since) : "aad.deltaLink\":\"" + deltaLink("C" + since);
+        } else {
+            List<String> ids;
+            synchronized (this.changes) {
+                ids = new ArrayList<String>(this.changes.subList(since, Math.min(since + DELTA_PAGE_SIZE, this.changes.size())));
+            }
+            for (int i = 0; i < ids.size(); i++) {
+                JSONObject user = getUser(ids.get(i));
+                if (user == null) {
+                    user = new JSONObject().put("odata.type", "Microsoft.WindowsAzure.ActiveDirectory.User").put("objectType", "User")
+                            .put("objectId", ids.get(i)).put("aad.isDeleted", true);
+                }
+                if (i > 0) {
+                    sb.append(',');
+                }
+                sb.append(user);
+            }
+            int end = since + ids.size();
+            next = (end < changeCount() ? "aad.nextLink" : "aad.deltaLink") + "\":\"" + deltaLink("C" + end);
+        }
+        sb.append("],\"").append(next).append("\"}");
+
+        return new Reply(200, sb.toString());
+    }
+
+    private String deltaLink(String token) {
+        return "http://" + this.server.getAddress().getHostString() + ":" + this.server.getAddress().getPort() + "/" + this.tenancy
+                + "/users?deltaLink=" + token;
+    }
+
+    private void recordChange(String id) {
+        synchronized (this.changes) {
+            this.changes.add(id);
+        }
+    }
+
+    private int changeCount() {
+        synchronized (this.changes) {
+            return this.changes.size();
+        }
+    }
+
+    /**
+     * Answer each change set of a batch as though it had been sent on its own.
+     */
+    private Reply batch(String body) throws JSONException {
+        List<String> parts = new ArrayList<String>();
+        Matcher m = requestLinePattern.matcher(body.replace("\r\n", "\n"));
+        while (m.find()) {
+            Map<String, String> headers = new HashMap<String, String>();
+            for (String line : m.group(3).split("\n")) {
+                int colon = line.indexOf(':');
+                if (colon > 0) {
+                    headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+                }
+            }
+
+            Reply reply;
+            try {
+                reply = dispatch(m.group(1), URI.create(m.group(2)), m.group(4).trim(), headers);
+            } catch (JSONException je) {
+                reply = error(400, "Request_BadRequest", "Invalid request body: " + je.getMessage());
+            }
+
+            String changeset = "changesetresponse_" + UUID.randomUUID();
+            StringBuilder sb = new StringBuilder();
+            sb.append("Content-Type: multipart/mixed; boundary=").append(changeset).append("\r\n\r\n");
+            sb.append("--").append(changeset).append("\r\n");
+            sb.append("Content-Type: application/http\r\nContent-Transfer-Encoding: binary\r\n\r\n");
+            sb.append("HTTP/1.1 ").append(reply.status).append(" ").append(reply.status < 300 ? "OK" : "Error").append("\r\n");
+            if (reply.location != null) {
+                sb.append("Location: ").append(reply.location).append("\r\n");
+            }
+            sb.append("Content-Type: ").append(JSON).append("\r\n\r\n");
+            if (reply.body != null) {
+                sb.append(reply.body).append("\r\n");
+            }
+            sb.append("--").append(changeset).append("--\r\n");
+            parts.add(sb.toString());
+        }
+
+        if (parts.isEmpty()) {
+            return error(400, "Request_BadRequest", "The batch request has no change sets.");
+        }
+
+        String boundary = "batchresponse_" + UUID.randomUUID();
+        StringBuilder sb = new StringBuilder();
+        for (String part : parts) {
+            sb.append("--").append(boundary).append("\r\n").append(part);
+        }
+        sb.append("--").append(boundary).append("--\r\n");
+
+        Reply reply = new Reply(202, sb.toString());
+        reply.contentType = "multipart/mixed; boundary=" + boundary;
+        return reply;
+    }
+
+    /**
+     * @return the user as it is now, or null if there is none with this id
+     */
+    private JSONObject getUser(String id) {
+        if (id == null || this.deleted.contains(id)) {
+            return null;
+        }
+
+        JSONObject user = this.changed.get(id);
+        if (user != null) {
+            try {
+                // A copy, so changes are only seen once complete
+                return new JSONObject(user.toString());
+            } catch (JSONException je) {
+                throw new IllegalStateException(je);
+            }
+        }
+
+        long index = syntheticIndex(id);
+        return index >= 0 ? synthesize(index) : null;
+    }
+
+    /**
+     * @param select the comma separated properties to keep, or null for all of them
+     * @return the user with only the selected properties and its type
+     */
+    private static JSONObject select(JSONObject user, String select) {
+        if (select == null) {
+            return user;
+        }
+
+        try {
+            JSONObject selected = new JSONObject();
+            selected.put("odata.type", user.get("odata.type"));
+            for (String property : select.split(",")) {
+                if (user.has(property)) {
+                    selected.put(property, user.get(property));
+                }
+            }
+            return selected;
+        } catch (JSONException je) {
+            throw new IllegalStateException(je);
+        }
+    }
+
+    /**
+     * @param key an object id or user principal name
+     * @return the object id of the user, or null if there is none
+     */
+    private String findUser(String key) {
+        if (key.contains("@")) {
+            return findByName(key);
+        }
+        return getUser(key) != null ? key : null;
+    }
+
+    private String findByName(String name) {
+        String id = this.createdByName.get(name.toLowerCase());
+        if (id != null) {
+            return id;
+        }
+
+        String suffix = "@" + this.tenancy;
+        String lower = name.toLowerCase();
+        if (lower.startsWith("user") && lower.endsWith(suffix)) {
+            try {
+                long index = Long.parseLong(lower.substring(4, lower.length() - suffix.length()));
+                JSONObject user = index >= 0 && index < this.syntheticUsers ? getUser(syntheticId(index)) : null;
+                if (user != null && user.optString("userPrincipalName").equalsIgnoreCase(name)) {
+                    return syntheticId(index);
+                }
+            } catch (NumberFormatException nfe) {
+                // not a synthetic name
+            }
+        }
+        return null;
+    }
+
+    private long syntheticIndex(String id) {
+        if (!id.startsWith(SYNTHETIC_PREFIX)) {
+            return -1;
+        }
+        try {
+            long index = Long.parseLong(id.substring(SYNTHETIC_PREFIX.length()), 16);
+            return index < this.syntheticUsers ? index : -1;
+        } catch (NumberFormatException nfe) {
+            return -1;
+        }
+    }
+
+    private String userAt(long position) {
+        if (position < this.syntheticUsers) {
+            return syntheticId(position);
+        }
+        synchronized (this.created) {
+            return this.created.get((int) (position - this.syntheticUsers));
+        }
+    }
+
+    private int createdCount() {
+        synchronized (this.created) {
+            return this.created.size();
+        }
+    }
+
+    private JSONObject synthesize(long index) {
+        try {
+            String name = "user" + index + "@" + this.tenancy;
+            JSONObject user = new JSONObject();
+            user.put("odata.type", "Microsoft.WindowsAzure.ActiveDirectory.User");
+            user.put("objectType", "User");
+            user.put("objectId", syntheticId(index));
+            user.put("accountEnabled", index % 50 != 0);
+            user.put("userPrincipalName", name);
+            user.put("displayName", "User " + index);
+            user.put("givenName", "User");
+            user.put("surname", String.valueOf(index));
+            user.put("mailNickname", "user" + index);
+            user.put("mail", name);
+            user.put("department", "Department " + (index % 20));
+            user.put("city", "Salford");
+            user.put("country", "United Kingdom");
+            user.put("usageLocation", "GB");
+            user.put("otherMails", new JSONArray());
+            user.put("proxyAddresses", new JSONArray().put("SMTP:" + name));
+            JSONArray licenses = new JSONArray();
+            if (index % 2 == 0) {
+                licenses.put(new JSONObject().put("skuId", SKU_ID).put("disabledPlans", new JSONArray()));
+            }
+            user.put("assignedLicenses", licenses);
+            return user;
+        } catch (JSONException je) {
+            throw new IllegalStateException(je);
+        }
+    }
+
+    private String tenantDetails() {
+        return "{\"value\":[{\"objectType\":\"Company\",\"objectId\":\"" + SYNTHETIC_PREFIX + "ffffffffffff\",\"displayName\":\"Stand-in\","
+                + "\"assignedPlans\":[{\"service\":\"exchange\",\"capabilityStatus\":\"Enabled\",\"servicePlanId\":\"efb87545-963c-4e0d-99df-69c6916d9eb0\"}],"
+                + "\"verifiedDomains\":[{\"name\":\"" + this.tenancy + "\",\"type\":\"Managed\",\"capabilities\":\"Email,OfficeCommunicationsOnline\","
+                + "\"default\":true,\"id\":\"000520000FC2E3A0\",\"initial\":true}]}]}";
+    }
+
+    private String subscribedSkus() {
+        return "{\"value\":[{\"objectId\":\"" + SYNTHETIC_PREFIX + "fffffffffffe_" + SKU_ID + "\",\"skuId\":\"" + SKU_ID + "\",\"skuPartNumber\":\""
+                + SKU_PART_NUMBER + "\",\"consumedUnits\":" + (this.syntheticUsers / 2) + ",\"prepaidUnits\":{\"enabled\":" + this.syntheticUsers
+                + ",\"suspended\":0,\"warning\":0},\"servicePlans\":["
+                + "{\"servicePlanId\":\"efb87545-963c-4e0d-99df-69c6916d9eb0\",\"servicePlanName\":\"EXCHANGE_S_ENTERPRISE\"},"
+                + "{\"servicePlanId\":\"5dbe027f-2339-4123-9542-606e4d348a72\",\"servicePlanName\":\"SHAREPOINTENTERPRISE\"},"
+                + "{\"servicePlanId\":\"0feaeb32-d00e-4d66-bd5a-43b5b83db82c\",\"servicePlanName\":\"MCOSTANDARD\"}]}]}";
+    }
+
+    /**
+     * Parse the filters the connector sends, a single comparison or two
+     * joined by and / or in brackets.
+     *
+     * @return the filter, or null if it is not supported
+     */
+    static Match parseFilter(String filter) {
+        filter = filter.trim();
+        if (filter.startsWith("(") && filter.endsWith(")")) {
+            int depth = 0;
+            boolean quoted = false;
+            for (int i = 1; i < filter.length() - 1; i++) {
+                char c = filter.charAt(i);
+                if (c == '\'') {
+                    quoted = !quoted;
+                } else if (!quoted && c == '(') {
+                    depth++;
+                } else if (!quoted && c == ')') {
+                    depth--;
+                } else if (!quoted && depth == 0 && c == ' ') {
+                    boolean and = filter.startsWith(" and ", i);
+                    if (and || filter.startsWith(" or ", i)) {
+                        Match left = parseFilter(filter.substring(1, i));
+                        Match right = parseFilter(filter.substring(i + (and ? 5 : 4), filter.length() - 1));
+                        if (left == null || right == null) {
+                            return null;
+                        }
+                        Match match = new Match(null, null, false, false);
+                        match.left = left;
+                        match.right = right;
+                        match.and = and;
+                        return match;
+                    }
+                }
+            }
+        }
+
+        Matcher m;
+        if ((m = eqPattern.matcher(filter)).matches()) {
+            return new Match(m.group(1), m.group(2), false, false);
+        } else if ((m = startsWithPattern.matcher(filter)).matches()) {
+            return new Match(m.group(1), m.group(2), true, false);
+        } else if ((m = anyEqPattern.matcher(filter)).matches()) {
+            return new Match(m.group(1), m.group(2), false, true);
+        } else if ((m = anyStartsWithPattern.matcher(filter)).matches()) {
+            return new Match(m.group(1), m.group(2), true, true);
+        }
+        return null;
+    }
+
+    private static Map<String, String> parseQuery(String rawQuery) {
+        Map<String, String> query = new HashMap<String, String>();
+        if (rawQuery != null) {
+            for (String pair : rawQuery.split("&")) {
+                int eq = pair.indexOf('=');
+                if (eq > 0) {
+                    query.put(urlDecode(pair.substring(0, eq)), urlDecode(pair.substring(eq + 1)));
+                }
+            }
+        }
+        return query;
+    }
+
+    private static String urlDecode(String s) {
+        try {
+            return URLDecoder.decode(s, "UTF-8");
+        } catch (UnsupportedEncodingException uee) {
+            throw new IllegalStateException(uee);
+        }
+    }
+
+    private void count(String endpoint) {
+        this.requests.incrementAndGet();
+        AtomicLong counter = this.endpoints.get(endpoint);
+        if (counter == null) {
+            this.endpoints.putIfAbsent(endpoint, new AtomicLong());
+            counter = this.endpoints.get(endpoint);
+        }
+        counter.incrementAndGet();
+    }
+
+    private static Reply error(int status, String code, String message) {
+        try {
+            JSONObject error = new JSONObject().put("code", code).put("message", new JSONObject().put("lang", "en").put("value", message));
+            return new Reply(status, new JSONObject().put("odata.error", error).toString());
+        } catch (JSONException je) {
+            throw new IllegalStateException(je);
+        }
+    }
+
+    private static String readBody(HttpExchange exchange) throws IOException {
+        InputStream in = exchange.getRequestBody();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            body.write(buffer, 0, n);
+        }
+        return new String(body.toByteArray(), UTF8);
+    }
+
+    private static void send(HttpExchange exchange, Reply reply) throws IOException {
+        send(exchange, reply, false);
+    }
+
+    private static void send(HttpExchange exchange, Reply reply, boolean gzip) throws IOException {
+        if (reply.location != null) {
+            exchange.getResponseHeaders().set("Location", reply.location);
+        }
+        if (reply.etag != null) {
+            exchange.getResponseHeaders().set("ETag", reply.etag);
+        }
+        if (reply.body == null) {
+            exchange.sendResponseHeaders(reply.status, -1);
+            exchange.close();
+            return;
+        }
+
+        exchange.getResponseHeaders().set("Content-Type", reply.contentType);
+        byte[] body = reply.body.getBytes(UTF8);
+        if (gzip) {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            GZIPOutputStream out = new GZIPOutputStream(compressed);
+            out.write(body);
+            out.close();
+            body = compressed.toByteArray();
+            exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+        }
+
+        exchange.sendResponseHeaders(reply.status, body.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(body);
+        out.close();
+    }
+
+    private static class Reply {
+
+        final int status;
+        final String body;
+        String location = null;
+        String etag = null;
+        String contentType = JSON;
+
+        Reply(int status, String body) {
+            this.status = status;
+            this.body = body;
+        }
+    }
+
+    /**
+     * A filter on user properties, a comparison or two joined by and / or.
+     */
+    static class Match {
+
+        final String property;
+        final String value;
+        final boolean prefix;
+        final boolean any;
+        Match left = null;
+        Match right = null;
+        boolean and = false;
+
+        Match(String property, String value, boolean prefix, boolean any) {
+            this.property = property;
+            this.value = value != null ? value.replace("''", "'") : null;
+            this.prefix = prefix;
+            this.any = any;
+        }
+
+        boolean matches(JSONObject user) {
+            if (this.left != null) {
+                return this.and ? this.left.matches(user) && this.right.matches(user) : this.left.matches(user) || this.right.matches(user);
+            }
+
+            Object value = user.opt(this.property);
+            if (value instanceof JSONArray) {
+                JSONArray values = (JSONArray) value;
+                for (int i = 0; i < values.length(); i++) {
+                    if (compare(values.opt(i))) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            return compare(value);
+        }
+
+        private boolean compare(Object value) {
+            if (value == null || value == JSONObject.NULL) {
+                return false;
+            }
+            String s = value.toString();
+            return this.prefix ? s.toLowerCase().startsWith(this.value.toLowerCase()) : s.equalsIgnoreCase(this.value);
+        }
+    }
+}
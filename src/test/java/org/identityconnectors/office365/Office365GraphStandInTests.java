@@ -0,0 +1,432 @@
+package org.identityconnectors.office365;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.identityconnectors.common.security.GuardedString;
+import org.identityconnectors.framework.common.exceptions.AlreadyExistsException;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.framework.common.objects.Attribute;
+import org.identityconnectors.framework.common.objects.AttributeBuilder;
+import org.identityconnectors.framework.common.objects.ConnectorObject;
+import org.identityconnectors.framework.common.objects.Name;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.identityconnectors.framework.common.objects.OperationalAttributes;
+import org.identityconnectors.framework.common.objects.ResultsHandler;
+import org.identityconnectors.framework.common.objects.SyncDelta;
+import org.identityconnectors.framework.common.objects.SyncDeltaType;
+import org.identityconnectors.framework.common.objects.SyncToken;
+import org.identityconnectors.framework.common.objects.Uid;
+import org.identityconnectors.framework.spi.SyncTokenResultsHandler;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Runs the connector against {@link Office365GraphStandIn}, paging through a
+ * large synthetic tenancy, creating users whilst errors and throttling are
+ * injected, bulk changes in $batch requests, syncing changes with the
+ * differential query, reading users through the cache, sharing tenant resources between connectors and
+ * checking pooled connectors are alive.
+ *
+ * @author Paul Heaney
+ */
+public class Office365GraphStandInTests {
+
+    @Test
+    public void testPagingLargeTenancy() throws Exception {
+        Office365GraphStandIn standIn = new Office365GraphStandIn("standin.onmicrosoft.com", 1000000);
+        Office365Connector connector = new Office365Connector();
+        try {
+            Office365Configuration configuration = standIn.configuration();
+            configuration.setPageSize(999);
+            connector.init(configuration);
+
+            final AtomicInteger count = new AtomicInteger();
+            final List<String> fetchers = new ArrayList<String>();
+            connector.executeQuery(ObjectClass.ACCOUNT, null, new ResultsHandler() {
+                @Override
+                public boolean handle(ConnectorObject co) {
+                    if (count.get() == 0) {
+                        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+                            if (thread.getName().startsWith("Office365-SearchFetcher-")) {
+                                fetchers.add(thread.getName());
+                            }
+                        }
+                    }
+                    return count.incrementAndGet() < 20000;
+                }
+            }, null);
+            Assert.assertEquals(count.get(), 20000);
+            Assert.assertEquals(fetchers, Collections.singletonList("Office365-SearchFetcher-standin.onmicrosoft.com"));
+            Assert.assertTrue(standIn.getRequestCount("GET /users") >= 21, "pages fetched " + standIn.getRequestCount("GET /users"));
+            for (Thread thread : Thread.getAllStackTraces().keySet()) {
+                Assert.assertNotEquals(thread.getName(), "Office365-SearchFetcher-standin.onmicrosoft.com", "Fetcher still running after the search stopped");
+            }
+
+            // A search with a single page does not start the fetcher
+            final List<ConnectorObject> found = new ArrayList<ConnectorObject>();
+            connector.executeQuery(ObjectClass.ACCOUNT, Office365Filter.equalTo("userPrincipalName", "user999999@standin.onmicrosoft.com", false), new ResultsHandler() {
+                @Override
+                public boolean handle(ConnectorObject co) {
+                    for (Thread thread : Thread.getAllStackTraces().keySet()) {
+                        Assert.assertFalse(thread.getName().startsWith("Office365-SearchFetcher-standin"), "Fetcher started for one page");
+                    }
+                    return found.add(co);
+                }
+            }, null);
+            Assert.assertEquals(found.size(), 1);
+            Assert.assertEquals(found.get(0).getUid().getUidValue(), Office365GraphStandIn.syntheticId(999999));
+        } finally {
+            connector.dispose();
+            standIn.stop();
+        }
+    }
+
+    @Test
+    public void testCreateAndDeleteWithFaults() throws Exception {
+        Office365GraphStandIn standIn = new Office365GraphStandIn("faults.onmicrosoft.com", 0);
+        standIn.setLatency(1, 4);
+        standIn.setErrorRate(0.15);
+        standIn.setThrottleRate(0.15, 0);
+        Office365Connector connector = new Office365Connector();
+        try {
+            Office365Configuration configuration = standIn.configuration();
+            configuration.setMaxRetries(20);
+            configuration.setRetryInitialDelay(1);
+            configuration.setRetryMaxDelay(5);
+            configuration.setMaxThrottleRetries(20);
+            connector.init(configuration);
+
+            Set<Uid> uids = new HashSet<Uid>();
+            for (int i = 0; i < 25; i++) {
+                Set<Attribute> attrs = new HashSet<Attribute>();
+                attrs.add(new Name("load" + i + "@faults.onmicrosoft.com"));
+                attrs.add(AttributeBuilder.build("displayName", "Load " + i));
+                attrs.add(AttributeBuilder.build("mailNickname", "load" + i));
+                attrs.add(AttributeBuilder.build(OperationalAttributes.PASSWORD_NAME, new GuardedString("Passw0rd!".toCharArray())));
+                attrs.add(AttributeBuilder.build(Office365Connector.USAGELOCATION_ATTR, "GB"));
+                attrs.add(AttributeBuilder.build(Office365Connector.LICENSE_ATTR, Office365GraphStandIn.SKU_PART_NUMBER));
+                uids.add(connector.create(ObjectClass.ACCOUNT, attrs, null));
+            }
+
+            // Lost responses must not have created anyone twice
+            Assert.assertEquals(uids.size(), 25);
+            Assert.assertEquals(standIn.getUserCount(), 25);
+            Assert.assertTrue(standIn.getFailedCount() > 0 && standIn.getThrottledCount() > 0,
+                    standIn.getFailedCount() + " failed, " + standIn.getThrottledCount() + " throttled");
+
+            // Assigning the license a user already has sends nothing
+            standIn.setErrorRate(0);
+            standIn.setThrottleRate(0, 0);
+            long assignments = standIn.getRequestCount("POST /users/{id}/assignLicense");
+            Assert.assertTrue(new Office365UserOps(connector).assignLicense(uids.iterator().next(), Office365GraphStandIn.SKU_PART_NUMBER));
+            Assert.assertEquals(standIn.getRequestCount("POST /users/{id}/assignLicense"), assignments);
+
+            // A repeated delete whose first response was lost is answered with a 404
+            for (Uid uid : uids) {
+                connector.delete(ObjectClass.ACCOUNT, uid, null);
+            }
+            Assert.assertEquals(standIn.getUserCount(), 0);
+        } finally {
+            connector.dispose();
+            standIn.stop();
+        }
+    }
+
+    @Test
+    public void testBulkUsers() throws Exception {
+        Office365GraphStandIn standIn = new Office365GraphStandIn("bulk.onmicrosoft.com", 0);
+        Office365Connector connector = new Office365Connector();
+        try {
+            connector.init(standIn.configuration());
+            Office365UserOps userOps = new Office365UserOps(connector);
+
+            List<Set<Attribute>> users = new ArrayList<Set<Attribute>>();
+            users.add(bulkUser("first@bulk.onmicrosoft.com", Office365GraphStandIn.SKU_PART_NUMBER));
+            users.add(bulkUser("elsewhere@unknown.example.com", null)); // domain lookup fails building the request
+            users.add(bulkUser("first@bulk.onmicrosoft.com", null)); // rejected by the Graph API as a duplicate
+            users.add(bulkUser("second@bulk.onmicrosoft.com", "NOSUCHSKU")); // created, but the license cannot be assigned
+            List<Office365BatchResult> created = userOps.createUsers(users);
+
+            Assert.assertEquals(created.size(), 4);
+            Assert.assertTrue(created.get(0).isSuccess());
+            Uid first = created.get(0).getUid();
+            Assert.assertFalse(created.get(1).isSuccess());
+            Assert.assertNull(created.get(1).getUid());
+            Assert.assertNull(created.get(1).getOperation());
+            Assert.assertTrue(created.get(1).getError().getMessage().contains("unknown.example.com"), created.get(1).getError().getMessage());
+            Assert.assertFalse(created.get(2).isSuccess());
+            Assert.assertTrue(created.get(2).getError() instanceof AlreadyExistsException, String.valueOf(created.get(2).getError()));
+            Assert.assertFalse(created.get(3).isSuccess());
+            Assert.assertNull(created.get(3).getError());
+            Assert.assertNotNull(created.get(3).getLicenseError());
+            Uid second = created.get(3).getUid();
+            Assert.assertNotNull(second);
+            Assert.assertEquals(standIn.getUserCount(), 2);
+            Assert.assertEquals(standIn.getRequestCount("POST /users/{id}/assignLicense"), 1);
+
+            Uid missing = new Uid("0f1e2d3c-4b5a-4697-8879-6a5b4c3d2e1f");
+            Map<Uid, Set<Attribute>> updates = new LinkedHashMap<Uid, Set<Attribute>>();
+            updates.put(first, Collections.singleton(AttributeBuilder.build("department", "Sales")));
+            updates.put(missing, Collections.singleton(AttributeBuilder.build("department", "Sales")));
+            Set<Attribute> licensed = new HashSet<Attribute>();
+            licensed.add(AttributeBuilder.build(Office365Connector.LICENSE_ATTR, Office365GraphStandIn.SKU_PART_NUMBER));
+            updates.put(second, licensed);
+            List<Office365BatchResult> updated = userOps.updateUsers(updates);
+
+            // Each result maps back to the Uid it was for, failed or not
+            List<Uid> keys = new ArrayList<Uid>(updates.keySet());
+            Assert.assertEquals(updated.size(), 3);
+            for (int i = 0; i < keys.size(); i++) {
+                Assert.assertEquals(updated.get(i).getOperation().getUid(), keys.get(i));
+            }
+            Assert.assertTrue(updated.get(0).isSuccess());
+            Assert.assertEquals(updated.get(0).getUid(), first);
+            Assert.assertEquals(updated.get(1).getException().getErrorCode(), Integer.valueOf(404));
+            Assert.assertTrue(updated.get(2).isSuccess(), String.valueOf(updated.get(2).getLicenseError()));
+            Assert.assertEquals(standIn.getRequestCount("POST /users/{id}/assignLicense"), 2);
+
+            List<Office365BatchResult> deleted = userOps.deleteUsers(Arrays.asList(first, missing, second));
+            Assert.assertEquals(deleted.size(), 3);
+            Assert.assertEquals(deleted.get(0).getUid(), first);
+            Assert.assertFalse(deleted.get(1).isSuccess());
+            Assert.assertEquals(deleted.get(1).getOperation().getUid(), missing);
+            Assert.assertEquals(deleted.get(2).getUid(), second);
+            Assert.assertEquals(standIn.getUserCount(), 0);
+        } finally {
+            connector.dispose();
+            standIn.stop();
+        }
+    }
+
+    @Test
+    public void testBulkCreateWithFailedBatch() throws Exception {
+        Office365GraphStandIn standIn = new Office365GraphStandIn("chunks.onmicrosoft.com", 0);
+        Office365Connector connector = new Office365Connector();
+        try {
+            connector.init(standIn.configuration());
+            // The first $batch is answered, the second fails as a whole
+            standIn.setFailingEndpoint("POST /$batch", 1);
+
+            List<Set<Attribute>> users = new ArrayList<Set<Attribute>>();
+            for (int i = 0; i < Office365BatchRequest.MAX_OPERATIONS + 2; i++) {
+                users.add(bulkUser("chunk" + i + "@chunks.onmicrosoft.com", null));
+            }
+            List<Office365BatchResult> created = new Office365UserOps(connector).createUsers(users);
+
+            // The users the first batch created are still reported
+            Assert.assertEquals(created.size(), users.size());
+            for (int i = 0; i < Office365BatchRequest.MAX_OPERATIONS; i++) {
+                Assert.assertTrue(created.get(i).isSuccess());
+                Assert.assertNotNull(created.get(i).getUid());
+            }
+            for (int i = Office365BatchRequest.MAX_OPERATIONS; i < users.size(); i++) {
+                Assert.assertFalse(created.get(i).isSuccess());
+                Assert.assertEquals(created.get(i).getException().getErrorCode(), Integer.valueOf(500));
+            }
+            Assert.assertEquals(standIn.getUserCount(), Office365BatchRequest.MAX_OPERATIONS);
+        } finally {
+            connector.dispose();
+            standIn.stop();
+        }
+    }
+
+    private static Set<Attribute> bulkUser(String name, String license) {
+        Set<Attribute> attrs = new HashSet<Attribute>();
+        attrs.add(new Name(name));
+        attrs.add(AttributeBuilder.build("displayName", name));
+        attrs.add(AttributeBuilder.build("mailNickname", name.substring(0, name.indexOf('@'))));
+        attrs.add(AttributeBuilder.build(OperationalAttributes.PASSWORD_NAME, new GuardedString("Passw0rd!".toCharArray())));
+        if (license != null) {
+            attrs.add(AttributeBuilder.build(Office365Connector.USAGELOCATION_ATTR, "GB"));
+            attrs.add(AttributeBuilder.build(Office365Connector.LICENSE_ATTR, license));
+        }
+        return attrs;
+    }
+
+    @Test
+    public void testSync() throws Exception {
+        Office365GraphStandIn standIn = new Office365GraphStandIn("sync.onmicrosoft.com", 450);
+        Office365Connector connector = new Office365Connector();
+        try {
+            connector.init(standIn.configuration());
+
+            final List<SyncDelta> deltas = new ArrayList<SyncDelta>();
+            final List<SyncToken> latest = new ArrayList<SyncToken>();
+            SyncTokenResultsHandler handler = new SyncTokenResultsHandler() {
+                @Override
+                public boolean handle(SyncDelta delta) {
+                    return deltas.add(delta);
+                }
+
+                @Override
+                public void handleResult(SyncToken token) {
+                    latest.add(token);
+                }
+            };
+
+            connector.sync(ObjectClass.ACCOUNT, null, handler, null);
+            Assert.assertEquals(deltas.size(), 450);
+            Assert.assertEquals(latest.size(), 1);
+            Assert.assertEquals(latest.get(0), connector.getLatestSyncToken(ObjectClass.ACCOUNT));
+
+            Set<Attribute> attrs = new HashSet<Attribute>();
+            attrs.add(new Name("new@sync.onmicrosoft.com"));
+            attrs.add(AttributeBuilder.build("displayName", "New"));
+            attrs.add(AttributeBuilder.build("mailNickname", "new"));
+            Uid created = connector.create(ObjectClass.ACCOUNT, attrs, null);
+            Uid updated = new Uid(Office365GraphStandIn.syntheticId(7));
+            connector.update(ObjectClass.ACCOUNT, updated, Collections.singleton(AttributeBuilder.build("department", "Sales")), null);
+            Uid deleted = new Uid(Office365GraphStandIn.syntheticId(8));
+            connector.delete(ObjectClass.ACCOUNT, deleted, null);
+
+            deltas.clear();
+            connector.sync(ObjectClass.ACCOUNT, latest.get(0), handler, null);
+            Assert.assertEquals(deltas.size(), 3);
+            Assert.assertEquals(deltas.get(0).getUid(), created);
+            Assert.assertEquals(deltas.get(1).getDeltaType(), SyncDeltaType.CREATE_OR_UPDATE);
+            Assert.assertEquals(deltas.get(1).getObject().getAttributeByName("department").getValue().get(0), "Sales");
+            Assert.assertEquals(deltas.get(2).getDeltaType(), SyncDeltaType.DELETE);
+            Assert.assertEquals(deltas.get(2).getUid(), deleted);
+            Assert.assertEquals(latest.get(1), connector.getLatestSyncToken(ObjectClass.ACCOUNT));
+        } finally {
+            connector.dispose();
+            standIn.stop();
+        }
+    }
+
+    @Test
+    public void testUserCache() throws Exception {
+        Office365GraphStandIn standIn = new Office365GraphStandIn("cache.onmicrosoft.com", 10);
+        Office365Connector connector = new Office365Connector();
+        try {
+            Office365Configuration configuration = standIn.configuration();
+            configuration.setUserCacheTtl(3600);
+            connector.init(configuration);
+
+            final List<ConnectorObject> found = new ArrayList<ConnectorObject>();
+            ResultsHandler handler = new ResultsHandler() {
+                @Override
+                public boolean handle(ConnectorObject co) {
+                    return found.add(co);
+                }
+            };
+            String id = Office365GraphStandIn.syntheticId(3);
+
+            // Fetched once, then served from the cache by objectId or name
+            connector.executeQuery(ObjectClass.ACCOUNT, Office365Filter.equalTo(Office365Filter.OBJECT_ID, id, false), handler, null);
+            connector.executeQuery(ObjectClass.ACCOUNT, Office365Filter.equalTo(Office365Filter.OBJECT_ID, id, false), handler, null);
+            String name = found.get(0).getName().getNameValue();
+            connector.executeQuery(ObjectClass.ACCOUNT, Office365Filter.equalTo("userPrincipalName", name.toUpperCase(), false), handler, null);
+            Assert.assertEquals(found.size(), 3);
+            Assert.assertEquals(found.get(2).getUid().getUidValue(), id);
+            Assert.assertEquals(standIn.getRequestCount("GET /users/{id}"), 1);
+
+            // An update invalidates it
+            connector.update(ObjectClass.ACCOUNT, new Uid(id), Collections.singleton(AttributeBuilder.build("department", "Sales")), null);
+            found.clear();
+            connector.executeQuery(ObjectClass.ACCOUNT, Office365Filter.equalTo(Office365Filter.OBJECT_ID, id, false), handler, null);
+            Assert.assertEquals(found.get(0).getAttributeByName("department").getValue().get(0), "Sales");
+            Assert.assertEquals(standIn.getRequestCount("GET /users/{id}"), 2);
+
+            // Past its TTL it is revalidated, unchanged so with a 304
+            Office365UserCache cache = connector.getConnection().getUserCache();
+            Office365UserCache.Entry entry = cache.get(id);
+            cache.put(new Office365UserCache.Entry(entry.getObject(), entry.getETag()) {
+                @Override
+                public long getFetched() {
+                    return 0;
+                }
+            });
+            found.clear();
+            connector.executeQuery(ObjectClass.ACCOUNT, Office365Filter.equalTo(Office365Filter.OBJECT_ID, id, false), handler, null);
+            Assert.assertEquals(found.size(), 1);
+            Assert.assertEquals(standIn.getRequestCount("GET /users/{id}"), 3);
+            Assert.assertTrue(cache.isFresh(cache.get(id)));
+        } finally {
+            connector.dispose();
+            standIn.stop();
+        }
+    }
+
+    @Test
+    public void testSharedResources() throws Exception {
+        Office365GraphStandIn standIn = new Office365GraphStandIn("shared.onmicrosoft.com", 10);
+        Office365Connector first = new Office365Connector();
+        Office365Connector second = new Office365Connector();
+        try {
+            first.init(standIn.configuration());
+            Office365Configuration lowered = standIn.configuration();
+            lowered.setMaxConcurrency(3);
+            second.init(lowered);
+
+            // One scheduler, keeping the limits of the connection that created it
+            Assert.assertSame(first.getConnection().getScheduler(), second.getConnection().getScheduler());
+            Assert.assertEquals(second.getConnection().getScheduler().getMaxConcurrency(), first.getConfiguration().getMaxConcurrency());
+
+            // One token and one load of the SKUs for both
+            Assert.assertEquals(first.getConnection().getSkus(), second.getConnection().getSkus());
+            Assert.assertEquals(standIn.getRequestCount("POST /tokens"), 1);
+            Assert.assertEquals(standIn.getRequestCount("GET /subscribedSkus"), 1);
+            Office365TenantResources resources = Office365TenantResources.acquire(standIn.configuration());
+            Assert.assertEquals(resources.getReferences(), 3);
+            resources.release();
+
+            // Still usable by the other once one is disposed
+            first.dispose();
+            Assert.assertEquals(resources.getReferences(), 1);
+            second.executeQuery(ObjectClass.ACCOUNT, Office365Filter.equalTo(Office365Filter.OBJECT_ID, Office365GraphStandIn.syntheticId(1), false),
+                    new ResultsHandler() {
+                        @Override
+                        public boolean handle(ConnectorObject co) {
+                            return true;
+                        }
+                    }, null);
+
+            second.dispose();
+            Assert.assertEquals(resources.getReferences(), 0);
+            Office365TenantResources next = Office365TenantResources.acquire(standIn.configuration());
+            Assert.assertNotSame(next, resources);
+            next.release();
+        } finally {
+            first.dispose();
+            second.dispose();
+            standIn.stop();
+        }
+    }
+
+    @Test
+    public void testCheckAlive() throws Exception {
+        Office365GraphStandIn standIn = new Office365GraphStandIn("alive.onmicrosoft.com", 0);
+        Office365Connector connector = new Office365Connector();
+        try {
+            connector.init(standIn.configuration());
+            connector.checkAlive();
+            Office365Connection connection = connector.getConnection();
+
+            long requests = standIn.getRequestCount();
+            for (int i = 0; i < 100; i++) {
+                connector.checkAlive();
+            }
+            Assert.assertEquals(standIn.getRequestCount(), requests);
+
+            connection.dispose();
+            try {
+                connector.checkAlive();
+                Assert.fail("Expected a disposed connection to fail the check");
+            } catch (ConnectorException ce) {
+                // Expected
+            }
+        } finally {
+            connector.dispose();
+            standIn.stop();
+        }
+    }
+}
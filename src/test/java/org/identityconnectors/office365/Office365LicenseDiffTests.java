@@ -0,0 +1,55 @@
+package org.identityconnectors.office365;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the assignLicense requests built by {@link Office365LicenseDiff}.
+ *
+ * @author Paul Heaney
+ */
+public class Office365LicenseDiffTests {
+
+    private static final String E3 = "6fd2c87f-b296-42f0-b197-1e91e994b900";
+    private static final String E1 = "18181a46-0d4e-45cd-891e-60aabd171b4e";
+    private static final String EXCHANGE = "efb87545-963c-4e0d-99df-69c6916d9eb0";
+    private static final String SHAREPOINT = "5dbe027f-2339-4123-9542-606e4d348a72";
+
+    private static JSONObject license(String skuId, String... disabledPlans) throws Exception {
+        return new JSONObject().put("skuId", skuId).put("disabledPlans", new JSONArray(Arrays.asList(disabledPlans)));
+    }
+
+    @Test
+    public void testUnchanged() throws Exception {
+        JSONArray assigned = new JSONArray().put(license(E3.toUpperCase(), SHAREPOINT, EXCHANGE));
+        Office365LicenseDiff diff = new Office365LicenseDiff(assigned, license(E3, EXCHANGE, SHAREPOINT.toUpperCase()));
+        Assert.assertTrue(diff.isEmpty());
+
+        Assert.assertTrue(new Office365LicenseDiff(new JSONArray(), null).isEmpty());
+    }
+
+    @Test
+    public void testReplaceAndChangePlans() throws Exception {
+        // Another SKU is swapped for the wanted one in the same request
+        JSONArray assigned = new JSONArray().put(license(E1));
+        JSONObject request = new Office365LicenseDiff(assigned, license(E3, EXCHANGE)).toRequest();
+        Assert.assertEquals(request.getJSONArray("addLicenses").getJSONObject(0).getString("skuId"), E3);
+        Assert.assertEquals(request.getJSONArray("removeLicenses").getString(0), E1);
+
+        // The same SKU with other plans is added again, never also removed
+        assigned = new JSONArray().put(license(E3, EXCHANGE)).put(license(E1));
+        Office365LicenseDiff diff = new Office365LicenseDiff(assigned, license(E3));
+        Assert.assertEquals(diff.getAddLicenses().size(), 1);
+        Assert.assertEquals(diff.getRemoveLicenses(), Collections.singletonList(E1));
+
+        // No license wanted removes them all
+        request = new Office365LicenseDiff(assigned, null).toRequest();
+        Assert.assertEquals(request.get("addLicenses"), JSONObject.NULL);
+        Assert.assertEquals(request.getJSONArray("removeLicenses").length(), 2);
+    }
+}
@@ -0,0 +1,55 @@
+package org.identityconnectors.office365;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.ObjectName;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the histograms and endpoint naming in {@link Office365Metrics}.
+ *
+ * @author Paul Heaney
+ */
+public class Office365MetricsTests {
+
+    @Test
+    public void testPercentiles() {
+        Office365Metrics.Latency latency = new Office365Metrics.Latency();
+        for (int i = 1; i <= 100; i++) {
+            latency.record(TimeUnit.MILLISECONDS.toNanos(i), i <= 98);
+        }
+
+        Assert.assertEquals(latency.getCount(), 100);
+        Assert.assertEquals(latency.getErrors(), 2);
+        Assert.assertEquals(latency.getMaxMillis(), 100.0, 0.001);
+        Assert.assertEquals(latency.getMeanMillis(), 50.5, 0.001);
+        // Buckets are within 25% of the true value
+        Assert.assertEquals(latency.getP50Millis(), 50, 12.5);
+        Assert.assertEquals(latency.getP95Millis(), 95, 23.75);
+        Assert.assertEquals(latency.getP99Millis(), 99, 1);
+        Assert.assertTrue(latency.getP50Millis() <= latency.getP95Millis());
+    }
+
+    @Test
+    public void testEndpointsAndJmx() throws Exception {
+        Assert.assertEquals(Office365Metrics.endpointOf("PATCH", "/contoso.onmicrosoft.com/users/1f0a2b3c-4d5e-6f70-8192-a3b4c5d6e7f8"), "PATCH /users/{id}");
+        Assert.assertEquals(Office365Metrics.endpointOf("GET", "/contoso.onmicrosoft.com/users/bob@contoso.com?api-version=2013-11-08"), "GET /users/{id}");
+        Assert.assertEquals(Office365Metrics.endpointOf("POST", "/contoso.onmicrosoft.com/$batch"), "POST /$batch");
+
+        Office365Metrics metrics = Office365Metrics.forTenancy("Metrics.Test");
+        Assert.assertSame(Office365Metrics.forTenancy("metrics.test"), metrics);
+        metrics.recordRequest("GET", "/metrics.test/users?api-version=2013-11-08", 200, System.nanoTime());
+        metrics.recordRequest("GET", "/metrics.test/users?api-version=2013-11-08&$skiptoken=X", 503, System.nanoTime());
+        metrics.recordRetry(250);
+
+        Office365Metrics.Latency users = metrics.getEndpoints().get("GET /users");
+        Assert.assertEquals(users.getCount(), 2);
+        Assert.assertEquals(users.getStatusCounts().get("503"), Long.valueOf(1));
+
+        ObjectName name = new ObjectName(Office365Metrics.DOMAIN + ":type=Metrics,tenancy=" + ObjectName.quote("metrics.test"));
+        Assert.assertEquals(ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Retries"), Long.valueOf(1));
+    }
+}
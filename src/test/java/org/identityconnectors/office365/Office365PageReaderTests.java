@@ -0,0 +1,87 @@
+package org.identityconnectors.office365;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.identityconnectors.framework.common.objects.AttributeUtil;
+import org.identityconnectors.framework.common.objects.ConnectorObject;
+import org.json.JSONException;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the streaming {@link Office365PageReader}.
+ *
+ * @author Paul Heaney
+ */
+public class Office365PageReaderTests {
+
+    private static final String PAGE = "{\"odata.metadata\":\"https://graph.windows.net/contoso.com/$metadata#directoryObjects/Microsoft.WindowsAzure.ActiveDirectory.User\","
+            + "\"value\":["
+            + "{\"odata.type\":\"Microsoft.WindowsAzure.ActiveDirectory.User\",\"objectType\":\"User\",\"objectId\":\"4e971521-101a-4311-94f4-0917d7218b4e\","
+            + "\"assignedLicenses\":[{\"disabledPlans\":[],\"skuId\":\"6fd2c87f-b296-42f0-b197-1e91e994b900\"}],"
+            + "\"accountEnabled\":true,\"city\":null,\"displayName\":\"Test One\",\"proxyAddresses\":[\"SMTP:one@contoso.com\",\"smtp:1@contoso.com\"],"
+            + "\"userPrincipalName\":\"one@contoso.com\"},"
+            + "{\"objectType\":\"User\",\"objectId\":\"9d1a3c1b-2c4e-4f8b-8a43-2a0b5e6c1f00\",\"userPrincipalName\":\"two@contoso.com\",\"mail\":\"two@contoso.com\"}"
+            + "],"
+            + "\"odata.nextLink\":\"directoryObjects/$/Microsoft.WindowsAzure.ActiveDirectory.User?$skiptoken=X'445370'\"}";
+
+    private final Office365UserOps userOps = new Office365UserOps(new Office365Connector());
+
+    private final Office365PageReader.ItemDecoder<ConnectorObject> decoder = new Office365PageReader.ItemDecoder<ConnectorObject>() {
+        @Override
+        public ConnectorObject decode(org.json.JSONTokener tokener) throws JSONException {
+            return userOps.decodeConnectorObject(tokener);
+        }
+    };
+
+    @Test
+    public void testReadPage() throws JSONException {
+        final List<ConnectorObject> users = new ArrayList<ConnectorObject>();
+        Office365PageReader.Page page = Office365PageReader.read(new StringReader(PAGE), decoder, new Office365PageReader.ItemHandler<ConnectorObject>() {
+            @Override
+            public boolean handle(ConnectorObject item) {
+                users.add(item);
+                return true;
+            }
+        });
+
+        Assert.assertFalse(page.isStopped());
+        Assert.assertEquals(page.getItemCount(), 2);
+        Assert.assertEquals(Office365Connection.getSkipToken(page.getNextLink()), "X'445370'");
+        Assert.assertEquals(users.size(), 2);
+
+        ConnectorObject one = users.get(0);
+        Assert.assertEquals(one.getUid().getUidValue(), "4e971521-101a-4311-94f4-0917d7218b4e");
+        Assert.assertEquals(one.getName().getNameValue(), "one@contoso.com");
+        Assert.assertEquals(AttributeUtil.getBooleanValue(one.getAttributeByName("accountEnabled")), Boolean.TRUE);
+        Assert.assertNull(one.getAttributeByName("city"));
+        Assert.assertNull(one.getAttributeByName("assignedLicenses"));
+        Assert.assertEquals(one.getAttributeByName("proxyAddresses").getValue().size(), 2);
+
+        Assert.assertEquals(AttributeUtil.getStringValue(users.get(1).getAttributeByName("mail")), "two@contoso.com");
+    }
+
+    @Test
+    public void testStopReading() throws JSONException {
+        final List<ConnectorObject> users = new ArrayList<ConnectorObject>();
+        Office365PageReader.Page page = Office365PageReader.read(new StringReader(PAGE), decoder, new Office365PageReader.ItemHandler<ConnectorObject>() {
+            @Override
+            public boolean handle(ConnectorObject item) {
+                users.add(item);
+                return false;
+            }
+        });
+
+        Assert.assertTrue(page.isStopped());
+        Assert.assertEquals(users.size(), 1);
+    }
+
+    @Test
+    public void testEmptyPage() throws JSONException {
+        Office365PageReader.Page page = Office365PageReader.read(new StringReader("{\"value\":[]}"), decoder, null);
+        Assert.assertEquals(page.getItemCount(), 0);
+        Assert.assertNull(page.getNextLink());
+    }
+}
@@ -0,0 +1,75 @@
+package org.identityconnectors.office365;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the token bucket and concurrency slots in
+ * {@link Office365RequestScheduler}.
+ *
+ * @author Paul Heaney
+ */
+public class Office365RequestSchedulerTests {
+
+    @Test
+    public void testBurstThenRateLimited() {
+        Office365RequestScheduler scheduler = new Office365RequestScheduler("test", 10, 2);
+
+        Assert.assertEquals(scheduler.reserve(), 0);
+        Assert.assertEquals(scheduler.reserve(), 0);
+
+        long wait = scheduler.reserve();
+        Assert.assertTrue(wait > 50 && wait <= 100, "wait was " + wait);
+        wait = scheduler.reserve();
+        Assert.assertTrue(wait > 150 && wait <= 200, "wait was " + wait);
+    }
+
+    @Test
+    public void testPause() {
+        Office365RequestScheduler scheduler = new Office365RequestScheduler("test", 0, 1);
+        Assert.assertEquals(scheduler.reserve(), 0);
+
+        scheduler.pause(2000);
+        long wait = scheduler.reserve();
+        Assert.assertTrue(wait > 1900 && wait <= 2000, "wait was " + wait);
+        Assert.assertEquals(scheduler.getThrottledResponses(), 1);
+    }
+
+    @Test
+    public void testConcurrencySlots() throws Exception {
+        final Office365RequestScheduler scheduler = new Office365RequestScheduler("test", 0, 1, 2);
+        scheduler.acquireSlot();
+        scheduler.acquireSlot();
+
+        final CountDownLatch started = new CountDownLatch(1);
+        Thread waiting = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    scheduler.acquireSlot();
+                    started.countDown();
+                } catch (InterruptedException ie) {
+                    // Test failed
+                }
+            }
+        });
+        waiting.start();
+        Assert.assertFalse(started.await(200, TimeUnit.MILLISECONDS), "Started beyond the max concurrency");
+
+        scheduler.releaseSlot();
+        Assert.assertTrue(started.await(2, TimeUnit.SECONDS));
+
+        // Lowered to one whilst two run, a slot is free again once both finish
+        scheduler.setMaxConcurrency(1);
+        Assert.assertEquals(scheduler.getMaxConcurrency(), 1);
+        scheduler.releaseSlot();
+        scheduler.releaseSlot();
+        scheduler.acquireSlot();
+        scheduler.setMaxConcurrency(3);
+        scheduler.acquireSlot();
+        scheduler.acquireSlot();
+    }
+}
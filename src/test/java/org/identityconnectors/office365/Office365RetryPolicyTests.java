@@ -0,0 +1,45 @@
+package org.identityconnectors.office365;
+
+import java.net.SocketTimeoutException;
+
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the backoff and classification in {@link Office365RetryPolicy}.
+ *
+ * @author Paul Heaney
+ */
+public class Office365RetryPolicyTests {
+
+    @Test
+    public void testDelayGrowsToCap() {
+        Office365RetryPolicy policy = new Office365RetryPolicy(5, 100, 1000);
+
+        for (int i = 0; i < 20; i++) {
+            long delay = policy.getDelay(0);
+            Assert.assertTrue(delay >= 50 && delay <= 100, "delay was " + delay);
+            delay = policy.getDelay(2);
+            Assert.assertTrue(delay >= 200 && delay <= 400, "delay was " + delay);
+            delay = policy.getDelay(40);
+            Assert.assertTrue(delay >= 500 && delay <= 1000, "delay was " + delay);
+        }
+
+        Assert.assertTrue(policy.canRetry(4));
+        Assert.assertFalse(policy.canRetry(5));
+    }
+
+    @Test
+    public void testClassification() {
+        Office365RetryPolicy policy = new Office365RetryPolicy(3, 100, 1000);
+
+        Assert.assertTrue(Office365RetryPolicy.isIdempotent("GET"));
+        Assert.assertFalse(Office365RetryPolicy.isIdempotent("POST"));
+
+        Assert.assertTrue(policy.isRetryableException(new ConnectorException("GET failed", new SocketTimeoutException())));
+        Assert.assertTrue(policy.isRetryableException(new Office365Exception(503, "unavailable")));
+        Assert.assertFalse(policy.isRetryableException(new Office365Exception(400, "bad request")));
+        Assert.assertFalse(policy.isRetryableException(new ConnectorException("no cause")));
+    }
+}
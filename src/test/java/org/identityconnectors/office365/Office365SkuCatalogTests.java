@@ -0,0 +1,105 @@
+package org.identityconnectors.office365;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the reloading of {@link Office365SkuCatalog} and the caching of
+ * failed loads.
+ *
+ * @author Paul Heaney
+ */
+public class Office365SkuCatalogTests {
+
+    private final AtomicInteger fetches = new AtomicInteger();
+    private final AtomicBoolean failing = new AtomicBoolean();
+
+    private final Office365SkuCatalog.Source source = new Office365SkuCatalog.Source() {
+        @Override
+        public JSONObject fetch() {
+            fetches.incrementAndGet();
+            if (failing.get()) {
+                throw new ConnectorException("Error on get to /subscribedSkus. Error code: 503");
+            }
+            try {
+                JSONObject plan = new JSONObject().put("servicePlanId", "plan-" + fetches.get()).put("servicePlanName", "EXCHANGE_S_STANDARD");
+                JSONObject sku = new JSONObject().put("skuId", "sku-" + fetches.get()).put("skuPartNumber", "ENTERPRISEPACK")
+                        .put("objectId", "object").put("consumedUnits", 1)
+                        .put("prepaidUnits", new JSONObject().put("enabled", 25).put("suspended", 0).put("warning", 0))
+                        .put("servicePlans", new JSONArray().put(plan));
+                return new JSONObject().put("value", new JSONArray().put(sku));
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    @Test
+    public void testStaleWhileRefreshing() throws Exception {
+        fetches.set(0);
+        failing.set(false);
+        Office365SkuCatalog catalog = new Office365SkuCatalog(50, 60000, "test");
+        try {
+            Office365SkuCatalog.Snapshot first = catalog.getSnapshot(source);
+            Assert.assertEquals(first.getSkuId("ENTERPRISEPACK"), "sku-1");
+            Assert.assertEquals(first.getServicePlanId("EXCHANGE_S_STANDARD"), "plan-1");
+            Assert.assertSame(catalog.getSnapshot(source), first);
+            Assert.assertEquals(fetches.get(), 1);
+
+            // Past the TTL the old snapshot is returned whilst it is reloaded
+            Thread.sleep(60);
+            Assert.assertSame(catalog.getSnapshot(source), first);
+            long deadline = System.currentTimeMillis() + 5000;
+            while (catalog.getSnapshot(source) == first && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            Assert.assertEquals(catalog.getSnapshot(source).getSkuId("ENTERPRISEPACK"), "sku-2");
+
+            // A failed reload keeps the stale snapshot and is not retried within the failure TTL
+            failing.set(true);
+            Thread.sleep(60);
+            Office365SkuCatalog.Snapshot stale = catalog.getSnapshot(source);
+            deadline = System.currentTimeMillis() + 5000;
+            while (fetches.get() < 3 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            Thread.sleep(20);
+            for (int i = 0; i < 10; i++) {
+                Assert.assertSame(catalog.getSnapshot(source), stale);
+            }
+            Assert.assertEquals(fetches.get(), 3);
+        } finally {
+            catalog.shutdown();
+        }
+    }
+
+    @Test
+    public void testFailedFirstLoad() {
+        fetches.set(0);
+        failing.set(true);
+        Office365SkuCatalog catalog = new Office365SkuCatalog(60000, 60000, "test");
+        try {
+            for (int i = 0; i < 5; i++) {
+                try {
+                    catalog.getSnapshot(source);
+                    Assert.fail("Expected the failed load to be rethrown");
+                } catch (ConnectorException ce) {
+                    Assert.assertTrue(ce.getMessage().contains("503"), ce.getMessage());
+                }
+            }
+            Assert.assertEquals(fetches.get(), 1);
+
+            failing.set(false);
+            catalog.refresh(source);
+            Assert.assertEquals(catalog.getSnapshot(source).getSkuId("ENTERPRISEPACK"), "sku-2");
+        } finally {
+            catalog.shutdown();
+        }
+    }
+}
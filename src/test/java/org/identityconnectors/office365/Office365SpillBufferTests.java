@@ -0,0 +1,81 @@
+package org.identityconnectors.office365;
+
+import java.io.File;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.identityconnectors.framework.common.objects.ConnectorObject;
+import org.identityconnectors.framework.common.objects.ConnectorObjectBuilder;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests {@link Office365SpillBuffer} keeps pages in order across memory and
+ * disk, in a private file in the directory it is given.
+ *
+ * @author Paul Heaney
+ */
+public class Office365SpillBufferTests {
+
+    private static List<ConnectorObject> page(int number) {
+        List<ConnectorObject> page = new ArrayList<ConnectorObject>();
+        for (int i = 0; i < 10; i++) {
+            ConnectorObjectBuilder builder = new ConnectorObjectBuilder();
+            builder.setUid("id" + number + "_" + i);
+            builder.setName("user" + i + "@example.com");
+            page.add(builder.build());
+        }
+        return page;
+    }
+
+    @Test
+    public void testSpillKeepsOrder() throws InterruptedException {
+        Office365SpillBuffer buffer = new Office365SpillBuffer(Office365SpillBuffer.estimateSize(page(0)) * 2);
+        try {
+            for (int i = 0; i < 5; i++) {
+                buffer.put(page(i));
+            }
+            Assert.assertEquals(buffer.take().get(0).getUid().getUidValue(), "id0_0");
+
+            // Still behind the spilled pages, so this goes to disk too
+            buffer.put(page(5));
+            buffer.put(Office365SearchPipeline.END);
+
+            for (int i = 1; i < 6; i++) {
+                List<ConnectorObject> page = buffer.take();
+                Assert.assertEquals(page.size(), 10);
+                Assert.assertEquals(page.get(9).getUid().getUidValue(), "id" + i + "_9");
+            }
+            Assert.assertSame(buffer.take(), Office365SearchPipeline.END);
+        } finally {
+            buffer.clear();
+        }
+    }
+
+    @Test
+    public void testSpillFileInDirectory() throws Exception {
+        File directory = new File(Files.createTempDirectory("office365-spill-test").toFile(), "spill");
+        Office365SpillBuffer buffer = new Office365SpillBuffer(1, directory);
+        try {
+            buffer.put(page(0));
+            Assert.assertNull(buffer.getFile(), "The first page is held in memory");
+            buffer.put(page(1));
+
+            File file = buffer.getFile();
+            Assert.assertEquals(file.getParentFile(), directory);
+            if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+                Assert.assertEquals(PosixFilePermissions.toString(Files.getPosixFilePermissions(file.toPath())), "rw-------");
+            }
+
+            buffer.clear();
+            Assert.assertFalse(file.exists());
+        } finally {
+            buffer.clear();
+            directory.delete();
+            directory.getParentFile().delete();
+        }
+    }
+}
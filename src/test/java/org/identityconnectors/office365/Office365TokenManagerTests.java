@@ -0,0 +1,132 @@
+package org.identityconnectors.office365;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests when {@link Office365TokenManager} mints, shares and refreshes tokens.
+ *
+ * @author Paul Heaney
+ */
+public class Office365TokenManagerTests {
+
+    private static final String TOKENS = "POST /tokens";
+
+    @Test
+    public void testRefreshDelay() {
+        long now = 1000000;
+        long hour = TimeUnit.HOURS.toMillis(1);
+        long margin = TimeUnit.SECONDS.toMillis(Office365TokenManager.REFRESH_MARGIN);
+        long minimum = TimeUnit.SECONDS.toMillis(Office365TokenManager.MIN_REFRESH_DELAY);
+
+        Assert.assertEquals(Office365TokenManager.refreshDelay(now + hour, now), hour - margin);
+
+        // Within the margin half the remaining life, never an immediate refresh
+        Assert.assertEquals(Office365TokenManager.refreshDelay(now + margin, now), margin / 2);
+        Assert.assertEquals(Office365TokenManager.refreshDelay(now + 2000, now), minimum);
+        Assert.assertEquals(Office365TokenManager.refreshDelay(now - 2000, now), minimum);
+    }
+
+    @Test
+    public void testConcurrentCallersShareOneMint() throws Exception {
+        Office365GraphStandIn standIn = new Office365GraphStandIn("tokens.onmicrosoft.com", 0);
+        final Office365TokenManager tokenManager = new Office365TokenManager(standIn.configuration());
+        int callers = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(callers);
+        try {
+            final CountDownLatch start = new CountDownLatch(1);
+            List<Future<String>> tokens = new ArrayList<Future<String>>();
+            for (int i = 0; i < callers; i++) {
+                tokens.add(executor.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws Exception {
+                        start.await();
+                        return tokenManager.getToken();
+                    }
+                }));
+            }
+            start.countDown();
+
+            String token = tokens.get(0).get(10, TimeUnit.SECONDS);
+            Assert.assertNotNull(token);
+            for (Future<String> other : tokens) {
+                Assert.assertEquals(other.get(10, TimeUnit.SECONDS), token);
+            }
+            Assert.assertEquals(standIn.getRequestCount(TOKENS), 1);
+        } finally {
+            executor.shutdownNow();
+            tokenManager.dispose();
+            standIn.stop();
+        }
+    }
+
+    @Test
+    public void testInvalidateKeepsNewerToken() throws Exception {
+        Office365GraphStandIn standIn = new Office365GraphStandIn("tokens.onmicrosoft.com", 0);
+        Office365TokenManager tokenManager = new Office365TokenManager(standIn.configuration());
+        try {
+            String rejected = tokenManager.getToken();
+            tokenManager.invalidate(rejected);
+            Assert.assertFalse(tokenManager.hasValidToken());
+
+            String minted = tokenManager.getToken();
+            Assert.assertNotEquals(minted, rejected);
+            Assert.assertEquals(standIn.getRequestCount(TOKENS), 2);
+
+            // A late rejection of the old token must not discard the new one
+            tokenManager.invalidate(rejected);
+            Assert.assertTrue(tokenManager.hasValidToken());
+            Assert.assertEquals(tokenManager.getToken(), minted);
+            Assert.assertEquals(standIn.getRequestCount(TOKENS), 2);
+        } finally {
+            tokenManager.dispose();
+            standIn.stop();
+        }
+    }
+
+    @Test
+    public void testOnlyUnauthorizedInvalidates() throws Exception {
+        Office365GraphStandIn standIn = new Office365GraphStandIn("unauthorized.onmicrosoft.com", 0);
+        Office365Configuration configuration = standIn.configuration();
+        configuration.setMaxThrottleRetries(0);
+        Office365Connection connection = Office365Connection.createConnection(configuration);
+        try {
+            Assert.assertEquals(standIn.getRequestCount(TOKENS), 1);
+
+            getFails(connection, "/users/" + Office365GraphStandIn.syntheticId(1), 404);
+            Assert.assertEquals(standIn.getRequestCount(TOKENS), 1);
+
+            standIn.setThrottleRate(1.0, 0);
+            getFails(connection, "/tenantDetails", 429);
+            standIn.setThrottleRate(0, 0);
+            Assert.assertEquals(standIn.getRequestCount(TOKENS), 1);
+
+            standIn.revokeTokens();
+            getFails(connection, "/tenantDetails", 401);
+            Assert.assertNotNull(connection.getRequest("/tenantDetails?api-version=" + Office365Connection.API_VERSION));
+            Assert.assertEquals(standIn.getRequestCount(TOKENS), 2);
+        } finally {
+            connection.dispose();
+            standIn.stop();
+        }
+    }
+
+    private static void getFails(Office365Connection connection, String path, int status) {
+        try {
+            connection.getRequest(path + "?api-version=" + Office365Connection.API_VERSION);
+            Assert.fail("Expected a " + status + " from " + path);
+        } catch (ConnectorException ce) {
+            Assert.assertTrue(ce.getMessage().contains("Error code: " + status), ce.getMessage());
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package org.identityconnectors.office365;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.util.EntityUtils;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests sampling, redaction and the ring buffer of {@link Office365Tracer}.
+ *
+ * @author Paul Heaney
+ */
+public class Office365TracerTests {
+
+    @Test
+    public void testSamplingAndRedaction() {
+        Office365Tracer tracer = new Office365Tracer("tracer.test", 0, 10);
+        Assert.assertNull(tracer.start(new HttpGet("https://graph.windows.net/tracer.test/users")));
+
+        tracer.setSampleRate(1);
+        HttpPost post = new HttpPost("https://graph.windows.net/tracer.test/users?api-version=2013-11-08");
+        post.setEntity(new StringEntity("{\"userPrincipalName\":\"bob@contoso.com\",\"passwordProfile\":{\"password\":\"S3cr\\\"et!\"}}",
+                ContentType.APPLICATION_JSON));
+        Office365Tracer.Span span = tracer.start(post);
+        span.sent();
+        span.responded(201);
+        span.responseBody("{\"objectId\":\"1f0a2b3c-4d5e-6f70-8192-a3b4c5d6e7f8\"}");
+        span.finish();
+
+        List<Office365Tracer.Trace> traces = tracer.getTraces();
+        Assert.assertEquals(traces.size(), 1);
+        Office365Tracer.Trace trace = traces.get(0);
+        Assert.assertEquals(trace.getEndpoint(), "/users");
+        Assert.assertEquals(trace.getStatus(), 201);
+        Assert.assertEquals(trace.getAttempts(), 1);
+        Assert.assertFalse(trace.getRequestBody().contains("S3cr"), trace.getRequestBody());
+        Assert.assertTrue(trace.getRequestBody().contains("\"password\":\"***\""), trace.getRequestBody());
+        Assert.assertTrue(trace.getRequestBody().contains("bob@contoso.com"));
+    }
+
+    @Test
+    public void testRingBuffer() {
+        Office365Tracer tracer = new Office365Tracer("tracer.test", 1, 3);
+        for (int i = 0; i < 5; i++) {
+            Office365Tracer.Span span = tracer.start(new HttpGet("https://graph.windows.net/tracer.test/users?$top=" + i));
+            span.responseBody("page " + i);
+            span.finish();
+        }
+
+        Assert.assertEquals(tracer.getRecorded(), 5);
+        String[] lines = tracer.dump();
+        Assert.assertEquals(lines.length, 3);
+        Assert.assertTrue(lines[0].endsWith("page 2"), lines[0]);
+        Assert.assertTrue(lines[2].endsWith("page 4"), lines[2]);
+
+        Assert.assertTrue(Office365Tracer.redact(new String(new char[5000])).length() < 1100);
+    }
+
+    @Test
+    public void testResponseCapturedWhilstStreaming() throws Exception {
+        Office365Tracer tracer = new Office365Tracer("tracer.test", 1, 10);
+        Office365Tracer.Span span = tracer.start(new HttpGet("https://graph.windows.net/tracer.test/oauth2/token"));
+        char[] padding = new char[3 * Office365Tracer.CAPTURE_LIMIT];
+        Arrays.fill(padding, 'x');
+        // The token is cut off by the capture limit so has no closing quote in the prefix
+        String body = "{\"token_type\":\"Bearer\",\"access_token\":\"" + new String(padding) + "\"}";
+
+        HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        response.setEntity(new StringEntity(body, ContentType.APPLICATION_JSON));
+        span.responded(200);
+        span.response(response);
+        span.finish();
+        Assert.assertEquals(tracer.getRecorded(), 0, "Recorded before the body was read");
+
+        // The caller still gets the whole body
+        Assert.assertEquals(EntityUtils.toString(response.getEntity()), body);
+        Assert.assertEquals(tracer.getRecorded(), 1);
+        String traced = tracer.getTraces().get(0).getResponseBody();
+        Assert.assertTrue(traced.startsWith("{\"token_type\":\"Bearer\",\"access_token\":\"***\""), traced);
+        Assert.assertTrue(traced.endsWith("...(" + body.length() + " bytes)"), traced);
+    }
+}
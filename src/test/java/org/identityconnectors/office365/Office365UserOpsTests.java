@@ -0,0 +1,96 @@
+package org.identityconnectors.office365;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.identityconnectors.framework.common.objects.ConnectorObject;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.identityconnectors.framework.common.objects.OperationOptions;
+import org.identityconnectors.framework.common.objects.OperationOptionsBuilder;
+import org.identityconnectors.framework.common.objects.ResultsHandler;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the $select built from the attributes to get, on its own and as the
+ * Graph API stand-in sees it.
+ *
+ * @author Paul Heaney
+ */
+public class Office365UserOpsTests {
+
+    @Test
+    public void testGetSelect() {
+        Office365UserOps userOps = new Office365UserOps(null);
+
+        Assert.assertNull(userOps.getSelect(null));
+        Assert.assertNull(userOps.getSelect(new OperationOptionsBuilder().build()));
+
+        // The attributes needed to build a connector object are always selected, unknown ones dropped
+        Assert.assertEquals(userOps.getSelect(attributesToGet("department", "__LICENSE__", "noSuchProperty", "displayName")),
+                "objectType,objectId,userPrincipalName,department,displayName");
+        Assert.assertEquals(userOps.getSelect(attributesToGet()), "objectType,objectId,userPrincipalName");
+        Assert.assertEquals(userOps.getSelect(attributesToGet("objectId", "userPrincipalName")), "objectType,objectId,userPrincipalName");
+    }
+
+    @Test
+    public void testSelectSentToGraph() throws Exception {
+        Office365GraphStandIn standIn = new Office365GraphStandIn("select.onmicrosoft.com", 5);
+        Office365Connector connector = new Office365Connector();
+        try {
+            connector.init(standIn.configuration());
+
+            // Paged listing
+            List<ConnectorObject> listed = query(connector, null, attributesToGet("department"));
+            Assert.assertEquals(listed.size(), 5);
+            for (ConnectorObject co : listed) {
+                assertProjected(co);
+            }
+
+            // Single object GETs, by objectId and by user principal name
+            String id = Office365GraphStandIn.syntheticId(3);
+            List<ConnectorObject> byId = query(connector, Office365Filter.equalTo(Office365Filter.OBJECT_ID, id, false), attributesToGet("department"));
+            Assert.assertEquals(byId.size(), 1);
+            assertProjected(byId.get(0));
+            Assert.assertEquals(byId.get(0).getUid().getUidValue(), id);
+
+            List<ConnectorObject> byName = query(connector, Office365Filter.equalTo("userPrincipalName", "user2@select.onmicrosoft.com", false),
+                    attributesToGet("department"));
+            Assert.assertEquals(byName.size(), 1);
+            assertProjected(byName.get(0));
+            Assert.assertEquals(standIn.getRequestCount("GET /users/{id}"), 2);
+
+            // Without attributes to get every property comes back
+            List<ConnectorObject> whole = query(connector, Office365Filter.equalTo(Office365Filter.OBJECT_ID, Office365GraphStandIn.syntheticId(4), false), null);
+            Assert.assertNotNull(whole.get(0).getAttributeByName("department"));
+            Assert.assertNotNull(whole.get(0).getAttributeByName("displayName"));
+        } finally {
+            connector.dispose();
+            standIn.stop();
+        }
+    }
+
+    private static void assertProjected(ConnectorObject co) {
+        Assert.assertNotNull(co.getUid());
+        Assert.assertNotNull(co.getName());
+        Assert.assertNotNull(co.getAttributeByName("department"));
+        Assert.assertNull(co.getAttributeByName("displayName"));
+        Assert.assertNull(co.getAttributeByName("city"));
+    }
+
+    private static List<ConnectorObject> query(Office365Connector connector, Office365Filter filter, OperationOptions options) {
+        final List<ConnectorObject> found = new ArrayList<ConnectorObject>();
+        connector.executeQuery(ObjectClass.ACCOUNT, filter, new ResultsHandler() {
+            @Override
+            public boolean handle(ConnectorObject co) {
+                found.add(co);
+                return true;
+            }
+        }, options);
+        return found;
+    }
+
+    private static OperationOptions attributesToGet(String... names) {
+        return new OperationOptionsBuilder().setAttributesToGet(names).build();
+    }
+}